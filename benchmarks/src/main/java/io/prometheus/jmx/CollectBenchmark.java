@@ -0,0 +1,77 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full {@link JmxCollector#collect()} of a synthetic in-process MBean tree, driven by the matching example config.
+ * Scores are per scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectBenchmark {
+    @Param({"kafka", "cassandra", "tomcat"})
+    public String workload;
+
+    @Param({"false", "true"})
+    public boolean cacheRules;
+
+    @Param({"false", "true"})
+    public boolean sampleArena;
+
+    private SyntheticMBeans beans;
+    private JmxCollector collector;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        beans = new SyntheticMBeans(ManagementFactory.getPlatformMBeanServer());
+        String config;
+        if ("kafka".equals(workload)) {
+            beans.registerKafka(50, 8);
+            config = ExampleConfigs.KAFKA;
+        } else if ("cassandra".equals(workload)) {
+            beans.registerCassandra(4, 25);
+            config = ExampleConfigs.CASSANDRA;
+        } else if ("tomcat".equals(workload)) {
+            beans.registerTomcat(2, 20, 10);
+            config = ExampleConfigs.TOMCAT;
+        } else {
+            throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("cacheRules", cacheRules);
+        overrides.put("sampleArena", sampleArena);
+        collector = new JmxCollector(ExampleConfigs.load(config, overrides));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        beans.unregisterAll();
+    }
+
+    @Benchmark
+    public List<MetricFamilySamples> collect() {
+        return collector.collect();
+    }
+}
@@ -0,0 +1,45 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Loads the example_configs shipped with the exporter, which are copied onto the benchmark classpath.
+ */
+class ExampleConfigs {
+    static final String KAFKA = "kafka-2_0_0.yml";
+    static final String CASSANDRA = "cassandra.yml";
+    static final String TOMCAT = "tomcat.yml";
+
+    private ExampleConfigs() {
+    }
+
+    /**
+     * Load an example config, replacing top-level options with the given overrides.
+     */
+    static String load(String file, Map<String, Object> overrides) throws IOException {
+        InputStream in = ExampleConfigs.class.getResourceAsStream("/example_configs/" + file);
+        if (in == null) {
+            throw new IllegalArgumentException("No such example config: " + file);
+        }
+        try {
+            Map<String, Object> config = (Map<String, Object>) new Yaml().load(in);
+            if (config == null) {
+                config = new HashMap<String, Object>();
+            }
+            config.putAll(overrides);
+            return new Yaml().dump(config);
+        } finally {
+            in.close();
+        }
+    }
+
+    static String withCacheRules(String file, boolean cacheRules) throws IOException {
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("cacheRules", cacheRules);
+        return load(file, overrides);
+    }
+}
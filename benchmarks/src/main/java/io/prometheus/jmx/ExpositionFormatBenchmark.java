@@ -0,0 +1,98 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding the result of one scrape in each exposition format, from the collected families.
+ * The plain and gzipped payload sizes of each format are printed when a trial starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpositionFormatBenchmark {
+    @Param({"kafka", "cassandra", "tomcat"})
+    public String workload;
+
+    @Param({"text", "openmetrics", "protobuf"})
+    public String format;
+
+    private SyntheticMBeans beans;
+    private List<MetricFamilySamples> mfs;
+    private ExpositionFormat expositionFormat;
+    private int size;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        beans = new SyntheticMBeans(ManagementFactory.getPlatformMBeanServer());
+        String config;
+        if ("kafka".equals(workload)) {
+            beans.registerKafka(50, 8);
+            config = ExampleConfigs.KAFKA;
+        } else if ("cassandra".equals(workload)) {
+            beans.registerCassandra(4, 25);
+            config = ExampleConfigs.CASSANDRA;
+        } else if ("tomcat".equals(workload)) {
+            beans.registerTomcat(2, 20, 10);
+            config = ExampleConfigs.TOMCAT;
+        } else {
+            throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+        if ("text".equals(format)) {
+            expositionFormat = ExpositionFormat.TEXT_004;
+        } else if ("openmetrics".equals(format)) {
+            expositionFormat = ExpositionFormat.OPENMETRICS_100;
+        } else if ("protobuf".equals(format)) {
+            expositionFormat = ExpositionFormat.PROTOBUF;
+        } else {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        mfs = new JmxCollector(ExampleConfigs.withCacheRules(config, false)).collect();
+
+        byte[] plain = encode();
+        size = plain.length;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(plain);
+        gzip.close();
+        System.out.println("# Payload: " + workload + " " + format + ": " + plain.length + " bytes, "
+                + compressed.size() + " bytes gzipped");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        beans.unregisterAll();
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? size : 1 << 16);
+        expositionFormat.write(out, mfs);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        return encode();
+    }
+}
@@ -0,0 +1,55 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of ObjectName key property lists. {@code uncached} measures the first scrape of a bean,
+ * {@code cached} every scrape after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyPropertyListBenchmark {
+    @Param({
+            "kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec,topic=orders",
+            "kafka.server:type=FetcherLagMetrics,name=ConsumerLag,clientId=ReplicaFetcherThread-0-1,topic=orders,partition=12",
+            "Catalina:j2eeType=Servlet,WebModule=//localhost/app,name=servlet,J2EEApplication=none,J2EEServer=none",
+            "org.apache.camel:context=ctx,type=endpoints,name=\"seda://endpointName\\?concurrentConsumers=8&size=50000\"",
+    })
+    public String objectName;
+
+    private ObjectName name;
+    private JmxMBeanPropertyCache warmCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        name = new ObjectName(objectName);
+        warmCache = new JmxMBeanPropertyCache();
+        warmCache.getKeyPropertyList(name);
+    }
+
+    @Benchmark
+    public Object uncached() {
+        return new JmxMBeanPropertyCache().getKeyPropertyList(name);
+    }
+
+    @Benchmark
+    public Object cached() {
+        return warmCache.getKeyPropertyList(name);
+    }
+}
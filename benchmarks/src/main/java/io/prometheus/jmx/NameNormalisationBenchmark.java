@@ -0,0 +1,58 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Metric and label name normalisation, run once per attribute on every uncached scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameNormalisationBenchmark {
+    static final String[] NAMES = {
+            "kafka.server_BrokerTopicMetrics_MessagesInPerSec_OneMinuteRate",
+            "kafka_log_Log_Size",
+            "org.apache.cassandra.metrics_Table_ReadLatency_99thPercentile",
+            "Catalina<type=GlobalRequestProcessor, name=\"http-nio-8080\">",
+            "java_lang_GarbageCollector_G1 Young Generation_CollectionTime",
+            "hadoop_DataNode_replaceBlockOpMinTime",
+            "clientId",
+            "partition",
+            "001_numeric_prefix",
+            "test_swedish_chars_åäö",
+    };
+    static final String[] ATTRIBUTE_NAMES = {
+            "Count", "OneMinuteRate", "99thPercentile", "CollectionTime", "HeapMemoryUsage",
+            "replaceBlockOpMinTime", "requestCount", "currentThreadsBusy", "LastGcInfo", "Value",
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void safeName(Blackhole bh) {
+        for (String name : NAMES) {
+            bh.consume(JmxCollector.safeName(name));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void toSnakeAndLowerCase(Blackhole bh) {
+        for (String name : ATTRIBUTE_NAMES) {
+            bh.consume(JmxCollector.toSnakeAndLowerCase(name));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.prometheus.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rule matching in {@link JmxCollector.Receiver#recordBean}, isolated from JMX by replaying the calls a scrape
+ * of the synthetic Kafka tree produces. Scores are per recorded attribute.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBeanBenchmark {
+    // Attributes exposed by SyntheticMBeans.registerKafka(10, 4).
+    static final int ATTRIBUTES = 335;
+
+    @Param({"false", "true"})
+    public boolean cacheRules;
+
+    private JmxCollector collector;
+    private GenerationCache<String, MatchedRule> cachedRules;
+    private final List<Recorded> recorded = new ArrayList<Recorded>();
+
+    @Setup
+    public void setUp() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        SyntheticMBeans beans = new SyntheticMBeans(server);
+        beans.registerKafka(10, 4);
+        try {
+            List<ObjectName> whitelist = new ArrayList<ObjectName>();
+            whitelist.add(new ObjectName("kafka.*:*"));
+            new JmxScraper("", "", "", false, whitelist, new ArrayList<ObjectName>(),
+                    new Recorder(), new JmxMBeanPropertyCache()).doScrape();
+        } finally {
+            beans.unregisterAll();
+        }
+        if (recorded.size() != ATTRIBUTES) {
+            throw new IllegalStateException("Expected " + ATTRIBUTES + " attributes, recorded " + recorded.size());
+        }
+
+        collector = new JmxCollector(ExampleConfigs.withCacheRules(ExampleConfigs.KAFKA, cacheRules));
+        cachedRules = new GenerationCache<String, MatchedRule>(JmxMBeanPropertyCache.SWEEP_INTERVAL);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ATTRIBUTES)
+    public Object recordBean() {
+        JmxCollector.Receiver receiver = collector.new Receiver(cachedRules);
+        for (Recorded r : recorded) {
+            receiver.recordBean(r.domain, r.beanProperties, r.attrKeys, r.attrName, r.attrType, r.attrDescription, r.value);
+        }
+        return receiver.metricFamilySamplesMap;
+    }
+
+    private static class Recorded {
+        String domain;
+        Map<String, String> beanProperties;
+        LinkedList<String> attrKeys;
+        String attrName;
+        String attrType;
+        String attrDescription;
+        Object value;
+    }
+
+    private class Recorder implements JmxScraper.MBeanReceiver {
+        public void recordBean(
+                String domain,
+                Map<String, String> beanProperties,
+                LinkedList<String> attrKeys,
+                String attrName,
+                String attrType,
+                String attrDescription,
+                Object value) {
+            Recorded r = new Recorded();
+            r.domain = domain;
+            r.beanProperties = beanProperties;
+            r.attrKeys = attrKeys;
+            r.attrName = attrName;
+            r.attrType = attrType;
+            r.attrDescription = attrDescription;
+            r.value = value;
+            recorded.add(r);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers in-process MBean trees shaped like the ones exposed by Kafka, Cassandra and Tomcat, so that
+ * the matching example_configs can be benchmarked without the real applications.
+ */
+class SyntheticMBeans {
+    private static final String[] RATE_ATTRIBUTES = {
+            "Count", "MeanRate", "OneMinuteRate", "FiveMinuteRate", "FifteenMinuteRate"};
+    private static final String[] HISTOGRAM_ATTRIBUTES = {
+            "Count", "Min", "Max", "Mean", "StdDev", "50thPercentile", "75thPercentile", "95thPercentile",
+            "98thPercentile", "99thPercentile", "999thPercentile"};
+    private static final String[] VALUE_ATTRIBUTES = {"Value"};
+
+    private final MBeanServer server;
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    SyntheticMBeans(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Per-topic broker rates, per-partition log gauges and per-request histograms.
+     */
+    void registerKafka(int topics, int partitions) throws Exception {
+        for (int t = 0; t < topics; t++) {
+            String topic = "topic-" + t;
+            register("kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec,topic=" + topic, RATE_ATTRIBUTES);
+            register("kafka.server:type=BrokerTopicMetrics,name=BytesInPerSec,topic=" + topic, RATE_ATTRIBUTES);
+            register("kafka.server:type=BrokerTopicMetrics,name=BytesOutPerSec,topic=" + topic, RATE_ATTRIBUTES);
+            for (int p = 0; p < partitions; p++) {
+                register("kafka.log:type=Log,name=Size,topic=" + topic + ",partition=" + p, VALUE_ATTRIBUTES);
+                register("kafka.log:type=Log,name=LogEndOffset,topic=" + topic + ",partition=" + p, VALUE_ATTRIBUTES);
+                register("kafka.server:type=FetcherLagMetrics,name=ConsumerLag,clientId=ReplicaFetcherThread-0-1,topic="
+                        + topic + ",partition=" + p, VALUE_ATTRIBUTES);
+            }
+        }
+        for (String request : new String[] {"Produce", "FetchConsumer", "FetchFollower", "Metadata"}) {
+            register("kafka.network:type=RequestMetrics,name=TotalTimeMs,request=" + request, HISTOGRAM_ATTRIBUTES);
+            register("kafka.network:type=RequestMetrics,name=RequestsPerSec,request=" + request, RATE_ATTRIBUTES);
+        }
+        register("kafka.server:type=ReplicaManager,name=UnderReplicatedPartitions", VALUE_ATTRIBUTES);
+    }
+
+    /**
+     * Per-table latency histograms and gauges, plus client request latencies.
+     */
+    void registerCassandra(int keyspaces, int tables) throws Exception {
+        for (int k = 0; k < keyspaces; k++) {
+            for (int t = 0; t < tables; t++) {
+                String prefix = "org.apache.cassandra.metrics:type=Table,keyspace=ks" + k + ",scope=table" + t + ",name=";
+                register(prefix + "ReadLatency", HISTOGRAM_ATTRIBUTES);
+                register(prefix + "WriteLatency", HISTOGRAM_ATTRIBUTES);
+                register(prefix + "ReadTotalLatency", new String[] {"Count"});
+                register(prefix + "LiveSSTableCount", VALUE_ATTRIBUTES);
+                register(prefix + "TotalDiskSpaceUsed", new String[] {"Count"});
+                // Alias beans that the example config blacklists.
+                register("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks" + k + ",scope=table" + t
+                        + ",name=ReadLatency", HISTOGRAM_ATTRIBUTES);
+            }
+        }
+        for (String scope : new String[] {"Read", "Write", "RangeSlice"}) {
+            register("org.apache.cassandra.metrics:type=ClientRequest,scope=" + scope + ",name=Latency", HISTOGRAM_ATTRIBUTES);
+            register("org.apache.cassandra.metrics:type=ClientRequest,scope=" + scope + ",name=Timeouts", RATE_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Connectors, thread pools, servlets and session managers.
+     */
+    void registerTomcat(int connectors, int webModules, int servlets) throws Exception {
+        for (int c = 0; c < connectors; c++) {
+            String connector = ObjectName.quote("http-nio-" + (8080 + c));
+            register("Catalina:type=GlobalRequestProcessor,name=" + connector,
+                    new String[] {"requestCount", "maxTime", "processingTime", "errorCount", "bytesReceived", "bytesSent"});
+            register("Catalina:type=ThreadPool,name=" + connector,
+                    new String[] {"currentThreadCount", "currentThreadsBusy", "keepAliveCount", "pollerThreadCount",
+                            "connectionCount", "maxThreads"});
+        }
+        for (int w = 0; w < webModules; w++) {
+            register("Catalina:type=Manager,host=localhost,context=/app" + w,
+                    new String[] {"processingTime", "sessionCounter", "rejectedSessions", "expiredSessions", "activeSessions"});
+            for (int s = 0; s < servlets; s++) {
+                register("Catalina:j2eeType=Servlet,WebModule=//localhost/app" + w + ",name=servlet" + s
+                        + ",J2EEApplication=none,J2EEServer=none",
+                        new String[] {"requestCount", "maxTime", "processingTime", "errorCount", "loadTime"});
+            }
+        }
+    }
+
+    void unregisterAll() throws Exception {
+        for (ObjectName name : registered) {
+            server.unregisterMBean(name);
+        }
+        registered.clear();
+    }
+
+    private void register(String name, String[] attributes) throws Exception {
+        ObjectName objectName = new ObjectName(name);
+        server.registerMBean(new Bean(attributes), objectName);
+        registered.add(objectName);
+    }
+
+    /**
+     * A read-only bean exposing a fixed set of numeric attributes.
+     */
+    private static class Bean implements DynamicMBean {
+        private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        private final MBeanInfo info;
+
+        Bean(String[] attributes) {
+            MBeanAttributeInfo[] attributeInfo = new MBeanAttributeInfo[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                values.put(attributes[i], (double) (i + 1) * 1.5);
+                attributeInfo[i] = new MBeanAttributeInfo(attributes[i], "double", attributes[i], true, false, false);
+            }
+            info = new MBeanInfo(Bean.class.getName(), "Synthetic bean", attributeInfo,
+                    new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = values.get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Object value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How a rule combines the samples it matches into fewer series, as configured with {@code aggregate}.
+ * <p>
+ * Samples are grouped by the values of the {@code by} labels, and the other labels are dropped. Each group
+ * becomes one sample, the sum, maximum or minimum of the values in the group, or the number of samples in it.
+ */
+class Aggregation {
+    enum Op {
+        SUM, MAX, MIN, COUNT
+    }
+
+    final Op op;
+    // The label names to keep, after sanitising.
+    final Set<String> by;
+
+    Aggregation(Op op, Set<String> by) {
+        this.op = op;
+        this.by = by;
+    }
+
+    /**
+     * Parse either an operator, aggregating away all labels, or a map with an {@code op} and {@code by} labels.
+     */
+    static Aggregation fromYaml(Object yaml, boolean lowercaseOutputLabelNames) {
+        Object op = yaml;
+        List<Object> by = Collections.emptyList();
+        if (yaml instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) yaml;
+            op = map.get("op");
+            if (map.containsKey("by")) {
+                by = (List<Object>) map.get("by");
+            }
+        }
+        if (!(op instanceof String)) {
+            throw new IllegalArgumentException("aggregate must give an op: " + yaml);
+        }
+        Op parsed;
+        try {
+            parsed = Op.valueOf(((String) op).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown aggregate op, must be sum, max, min or count: " + op);
+        }
+        Set<String> labels = new LinkedHashSet<String>();
+        for (Object label : by) {
+            String name = JmxCollector.safeName(String.valueOf(label));
+            labels.add(lowercaseOutputLabelNames ? JmxCollector.lowerCaseName(name) : name);
+        }
+        return new Aggregation(parsed, labels);
+    }
+
+    /**
+     * @return the indexes of the labels to keep.
+     */
+    List<Integer> keep(List<String> labelNames) {
+        List<Integer> kept = new ArrayList<Integer>(by.size());
+        for (int i = 0; i < labelNames.size(); i++) {
+            if (by.contains(labelNames.get(i))) {
+                kept.add(i);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the value of a group after adding a sample, given the value before it.
+     */
+    double combine(double current, double value) {
+        switch (op) {
+            case MAX:
+                return Math.max(current, value);
+            case MIN:
+                return Math.min(current, value);
+            case COUNT:
+                return current + 1;
+            default:
+                return current + value;
+        }
+    }
+
+    /**
+     * @return the value of a group with a single sample.
+     */
+    double initial(double value) {
+        return op == Op.COUNT ? 1 : value;
+    }
+}
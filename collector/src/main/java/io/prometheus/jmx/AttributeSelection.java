@@ -0,0 +1,127 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * The attributes to read of beans, from the {@code includeAttributes} and {@code excludeAttributes} maps of bean
+ * patterns to attribute names.
+ * <p>
+ * Beans matching an include pattern only have the attributes listed for their patterns read, other beans have all
+ * of theirs read. Attributes listed for an exclude pattern are never read. The {@link JmxMBeanPropertyCache}
+ * applies the selection to the attributes of a bean before caching them, so it costs nothing per scrape.
+ */
+class AttributeSelection {
+    final Map<ObjectName, Set<String>> include;
+    final Map<ObjectName, Set<String>> exclude;
+
+    AttributeSelection(Map<ObjectName, Set<String>> include, Map<ObjectName, Set<String>> exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    /**
+     * @return the selection of the config, or null if it selects every attribute.
+     */
+    static AttributeSelection fromYaml(Object include, Object exclude) throws MalformedObjectNameException {
+        Map<ObjectName, Set<String>> includeNames = patterns("includeAttributes", include);
+        Map<ObjectName, Set<String>> excludeNames = patterns("excludeAttributes", exclude);
+        if (includeNames.isEmpty() && excludeNames.isEmpty()) {
+            return null;
+        }
+        return new AttributeSelection(includeNames, excludeNames);
+    }
+
+    /**
+     * @return the selection of the patterns passed to a {@link BulkExport}, or null if it selects every attribute.
+     */
+    static AttributeSelection fromArrays(ObjectName[] includeNames, String[][] includeAttributes,
+                                         ObjectName[] excludeNames, String[][] excludeAttributes) {
+        if (includeNames.length == 0 && excludeNames.length == 0) {
+            return null;
+        }
+        return new AttributeSelection(patterns(includeNames, includeAttributes),
+                patterns(excludeNames, excludeAttributes));
+    }
+
+    private static Map<ObjectName, Set<String>> patterns(ObjectName[] names, String[][] attributes) {
+        Map<ObjectName, Set<String>> patterns = new LinkedHashMap<ObjectName, Set<String>>();
+        for (int i = 0; i < names.length; i++) {
+            patterns.put(names[i], new HashSet<String>(Arrays.asList(attributes[i])));
+        }
+        return patterns;
+    }
+
+    private static Map<ObjectName, Set<String>> patterns(String key, Object yaml)
+            throws MalformedObjectNameException {
+        if (yaml == null) {
+            return Collections.emptyMap();
+        }
+        if (!(yaml instanceof Map)) {
+            throw new IllegalArgumentException(key + " must map bean patterns to attribute names");
+        }
+        Map<ObjectName, Set<String>> patterns = new LinkedHashMap<ObjectName, Set<String>>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) yaml).entrySet()) {
+            Set<String> attributes = new HashSet<String>();
+            if (entry.getValue() instanceof List) {
+                for (Object attribute : (List<?>) entry.getValue()) {
+                    attributes.add(String.valueOf(attribute));
+                }
+            } else if (entry.getValue() != null) {
+                attributes.add(String.valueOf(entry.getValue()));
+            }
+            patterns.put(new ObjectName(String.valueOf(entry.getKey())), attributes);
+        }
+        return patterns;
+    }
+
+    boolean includes(ObjectName bean, String attribute) {
+        boolean included = true;
+        for (Map.Entry<ObjectName, Set<String>> entry : include.entrySet()) {
+            if (entry.getKey().apply(bean)) {
+                if (entry.getValue().contains(attribute)) {
+                    included = true;
+                    break;
+                }
+                included = false;
+            }
+        }
+        if (!included) {
+            return false;
+        }
+        for (Map.Entry<ObjectName, Set<String>> entry : exclude.entrySet()) {
+            if (entry.getValue().contains(attribute) && entry.getKey().apply(bean)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the selected attributes of the bean, the given array if they all are.
+     */
+    MBeanAttributeInfo[] select(ObjectName bean, MBeanAttributeInfo[] attributes) {
+        List<MBeanAttributeInfo> selected = null;
+        for (int i = 0; i < attributes.length; i++) {
+            boolean includes = includes(bean, attributes[i].getName());
+            if (!includes && selected == null) {
+                selected = new ArrayList<MBeanAttributeInfo>(attributes.length);
+                for (int j = 0; j < i; j++) {
+                    selected.add(attributes[j]);
+                }
+            } else if (includes && selected != null) {
+                selected.add(attributes[i]);
+            }
+        }
+        return selected == null ? attributes : selected.toArray(new MBeanAttributeInfo[selected.size()]);
+    }
+}
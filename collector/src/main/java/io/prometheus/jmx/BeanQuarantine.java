@@ -0,0 +1,180 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.management.ObjectName;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.Counter;
+
+/**
+ * Skips beans and attributes that keep failing, so a few broken beans don't cost every scrape the time they take
+ * to fail.
+ * <p>
+ * After {@code quarantineAfterFailures} consecutive failures to get the attributes of a bean, or to read one of its
+ * attributes, it is skipped for {@code quarantineScrapes} scrapes, then read again. Each failure of such a probe
+ * doubles the number of scrapes skipped, up to 64 times the initial number, and a success lifts the quarantine.
+ * <p>
+ * I/O errors of a remote connection say nothing of the bean being read and are not counted, except for timeouts.
+ */
+class BeanQuarantine {
+    static final Counter skipped = Counter.build()
+        .name("jmx_scrape_quarantine_skipped_total")
+        .help("Number of reads of beans and attributes skipped, as they were quarantined after failing.").register();
+
+    static final String QUARANTINED = "jmx_scrape_quarantined";
+    private static final int MAX_BACKOFF_FACTOR = 64;
+
+    /**
+     * The failures of a bean, or one of its attributes.
+     */
+    private static class State {
+        int failures;
+        // The number of scrapes skipped the last time, and the scrape to read it again in.
+        long backoff;
+        long until;
+    }
+
+    private final int afterFailures;
+    private final long scrapes;
+    // Keyed by the name of the attribute, or the empty string for the bean itself.
+    private final Map<ObjectName, Map<String, State>> states = new HashMap<ObjectName, Map<String, State>>();
+    private long scrape;
+
+    BeanQuarantine(int afterFailures, long scrapes) {
+        this.afterFailures = afterFailures;
+        this.scrapes = scrapes;
+    }
+
+    synchronized void startScrape() {
+        scrape++;
+    }
+
+    /**
+     * @param attribute the attribute, or null for getting the attributes of the bean.
+     * @return whether to skip reading the bean or attribute in this scrape.
+     */
+    synchronized boolean skip(ObjectName bean, String attribute) {
+        State state = state(bean, attribute, false);
+        if (state == null || scrape >= state.until) {
+            return false;
+        }
+        skipped.inc();
+        return true;
+    }
+
+    /**
+     * @return the beans and attributes skipped in this scrape: the attributes of each bean, or none if the whole
+     *     bean is. For a {@link BulkExport} to leave them unread.
+     */
+    synchronized Map<ObjectName, Set<String>> skipping() {
+        Map<ObjectName, Set<String>> skipping = new HashMap<ObjectName, Set<String>>();
+        for (Map.Entry<ObjectName, Map<String, State>> bean : states.entrySet()) {
+            Set<String> attributes = new HashSet<String>();
+            for (Map.Entry<String, State> attribute : bean.getValue().entrySet()) {
+                if (scrape < attribute.getValue().until) {
+                    attributes.add(attribute.getKey());
+                }
+            }
+            if (attributes.remove("")) {
+                skipping.put(bean.getKey(), Collections.<String>emptySet());
+            } else if (!attributes.isEmpty()) {
+                skipping.put(bean.getKey(), attributes);
+            }
+        }
+        return skipping;
+    }
+
+    synchronized void success(ObjectName bean, String attribute) {
+        Map<String, State> attributes = states.get(bean);
+        if (attributes != null && attributes.remove(key(attribute)) != null && attributes.isEmpty()) {
+            states.remove(bean);
+        }
+    }
+
+    /**
+     * Count a failure to read a bean or attribute, and quarantine it if it failed too often.
+     */
+    synchronized void failure(ObjectName bean, String attribute, Exception e) {
+        if (!isBeanFailure(e)) {
+            return;
+        }
+        State state = state(bean, attribute, true);
+        state.failures++;
+        if (state.failures >= afterFailures) {
+            state.backoff = state.backoff == 0 ? scrapes : Math.min(state.backoff * 2, scrapes * MAX_BACKOFF_FACTOR);
+            // Skip the next backoff scrapes, and probe in the one after.
+            state.until = scrape + 1 + state.backoff;
+        }
+    }
+
+    /**
+     * Forget the beans that are gone.
+     */
+    synchronized void onlyKeepMBeans(Set<ObjectName> beans) {
+        states.keySet().retainAll(beans);
+    }
+
+    /**
+     * @return the {@code jmx_scrape_quarantined} family: the consecutive failures of each quarantined bean or
+     *     attribute.
+     */
+    synchronized MetricFamilySamples quarantined() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        List<String> labelNames = Arrays.asList("mbean", "attribute");
+        for (Map.Entry<ObjectName, Map<String, State>> bean : states.entrySet()) {
+            for (Map.Entry<String, State> attribute : bean.getValue().entrySet()) {
+                if (attribute.getValue().failures >= afterFailures) {
+                    samples.add(new MetricFamilySamples.Sample(QUARANTINED, labelNames,
+                            Arrays.asList(bean.getKey().toString(), attribute.getKey()),
+                            attribute.getValue().failures));
+                }
+            }
+        }
+        return quarantinedFamily(samples);
+    }
+
+    static MetricFamilySamples quarantinedFamily(List<MetricFamilySamples.Sample> samples) {
+        return new MetricFamilySamples(QUARANTINED, Type.GAUGE,
+                "Consecutive failures of the beans, or attributes, that are being skipped after failing.", samples);
+    }
+
+    private State state(ObjectName bean, String attribute, boolean create) {
+        Map<String, State> attributes = states.get(bean);
+        if (attributes == null) {
+            if (!create) {
+                return null;
+            }
+            attributes = new HashMap<String, State>();
+            states.put(bean, attributes);
+        }
+        State state = attributes.get(key(attribute));
+        if (state == null && create) {
+            state = new State();
+            attributes.put(key(attribute), state);
+        }
+        return state;
+    }
+
+    private static String key(String attribute) {
+        return attribute == null ? "" : attribute;
+    }
+
+    static boolean isBeanFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return !(e instanceof IOException);
+    }
+}
@@ -0,0 +1,376 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.JMRuntimeException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * A bean the agent can register so that a remote exporter reads all the beans it scrapes in a single round trip,
+ * rather than one for the info and one for each attribute of every bean.
+ * <p>
+ * {@link #export} returns an array of only JDK types, as the agent's classes are relocated:
+ * <ol start="0">
+ * <li>the generation of this export, a {@code Long}, to pass to the next call,</li>
+ * <li>the names of all the matching beans, an {@code ObjectName[]},</li>
+ * <li>the names of the beans that changed since the given generation, an {@code ObjectName[]},</li>
+ * <li>their readable attributes, an {@code MBeanAttributeInfo[][]},</li>
+ * <li>the values of those, an {@code Object[][]}. Values that can't be read or exported are null,</li>
+ * <li>the errors of the attributes that failed to be read, a {@code String[][]} of null for the others,</li>
+ * <li>and the names of the beans whose attributes couldn't be got, an {@code ObjectName[]}.</li>
+ * </ol>
+ * The exporter keeps the beans that didn't change from previous exports in a {@link Replica}. It passes its
+ * {@link AttributeSelection}, and the beans and attributes its {@link BeanQuarantine} skips, so only the attributes
+ * it would read itself are read here.
+ */
+class BulkExport implements BulkExportMBean {
+    private static final Logger LOGGER = Logger.getLogger(BulkExport.class.getName());
+
+    static final ObjectName NAME = objectName("io.prometheus.jmx:type=BulkExport");
+    static final String OPERATION = "export";
+    static final String[] SIGNATURE = {
+            ObjectName[].class.getName(), ObjectName[].class.getName(), long.class.getName(),
+            ObjectName[].class.getName(), String[][].class.getName(),
+            ObjectName[].class.getName(), String[][].class.getName(),
+            ObjectName[].class.getName(), String[][].class.getName()};
+
+    static final int GENERATION = 0;
+    static final int NAMES = 1;
+    static final int CHANGED_NAMES = 2;
+    static final int CHANGED_ATTRIBUTES = 3;
+    static final int CHANGED_VALUES = 4;
+    static final int CHANGED_ERRORS = 5;
+    static final int FAILED_NAMES = 6;
+
+    /**
+     * The attributes and values of a bean as of an export.
+     */
+    static class Bean {
+        final MBeanAttributeInfo[] attributes;
+        final Object[] values;
+        // The error of each attribute that failed to be read, null for the others.
+        final String[] errors;
+        // The generation the attributes or values last changed in.
+        final long changed;
+
+        Bean(MBeanAttributeInfo[] attributes, Object[] values, String[] errors, long changed) {
+            this.attributes = attributes;
+            this.values = values;
+            this.errors = errors;
+            this.changed = changed;
+        }
+    }
+
+    private final MBeanServer server;
+    private final JmxMBeanPropertyCache propertyCache = new JmxMBeanPropertyCache();
+    private final Map<ObjectName, Bean> beans = new HashMap<ObjectName, Bean>();
+    // Generations of another instance, such as before a restart, are unlikely to fall within this one's.
+    private final long firstGeneration = (new Random().nextLong() & 0x3fffffffL) << 32;
+    private long generation = firstGeneration;
+
+    BulkExport(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Register the bean on the platform MBeanServer, if it isn't yet.
+     */
+    static void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(NAME)) {
+            server.registerMBean(new BulkExport(server), NAME);
+        }
+    }
+
+    public synchronized Object[] export(ObjectName[] whitelist, ObjectName[] blacklist, long since,
+                                        ObjectName[] skipNames, String[][] skipAttributes,
+                                        ObjectName[] includeNames, String[][] includeAttributes,
+                                        ObjectName[] excludeNames, String[][] excludeAttributes) {
+        generation++;
+        boolean known = since >= firstGeneration && since < generation;
+        for (Iterator<ObjectName> it = beans.keySet().iterator(); it.hasNext(); ) {
+            if (!server.isRegistered(it.next())) {
+                it.remove();
+            }
+        }
+
+        Set<ObjectName> matching = new LinkedHashSet<ObjectName>();
+        for (ObjectName name : whitelist) {
+            for (ObjectInstance instance : server.queryMBeans(name, null)) {
+                matching.add(instance.getObjectName());
+            }
+        }
+        for (ObjectName name : blacklist) {
+            for (ObjectInstance instance : server.queryMBeans(name, null)) {
+                matching.remove(instance.getObjectName());
+            }
+        }
+        matching.remove(NAME);
+
+        Map<ObjectName, Set<String>> skip = new HashMap<ObjectName, Set<String>>();
+        for (int i = 0; i < skipNames.length; i++) {
+            skip.put(skipNames[i], new HashSet<String>(Arrays.asList(skipAttributes[i])));
+        }
+        AttributeSelection selection =
+                AttributeSelection.fromArrays(includeNames, includeAttributes, excludeNames, excludeAttributes);
+
+        List<ObjectName> names = new ArrayList<ObjectName>(matching.size());
+        List<ObjectName> changedNames = new ArrayList<ObjectName>();
+        List<MBeanAttributeInfo[]> changedAttributes = new ArrayList<MBeanAttributeInfo[]>();
+        List<Object[]> changedValues = new ArrayList<Object[]>();
+        List<String[]> changedErrors = new ArrayList<String[]>();
+        List<ObjectName> failedNames = new ArrayList<ObjectName>();
+        for (ObjectName name : matching) {
+            Set<String> skipped = skip.get(name);
+            if (skipped != null && skipped.isEmpty()) {
+                continue;
+            }
+            Bean bean = read(name, selection, skipped != null ? skipped : Collections.<String>emptySet());
+            if (bean == null) {
+                failedNames.add(name);
+                continue;
+            }
+            names.add(name);
+            if (!known || bean.changed > since) {
+                changedNames.add(name);
+                changedAttributes.add(bean.attributes);
+                changedValues.add(bean.values);
+                changedErrors.add(bean.errors);
+            }
+        }
+        propertyCache.onlyKeepMBeans(beans.keySet());
+
+        return new Object[] {
+                generation,
+                names.toArray(new ObjectName[names.size()]),
+                changedNames.toArray(new ObjectName[changedNames.size()]),
+                changedAttributes.toArray(new MBeanAttributeInfo[changedAttributes.size()][]),
+                changedValues.toArray(new Object[changedValues.size()][]),
+                changedErrors.toArray(new String[changedErrors.size()][]),
+                failedNames.toArray(new ObjectName[failedNames.size()])};
+    }
+
+    /**
+     * Read the readable attributes of a bean, and compare them to the previous export's.
+     *
+     * @param selection the attributes to read, or null for all of them. Others are left out of the bean.
+     * @param skipped the attributes not to read, which are left null.
+     * @return the bean, or null if its info can't be read.
+     */
+    private Bean read(ObjectName name, AttributeSelection selection, Set<String> skipped) {
+        MBeanAttributeInfo[] info;
+        try {
+            info = propertyCache.getAttributes(name, server);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "bulk export: '" + name + "': getAttributes Fail: " + e);
+            return null;
+        }
+        List<MBeanAttributeInfo> readable = new ArrayList<MBeanAttributeInfo>(info.length);
+        for (MBeanAttributeInfo attribute : info) {
+            if (attribute.isReadable() && (selection == null || selection.includes(name, attribute.getName()))) {
+                readable.add(attribute);
+            }
+        }
+        MBeanAttributeInfo[] attributes = readable.toArray(new MBeanAttributeInfo[readable.size()]);
+        Object[] values = new Object[attributes.length];
+        String[] errors = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            if (skipped.contains(attributes[i].getName())) {
+                continue;
+            }
+            try {
+                values[i] = exportable(server.getAttribute(name, attributes[i].getName()));
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "bulk export: '" + name + "'_'" + attributes[i].getName()
+                        + "': getAttribute Fail: " + e);
+                errors[i] = e.toString();
+            }
+        }
+
+        Bean previous = beans.get(name);
+        if (previous != null && Arrays.equals(previous.attributes, attributes)
+                && Arrays.deepEquals(previous.values, values) && Arrays.equals(previous.errors, errors)) {
+            return previous;
+        }
+        Bean bean = new Bean(attributes, values, errors, generation);
+        beans.put(name, bean);
+        return bean;
+    }
+
+    /**
+     * @return the value if the scraper exports values of its type, and the exporter can deserialize it, or null.
+     */
+    private static Object exportable(Object value) {
+        if (value instanceof Number) {
+            // Numbers of the application's own classes couldn't be deserialized by the exporter.
+            return value.getClass().getName().startsWith("java.") ? value : null;
+        }
+        if (value instanceof String || value instanceof Boolean || value instanceof java.util.Date
+                || value instanceof CompositeData || value instanceof TabularData) {
+            return value;
+        }
+        return null;
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The beans of the last exports, as seen by an exporter.
+     * <p>
+     * Holds the generation of the last export, so the next one only transfers the beans that changed since. A
+     * replica is used by one scrape at a time.
+     */
+    static class Replica {
+        // How long to scrape bean by bean after finding that the agent doesn't have the bulk export bean.
+        private static final long RETRY_NANOS = 5 * 60 * 1000000000L;
+
+        private final Map<ObjectName, Bean> beans = new HashMap<ObjectName, Bean>();
+        private ObjectName[] failed = new ObjectName[0];
+        private long generation = -1;
+        private boolean unavailable;
+        private long unavailableSince;
+
+        /**
+         * Export the beans through the bulk export bean of the server, if it has one and this connection may
+         * invoke it.
+         *
+         * @param skip the attributes to leave unread of each bean, or no attributes to leave the whole bean out.
+         * @param selection the attributes to read, or null for all of them.
+         * @return the matching beans in the order the server found them, or null if the beans have to be read one
+         *     by one.
+         */
+        Map<ObjectName, Bean> export(MBeanServerConnection beanConn, List<ObjectName> whitelist,
+                                     List<ObjectName> blacklist, Map<ObjectName, Set<String>> skip,
+                                     AttributeSelection selection) {
+            if (unavailable && System.nanoTime() - unavailableSince < RETRY_NANOS) {
+                return null;
+            }
+            Map<ObjectName, Set<String>> include = Collections.emptyMap();
+            Map<ObjectName, Set<String>> exclude = Collections.emptyMap();
+            if (selection != null) {
+                include = selection.include;
+                exclude = selection.exclude;
+            }
+            Object result;
+            try {
+                result = beanConn.invoke(NAME, OPERATION, new Object[] {
+                        whitelist.toArray(new ObjectName[whitelist.size()]),
+                        blacklist.toArray(new ObjectName[blacklist.size()]),
+                        generation, names(skip), attributes(skip), names(include), attributes(include),
+                        names(exclude), attributes(exclude)}, SIGNATURE);
+            } catch (JMException e) {
+                // No such bean, or one without the operation, or the operation failed.
+                return markUnavailable(e);
+            } catch (JMRuntimeException e) {
+                return markUnavailable(e);
+            } catch (SecurityException e) {
+                // A read-only role may not invoke operations.
+                return markUnavailable(e);
+            } catch (IOException e) {
+                return markUnavailable(e);
+            }
+            if (!(result instanceof Object[]) || ((Object[]) result).length <= FAILED_NAMES) {
+                return markUnavailable(null);
+            }
+            unavailable = false;
+            return merge((Object[]) result);
+        }
+
+        private static ObjectName[] names(Map<ObjectName, Set<String>> attributes) {
+            return attributes.keySet().toArray(new ObjectName[attributes.size()]);
+        }
+
+        /**
+         * @return the attributes of each bean, in the order of {@link #names}.
+         */
+        private static String[][] attributes(Map<ObjectName, Set<String>> attributes) {
+            String[][] result = new String[attributes.size()][];
+            int i = 0;
+            for (Set<String> names : attributes.values()) {
+                result[i++] = names.toArray(new String[names.size()]);
+            }
+            return result;
+        }
+
+        private Map<ObjectName, Bean> markUnavailable(Exception e) {
+            LOGGER.log(Level.FINE, "bulk export unavailable, reading beans one by one: " + e);
+            unavailable = true;
+            unavailableSince = System.nanoTime();
+            generation = -1;
+            beans.clear();
+            failed = new ObjectName[0];
+            return null;
+        }
+
+        private Map<ObjectName, Bean> merge(Object[] payload) {
+            long exported = (Long) payload[GENERATION];
+            ObjectName[] names = (ObjectName[]) payload[NAMES];
+            ObjectName[] changedNames = (ObjectName[]) payload[CHANGED_NAMES];
+            MBeanAttributeInfo[][] changedAttributes = (MBeanAttributeInfo[][]) payload[CHANGED_ATTRIBUTES];
+            Object[][] changedValues = (Object[][]) payload[CHANGED_VALUES];
+            String[][] changedErrors = (String[][]) payload[CHANGED_ERRORS];
+            for (int i = 0; i < changedNames.length; i++) {
+                beans.put(changedNames[i], new Bean(changedAttributes[i], changedValues[i], changedErrors[i],
+                        exported));
+            }
+            failed = (ObjectName[]) payload[FAILED_NAMES];
+
+            Map<ObjectName, Bean> result = new LinkedHashMap<ObjectName, Bean>(names.length * 2);
+            for (ObjectName name : names) {
+                Bean bean = beans.get(name);
+                if (bean == null) {
+                    // Not sent as unchanged, but we don't have it: start over with a full export next time.
+                    generation = -1;
+                    continue;
+                }
+                result.put(name, bean);
+            }
+            beans.keySet().retainAll(result.keySet());
+            if (result.size() == names.length) {
+                generation = exported;
+            }
+            return result;
+        }
+
+        /**
+         * @return the beans of the last export whose attributes couldn't be got.
+         */
+        ObjectName[] failed() {
+            return failed;
+        }
+
+        /**
+         * @return the generation to pass to the next export.
+         */
+        long generation() {
+            return generation;
+        }
+    }
+}
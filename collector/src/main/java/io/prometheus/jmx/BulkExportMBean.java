@@ -0,0 +1,24 @@
+package io.prometheus.jmx;
+
+import javax.management.ObjectName;
+
+/**
+ * The management interface of {@link BulkExport}.
+ */
+public interface BulkExportMBean {
+    /**
+     * Read the readable attributes of the beans matching a whitelist and not a blacklist.
+     *
+     * @param since the generation returned by a previous call, to get only the beans that changed since, or -1.
+     * @param skipNames beans not to read all attributes of.
+     * @param skipAttributes the attributes not to read of each of those beans, or none to leave out the bean.
+     * @param includeNames the patterns of beans to only read some attributes of, as in {@code includeAttributes}.
+     * @param includeAttributes the attributes to read of the beans matching each of those patterns.
+     * @param excludeNames the patterns of beans not to read some attributes of, as in {@code excludeAttributes}.
+     * @param excludeAttributes the attributes not to read of the beans matching each of those patterns.
+     * @return the payload described in {@link BulkExport}.
+     */
+    Object[] export(ObjectName[] whitelist, ObjectName[] blacklist, long since, ObjectName[] skipNames,
+                    String[][] skipAttributes, ObjectName[] includeNames, String[][] includeAttributes,
+                    ObjectName[] excludeNames, String[][] excludeAttributes);
+}
@@ -0,0 +1,157 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * A FIFO queue of byte arrays kept as files in a directory, so that they survive a restart.
+ * <p>
+ * Each element is a file named after its sequence number. Elements can be added at either end, so that older
+ * elements held elsewhere can be spilled in front of the ones already on disk. When the total size exceeds the
+ * bound, the oldest elements are dropped. The queue is not thread safe.
+ */
+class DiskQueue {
+    private static final Logger LOGGER = Logger.getLogger(DiskQueue.class.getName());
+    private static final String SUFFIX = ".batch";
+
+    private final File directory;
+    private final long maxBytes;
+    private final TreeMap<Long, File> files = new TreeMap<Long, File>();
+    private long bytes = 0;
+
+    DiskQueue(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create queue directory " + directory);
+        }
+        File[] existing = directory.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                String name = file.getName();
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                try {
+                    files.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+                    bytes += file.length();
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Append an element.
+     *
+     * @return the number of old elements dropped to stay within the size bound.
+     */
+    int addLast(byte[] element) throws IOException {
+        write(files.isEmpty() ? 0 : files.lastKey() + 1, element);
+        return trim();
+    }
+
+    /**
+     * Prepend an element, which then becomes the oldest.
+     *
+     * @return the number of old elements dropped to stay within the size bound.
+     */
+    int addFirst(byte[] element) throws IOException {
+        write(files.isEmpty() ? 0 : files.firstKey() - 1, element);
+        return trim();
+    }
+
+    /**
+     * @return the oldest readable element and its file, or null if the queue is empty.
+     */
+    Map.Entry<File, byte[]> peek() {
+        while (!files.isEmpty()) {
+            File file = files.firstEntry().getValue();
+            try {
+                return new AbstractMap.SimpleImmutableEntry<File, byte[]>(file, read(file));
+            } catch (IOException e) {
+                LOGGER.warning("Dropping unreadable queued batch " + file + ": " + e);
+                remove(file);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the element stored in the given file, if it is still queued.
+     */
+    void remove(File file) {
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            if (entry.getValue().equals(file)) {
+                files.remove(entry.getKey());
+                bytes -= file.length();
+                file.delete();
+                return;
+            }
+        }
+    }
+
+    private void write(long sequence, byte[] element) throws IOException {
+        File file = new File(directory, sequence + SUFFIX);
+        File tmp = new File(directory, sequence + SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(element);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can not rename " + tmp + " to " + file);
+        }
+        files.put(sequence, file);
+        bytes += element.length;
+    }
+
+    private int trim() {
+        int dropped = 0;
+        while (bytes > maxBytes && files.size() > 1) {
+            remove(files.firstEntry().getValue());
+            dropped++;
+        }
+        return dropped;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
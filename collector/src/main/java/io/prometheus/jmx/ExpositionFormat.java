@@ -0,0 +1,97 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * A format in which metric families are exposed over HTTP.
+ */
+abstract class ExpositionFormat {
+    static final ExpositionFormat TEXT_004 = new ExpositionFormat(TextFormat.CONTENT_TYPE_004) {
+        @Override
+        void write(OutputStream out, List<MetricFamilySamples> mfs) throws IOException {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            TextFormat.write004(writer, Collections.enumeration(mfs));
+            writer.flush();
+        }
+    };
+    static final ExpositionFormat OPENMETRICS_100 = new OpenMetricsFormat();
+    static final ExpositionFormat PROTOBUF = new ProtobufFormat();
+
+    final String contentType;
+
+    ExpositionFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    abstract void write(OutputStream out, List<MetricFamilySamples> mfs) throws IOException;
+
+    /**
+     * Choose the format preferred by the Accept headers of a request, defaulting to the text format.
+     * <p>
+     * Media ranges are weighed by their {@code q} parameter. Protobuf is only chosen for the delimited encoding
+     * of {@code io.prometheus.client.MetricFamily}, as Prometheus asks for it.
+     *
+     * @param headers the values of the Accept headers, or null.
+     */
+    static ExpositionFormat negotiate(List<String> headers) {
+        if (headers == null) {
+            return TEXT_004;
+        }
+        ExpositionFormat best = TEXT_004;
+        double bestQuality = -1;
+        for (String header : headers) {
+            for (String range : header.split(",")) {
+                String[] parts = range.split(";");
+                String mediaType = parts[0].trim().toLowerCase();
+                double quality = 1;
+                String proto = null;
+                String encoding = null;
+                for (int i = 1; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+                    if (eq < 0) {
+                        continue;
+                    }
+                    String name = parts[i].substring(0, eq).trim().toLowerCase();
+                    String value = parts[i].substring(eq + 1).trim();
+                    if (name.equals("q")) {
+                        try {
+                            quality = Double.parseDouble(value);
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    } else if (name.equals("proto")) {
+                        proto = value;
+                    } else if (name.equals("encoding")) {
+                        encoding = value;
+                    }
+                }
+
+                ExpositionFormat format;
+                if (mediaType.equals("application/vnd.google.protobuf")
+                        && "io.prometheus.client.MetricFamily".equals(proto) && "delimited".equals(encoding)) {
+                    format = PROTOBUF;
+                } else if (mediaType.equals("application/openmetrics-text")) {
+                    format = OPENMETRICS_100;
+                } else if (mediaType.equals("text/plain") || mediaType.equals("text/*")
+                        || mediaType.equals("*/*")) {
+                    format = TEXT_004;
+                } else {
+                    continue;
+                }
+                if (quality > 0 && quality > bestQuality) {
+                    best = format;
+                    bestQuality = quality;
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,137 @@
+package io.prometheus.jmx;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent cache whose entries are stamped with the generation (usually the scrape) in which they were last
+ * used.
+ * <p>
+ * Reads and writes touch an entry in constant time. At the end of each generation, entries that were not touched
+ * during it can be swept. Since the cache counts how many distinct entries were touched, it knows without a scan
+ * whether any entry went unused, so a full pass over the cache only happens when something may actually be
+ * stale, when the caller forces it, or every {@code sweepInterval} generations as a safety net.
+ */
+class GenerationCache<K, V> {
+    private static class Entry<V> {
+        final V value;
+        volatile long generation;
+
+        Entry(V value, long generation) {
+            this.value = value;
+            this.generation = generation;
+        }
+    }
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final int sweepInterval;
+    private final AtomicInteger touched = new AtomicInteger();
+    private volatile long generation = 0;
+    private int generationsSinceSweep = 0;
+
+    GenerationCache(int sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+
+    V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        touch(entry);
+        return entry.value;
+    }
+
+    void put(K key, V value) {
+        Entry<V> entry = new Entry<V>(value, generation);
+        Entry<V> previous = entries.put(key, entry);
+        if (previous == null || previous.generation != entry.generation) {
+            touched.incrementAndGet();
+        }
+    }
+
+    private void touch(Entry<V> entry) {
+        long current = generation;
+        if (entry.generation != current) {
+            entry.generation = current;
+            touched.incrementAndGet();
+        }
+    }
+
+    V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    Set<K> keySet() {
+        return entries.keySet();
+    }
+
+    void clear() {
+        entries.clear();
+        touched.set(0);
+    }
+
+    /**
+     * @return a copy of the cached entries, for inspection.
+     */
+    Map<K, V> snapshot() {
+        Map<K, V> snapshot = new HashMap<K, V>();
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().value);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Finish the current generation, and evict entries that were not touched during it if any might exist.
+     *
+     * @return the number of evicted entries.
+     */
+    int endGeneration() {
+        return endGeneration(false, null);
+    }
+
+    /**
+     * Finish the current generation and evict the entries that were not touched during it, and those whose key
+     * is not in {@code keep} when it is given.
+     *
+     * @param force sweep even if every entry was touched during the generation.
+     * @param keep if not null, also evict the entries whose key is not in this set.
+     * @return the number of evicted entries.
+     */
+    synchronized int endGeneration(boolean force, Set<K> keep) {
+        long ended = generation;
+        int touchedDuringGeneration = touched.getAndSet(0);
+        generation = ended + 1;
+        generationsSinceSweep++;
+
+        if (!force && touchedDuringGeneration >= entries.size() && generationsSinceSweep < sweepInterval) {
+            return 0;
+        }
+        generationsSinceSweep = 0;
+        int evicted = 0;
+        Iterator<Map.Entry<K, Entry<V>>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = iter.next();
+            if (entry.getValue().generation < ended || (keep != null && !keep.contains(entry.getKey()))) {
+                iter.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+}
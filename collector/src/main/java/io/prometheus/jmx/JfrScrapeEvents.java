@@ -0,0 +1,163 @@
+package io.prometheus.jmx;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The {@link ScrapeEvents} committed to Java Flight Recorder, in the {@code JMX Exporter} category.
+ * <p>
+ * Only loaded by {@link ScrapeEvents#flightRecorder()} once it found the {@code jdk.jfr} API. The event names don't
+ * start with the package, which the agent relocates.
+ */
+class JfrScrapeEvents extends ScrapeEvents {
+
+    @Name("prometheus.jmx.Scrape")
+    @Label("JMX Scrape")
+    @Category("JMX Exporter")
+    @Description("A scrape of the beans")
+    static class ScrapeEvent extends Event {
+        @Label("Restricted")
+        @Description("Whether the scrape was limited to some metric names")
+        boolean restricted;
+
+        @Label("Metric Families")
+        int families;
+
+        @Label("Error")
+        boolean error;
+    }
+
+    @Name("prometheus.jmx.Discovery")
+    @Label("JMX Bean Discovery")
+    @Category("JMX Exporter")
+    @Description("Querying the names of the beans to scrape")
+    static class DiscoveryEvent extends Event {
+        @Label("Beans")
+        int beans;
+    }
+
+    @Name("prometheus.jmx.BeanFetch")
+    @Label("JMX Bean Fetch")
+    @Category("JMX Exporter")
+    @Description("Getting the attributes of a bean and reading them")
+    @Threshold("10 ms")
+    static class BeanFetchEvent extends Event {
+        @Label("Object Name")
+        String objectName;
+
+        @Label("Attributes")
+        int attributes;
+    }
+
+    @Name("prometheus.jmx.RuleCacheMisses")
+    @Label("JMX Rule Cache Miss Burst")
+    @Category("JMX Exporter")
+    @Description("A scrape that matched the rules against many attributes that were not in the rule cache")
+    static class RuleCacheMissesEvent extends Event {
+        @Label("Misses")
+        int misses;
+
+        @Label("Cached Rules")
+        int cachedRules;
+    }
+
+    @Name("prometheus.jmx.ConfigReload")
+    @Label("JMX Exporter Config Reload")
+    @Category("JMX Exporter")
+    static class ConfigReloadEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Override
+    Object beginScrape() {
+        ScrapeEvent event = new ScrapeEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endScrape(Object event, boolean restricted, int families, boolean error) {
+        ScrapeEvent scrape = (ScrapeEvent) event;
+        if (scrape.shouldCommit()) {
+            scrape.restricted = restricted;
+            scrape.families = families;
+            scrape.error = error;
+            scrape.commit();
+        }
+    }
+
+    @Override
+    Object beginDiscovery() {
+        DiscoveryEvent event = new DiscoveryEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endDiscovery(Object event, int beans) {
+        DiscoveryEvent discovery = (DiscoveryEvent) event;
+        if (discovery.shouldCommit()) {
+            discovery.beans = beans;
+            discovery.commit();
+        }
+    }
+
+    @Override
+    Object beginBean() {
+        BeanFetchEvent event = new BeanFetchEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endBean(Object event, ObjectName bean, int attributes) {
+        BeanFetchEvent fetch = (BeanFetchEvent) event;
+        fetch.end();
+        // Below the threshold, don't even turn the name into a string.
+        if (fetch.shouldCommit()) {
+            fetch.objectName = bean.toString();
+            fetch.attributes = attributes;
+            fetch.commit();
+        }
+    }
+
+    @Override
+    void ruleCacheMisses(int misses, int cachedRules) {
+        if (misses < RULE_CACHE_MISS_BURST) {
+            return;
+        }
+        RuleCacheMissesEvent event = new RuleCacheMissesEvent();
+        if (event.shouldCommit()) {
+            event.misses = misses;
+            event.cachedRules = cachedRules;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object beginConfigReload() {
+        ConfigReloadEvent event = new ConfigReloadEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endConfigReload(Object event, String file, boolean success) {
+        ConfigReloadEvent reload = (ConfigReloadEvent) event;
+        if (reload.shouldCommit()) {
+            reload.file = file;
+            reload.success = success;
+            reload.commit();
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -19,8 +20,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,6 +43,10 @@ public class JmxCollector extends Collector implements Collector.Describable {
       .name("jmx_config_reload_failure_total")
       .help("Number of times configuration have failed to be reloaded.").register();
 
+    static final Counter scrapesCoalesced = Counter.build()
+      .name("jmx_scrape_coalesced_total")
+      .help("Number of collections that shared the result of a concurrent or recent scrape instead of scraping.").register();
+
     private static final Logger LOGGER = Logger.getLogger(JmxCollector.class.getName());
 
     private static class Rule {
@@ -50,6 +59,34 @@ public class JmxCollector extends Collector implements Collector.Describable {
       Type type = Type.UNTYPED;
       ArrayList<String> labelNames;
       ArrayList<String> labelValues;
+      Aggregation aggregation;
+      int maxSeries;
+      // How the rule is told apart in jmx_series_dropped_total.
+      String label = ".*";
+      // Derived from the above, to restrict scrapes to requested names.
+      ScrapeRestriction.Target target = ScrapeRestriction.Target.ALL;
+      String staticName;
+      String namePrefix;
+      SeriesLimiter.RuleLimit limit;
+
+      /**
+       * @return whether the rule could produce any of the given names.
+       */
+      boolean canProduce(Set<String> names) {
+        if (name == null) {
+          // The default format names metrics after their bean.
+          return true;
+        }
+        if (staticName != null) {
+          return names.contains(staticName);
+        }
+        for (String requested : names) {
+          if (requested.startsWith(namePrefix)) {
+            return true;
+          }
+        }
+        return false;
+      }
     }
 
     private static class Config {
@@ -64,6 +101,32 @@ public class JmxCollector extends Collector implements Collector.Describable {
       List<ObjectName> blacklistObjectNames = new ArrayList<ObjectName>();
       boolean cacheRules = false;
       boolean cacheMBeanAttributeInfo = false;
+      long cacheMBeanAttributeInfoTtlSeconds = 0;
+      long coalesceScrapesWithinMillis = 0;
+      boolean nioHttpServer = false;
+      int httpMaxConnections = MetricsServer.DEFAULT_MAX_CONNECTIONS;
+      int httpMaxConcurrentRequests = MetricsServer.DEFAULT_MAX_CONCURRENT_REQUESTS;
+      RemoteWriter.Config remoteWrite;
+      SnapshotWriter.Config snapshot;
+      boolean bulkExportMBean = false;
+      int maxSeries = 0;
+      SeriesLimiter seriesLimiter;
+      boolean scrapePhaseMetrics = false;
+      // Null unless scrapeCpuBudgetMillis is set.
+      ScrapeBudget scrapeBudget;
+      // Null unless sampleArena is set.
+      SampleArena sampleArena;
+      // Null for a local JVM, or when useBulkExportMBean is false.
+      BulkExport.Replica bulkExport;
+      // Null unless quarantineAfterFailures is set.
+      BeanQuarantine quarantine;
+      ScrapeEvents events = ScrapeEvents.NONE;
+      int maxTabularRows = 0;
+      // Null unless includeAttributes or excludeAttributes is set.
+      AttributeSelection attributeSelection;
+      // Null unless pipelineFetchThreads is set.
+      ScrapePipeline pipeline;
+      boolean refreshMBeanAttributeInfoOnChange = false;
       List<Rule> rules = new ArrayList<Rule>();
       long lastUpdate = 0L;
     }
@@ -73,23 +136,47 @@ public class JmxCollector extends Collector implements Collector.Describable {
     private long createTimeNanoSecs = System.nanoTime();
 
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
-    private final ConcurrentMap<String, MatchedRule> cachedRules = new ConcurrentHashMap<String, MatchedRule>();
+    private final GenerationCache<String, MatchedRule> cachedRules =
+        new GenerationCache<String, MatchedRule>(JmxMBeanPropertyCache.SWEEP_INTERVAL);
+    // Single-flight state: the scrape in progress, and the result and end time of the last successful one.
+    private final Object scrapeLock = new Object();
+    private FutureTask<List<MetricFamilySamples>> inFlightScrape;
+    private List<MetricFamilySamples> lastScrapeResult;
+    private long lastScrapeEndNanos;
+    // Null to scrape on the threads calling collect().
+    private volatile ExecutorService scrapeExecutor;
+
+    private final LabelDeduplicator labelDeduplicator = new LabelDeduplicator(100000, 10000);
+
+    private static final ThreadLocal<Set<String>> requestedNames = new ThreadLocal<Set<String>>();
 
     public JmxCollector(File in) throws IOException, MalformedObjectNameException {
         configFile = in;
         config = loadConfig((Map<String, Object>)new Yaml().load(new FileReader(in)));
         config.lastUpdate = configFile.lastModified();
+        configurePropertyCache();
     }
 
     public JmxCollector(String yamlConfig) throws MalformedObjectNameException {
         config = loadConfig((Map<String, Object>)new Yaml().load(yamlConfig));
+        configurePropertyCache();
     }
 
     public JmxCollector(InputStream inputStream) throws MalformedObjectNameException {
       config = loadConfig((Map<String, Object>)new Yaml().load(inputStream));
+      configurePropertyCache();
+    }
+
+    private void configurePropertyCache() {
+      jmxMBeanPropertyCache.setCacheAttributeInfo(config.cacheMBeanAttributeInfo);
+      jmxMBeanPropertyCache.setAttributeInfoTtl(config.cacheMBeanAttributeInfoTtlSeconds, config.refreshMBeanAttributeInfoOnChange);
+      jmxMBeanPropertyCache.setAttributeSelection(config.attributeSelection);
     }
 
     private void reloadConfig() {
+      ScrapeEvents events = config.events;
+      Object event = events.beginConfigReload();
+      boolean success = false;
       try {
         FileReader fr = new FileReader(configFile);
 
@@ -98,6 +185,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
           config = loadConfig(newYamlConfig);
           config.lastUpdate = configFile.lastModified();
           configReloadSuccess.inc();
+          success = true;
         } catch (Exception e) {
           LOGGER.severe("Configuration reload failed: " + e.toString());
           configReloadFailure.inc();
@@ -109,6 +197,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
         LOGGER.severe("Configuration reload failed: " + e.toString());
         configReloadFailure.inc();
       }
+      events.endConfigReload(event, configFile.getPath(), success);
     }
 
     private Config loadConfig(Map<String, Object> yamlConfig) throws MalformedObjectNameException {
@@ -178,6 +267,126 @@ public class JmxCollector extends Collector implements Collector.Describable {
           cfg.cacheMBeanAttributeInfo = (Boolean)yamlConfig.get("cacheMBeanAttributeInfo");
         }
 
+        if (yamlConfig.containsKey("cacheMBeanAttributeInfoTtlSeconds")) {
+          cfg.cacheMBeanAttributeInfoTtlSeconds = ((Number)yamlConfig.get("cacheMBeanAttributeInfoTtlSeconds")).longValue();
+          if (cfg.cacheMBeanAttributeInfoTtlSeconds < 0) {
+            throw new IllegalArgumentException("cacheMBeanAttributeInfoTtlSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("coalesceScrapesWithinMillis")) {
+          cfg.coalesceScrapesWithinMillis = ((Number)yamlConfig.get("coalesceScrapesWithinMillis")).longValue();
+          if (cfg.coalesceScrapesWithinMillis < 0) {
+            throw new IllegalArgumentException("coalesceScrapesWithinMillis must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("quarantineAfterFailures")) {
+          int afterFailures = ((Number)yamlConfig.get("quarantineAfterFailures")).intValue();
+          long scrapes = 4;
+          if (yamlConfig.containsKey("quarantineScrapes")) {
+            scrapes = ((Number)yamlConfig.get("quarantineScrapes")).longValue();
+          }
+          if (afterFailures <= 0 || scrapes <= 0) {
+            throw new IllegalArgumentException("quarantineAfterFailures and quarantineScrapes must be positive");
+          }
+          cfg.quarantine = new BeanQuarantine(afterFailures, scrapes);
+        }
+
+        cfg.attributeSelection = AttributeSelection.fromYaml(yamlConfig.get("includeAttributes"),
+            yamlConfig.get("excludeAttributes"));
+
+        if (yamlConfig.containsKey("maxTabularRows")) {
+          cfg.maxTabularRows = ((Number)yamlConfig.get("maxTabularRows")).intValue();
+          if (cfg.maxTabularRows <= 0) {
+            throw new IllegalArgumentException("maxTabularRows must be positive");
+          }
+        }
+
+        if (yamlConfig.containsKey("flightRecorderEvents") && (Boolean)yamlConfig.get("flightRecorderEvents")) {
+          cfg.events = ScrapeEvents.flightRecorder();
+        }
+
+        if (yamlConfig.containsKey("scrapePhaseMetrics")) {
+          cfg.scrapePhaseMetrics = (Boolean)yamlConfig.get("scrapePhaseMetrics");
+        }
+
+        if (yamlConfig.containsKey("scrapeCpuBudgetMillis")) {
+          long budgetMillis = ((Number)yamlConfig.get("scrapeCpuBudgetMillis")).longValue();
+          long intervalSeconds = 60;
+          if (yamlConfig.containsKey("scrapeCpuBudgetIntervalSeconds")) {
+            intervalSeconds = ((Number)yamlConfig.get("scrapeCpuBudgetIntervalSeconds")).longValue();
+          }
+          if (budgetMillis <= 0 || intervalSeconds <= 0) {
+            throw new IllegalArgumentException("scrapeCpuBudgetMillis and scrapeCpuBudgetIntervalSeconds must be positive");
+          }
+          cfg.scrapeBudget = new ScrapeBudget(budgetMillis, intervalSeconds);
+        }
+
+        // After the budget, which the fetch workers are charged to.
+        if (yamlConfig.containsKey("pipelineFetchThreads")) {
+          int threads = ((Number)yamlConfig.get("pipelineFetchThreads")).intValue();
+          int queueSize = 1024;
+          if (yamlConfig.containsKey("pipelineQueueSize")) {
+            queueSize = ((Number)yamlConfig.get("pipelineQueueSize")).intValue();
+          }
+          if (threads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("pipelineFetchThreads and pipelineQueueSize must be positive");
+          }
+          cfg.pipeline = new ScrapePipeline(threads, queueSize, cfg.scrapeBudget);
+        }
+
+        // Targets without the bean only cost a failed invoke every few minutes.
+        if (!cfg.jmxUrl.isEmpty() && (!yamlConfig.containsKey("useBulkExportMBean")
+            || (Boolean)yamlConfig.get("useBulkExportMBean"))) {
+          cfg.bulkExport = new BulkExport.Replica();
+        }
+
+        if (yamlConfig.containsKey("bulkExportMBean")) {
+          cfg.bulkExportMBean = (Boolean)yamlConfig.get("bulkExportMBean");
+        }
+
+        if (yamlConfig.containsKey("sampleArena") && (Boolean)yamlConfig.get("sampleArena")) {
+          cfg.sampleArena = new SampleArena();
+        }
+
+        if (yamlConfig.containsKey("nioHttpServer")) {
+          cfg.nioHttpServer = (Boolean)yamlConfig.get("nioHttpServer");
+        }
+
+        if (yamlConfig.containsKey("httpMaxConnections")) {
+          cfg.httpMaxConnections = ((Number)yamlConfig.get("httpMaxConnections")).intValue();
+          if (cfg.httpMaxConnections <= 0) {
+            throw new IllegalArgumentException("httpMaxConnections must be positive");
+          }
+        }
+
+        if (yamlConfig.containsKey("httpMaxConcurrentRequests")) {
+          cfg.httpMaxConcurrentRequests = ((Number)yamlConfig.get("httpMaxConcurrentRequests")).intValue();
+          if (cfg.httpMaxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("httpMaxConcurrentRequests must be positive");
+          }
+        }
+
+        if (yamlConfig.containsKey("maxSeries")) {
+          cfg.maxSeries = ((Number)yamlConfig.get("maxSeries")).intValue();
+          if (cfg.maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries must be positive");
+          }
+        }
+
+        if (yamlConfig.containsKey("remoteWrite")) {
+          cfg.remoteWrite = RemoteWriter.Config.fromYaml((Map<String, Object>) yamlConfig.get("remoteWrite"));
+        }
+
+        if (yamlConfig.containsKey("snapshot")) {
+          cfg.snapshot = SnapshotWriter.Config.fromYaml((Map<String, Object>) yamlConfig.get("snapshot"));
+        }
+
+        if (yamlConfig.containsKey("refreshMBeanAttributeInfoOnChange")) {
+          cfg.refreshMBeanAttributeInfoOnChange = (Boolean)yamlConfig.get("refreshMBeanAttributeInfoOnChange");
+        }
+
       if (yamlConfig.containsKey("rules")) {
           List<Map<String,Object>> configRules = (List<Map<String,Object>>) yamlConfig.get("rules");
           for (Map<String, Object> ruleObject : configRules) {
@@ -220,34 +429,124 @@ public class JmxCollector extends Collector implements Collector.Describable {
               }
             }
 
+            if (yamlRule.containsKey("maxSeries")) {
+              rule.maxSeries = ((Number)yamlRule.get("maxSeries")).intValue();
+              if (rule.maxSeries <= 0) {
+                throw new IllegalArgumentException("maxSeries must be positive: " + yamlRule);
+              }
+            }
+            if (yamlRule.containsKey("aggregate")) {
+              rule.aggregation = Aggregation.fromYaml(yamlRule.get("aggregate"), cfg.lowercaseOutputLabelNames);
+            }
+
             // Validation.
-            if ((rule.labelNames != null || rule.help != null) && rule.name == null) {
-              throw new IllegalArgumentException("Must provide name, if help or labels are given: " + yamlRule);
+            if ((rule.labelNames != null || rule.help != null || rule.aggregation != null) && rule.name == null) {
+              throw new IllegalArgumentException("Must provide name, if help, labels or aggregate are given: " + yamlRule);
             }
             if (rule.name != null && rule.pattern == null) {
               throw new IllegalArgumentException("Must provide pattern, if name is given: " + yamlRule);
             }
+
+            rule.target = ScrapeRestriction.ofPattern((String)yamlRule.get("pattern"), rule.attrNameSnakeCase);
+            rule.label = yamlRule.containsKey("pattern") ? (String)yamlRule.get("pattern") : ".*";
+            if (rule.name != null) {
+              // Sanitising and lowercasing a name keeps its prefix, so names with references start with this.
+              int reference = rule.name.length();
+              for (int i = 0; i < rule.name.length(); i++) {
+                if (rule.name.charAt(i) == '$' || rule.name.charAt(i) == '\\') {
+                  reference = i;
+                  break;
+                }
+              }
+              String prefix = safeName(rule.name.substring(0, reference));
+              if (cfg.lowercaseOutputName) {
+                prefix = lowerCaseName(prefix);
+              }
+              if (reference == rule.name.length()) {
+                rule.staticName = prefix;
+              } else {
+                rule.namePrefix = prefix;
+              }
+            }
           }
         } else {
           // Default to a single default rule.
           cfg.rules.add(new Rule());
         }
 
+        boolean limited = cfg.maxSeries > 0;
+        for (Rule rule : cfg.rules) {
+          limited |= rule.maxSeries > 0;
+        }
+        if (limited) {
+          List<SeriesLimiter.RuleLimit> limits = new ArrayList<SeriesLimiter.RuleLimit>();
+          for (Rule rule : cfg.rules) {
+            rule.limit = new SeriesLimiter.RuleLimit(rule.label, rule.maxSeries, rule.target);
+            limits.add(rule.limit);
+          }
+          cfg.seriesLimiter = new SeriesLimiter(cfg.maxSeries, limits);
+        }
+
         return cfg;
 
     }
 
+    // Bounds for the name normalisation caches. Real configurations produce a few thousand distinct names.
+    private static final int MAX_CACHED_NAMES = 50000;
+
+    private static final NormalisationCache SNAKE_CASE_NAMES = new NormalisationCache(MAX_CACHED_NAMES) {
+      @Override
+      protected String normalise(String attrName) {
+        return computeSnakeAndLowerCase(attrName);
+      }
+    };
+
+    private static final NormalisationCache SAFE_NAMES = new NormalisationCache(MAX_CACHED_NAMES) {
+      @Override
+      protected String normalise(String name) {
+        return computeSafeName(name);
+      }
+    };
+
+    private static final NormalisationCache LOWER_CASE_NAMES = new NormalisationCache(MAX_CACHED_NAMES) {
+      @Override
+      protected String normalise(String name) {
+        return name.toLowerCase();
+      }
+    };
+
+    // Lookup table for the characters allowed in metric and label names: [a-zA-Z0-9:_].
+    private static final boolean[] LEGAL_CHARACTERS = new boolean[128];
+    static {
+      for (char c = 'a'; c <= 'z'; c++) {
+        LEGAL_CHARACTERS[c] = true;
+      }
+      for (char c = 'A'; c <= 'Z'; c++) {
+        LEGAL_CHARACTERS[c] = true;
+      }
+      for (char c = '0'; c <= '9'; c++) {
+        LEGAL_CHARACTERS[c] = true;
+      }
+      LEGAL_CHARACTERS[':'] = true;
+      LEGAL_CHARACTERS['_'] = true;
+    }
+
     static String toSnakeAndLowerCase(String attrName) {
       if (attrName == null || attrName.isEmpty()) {
         return attrName;
       }
-      char firstChar = attrName.subSequence(0, 1).charAt(0);
+      return SNAKE_CASE_NAMES.get(attrName);
+    }
+
+    private static String computeSnakeAndLowerCase(String attrName) {
+      char firstChar = attrName.charAt(0);
       boolean prevCharIsUpperCaseOrUnderscore = Character.isUpperCase(firstChar) || firstChar == '_';
-      StringBuilder resultBuilder = new StringBuilder(attrName.length()).append(Character.toLowerCase(firstChar));
-      for (char attrChar : attrName.substring(1).toCharArray()) {
+      StringBuilder resultBuilder = new StringBuilder(attrName.length() + 4).append(Character.toLowerCase(firstChar));
+      for (int i = 1; i < attrName.length(); i++) {
+        char attrChar = attrName.charAt(i);
         boolean charIsUpperCase = Character.isUpperCase(attrChar);
         if (!prevCharIsUpperCaseOrUnderscore && charIsUpperCase) {
-          resultBuilder.append("_");
+          resultBuilder.append('_');
         }
         resultBuilder.append(Character.toLowerCase(attrChar));
         prevCharIsUpperCaseOrUnderscore = charIsUpperCase || attrChar == '_';
@@ -258,25 +557,34 @@ public class JmxCollector extends Collector implements Collector.Describable {
   /**
    * Change invalid chars to underscore, and merge underscores.
    * @param name Input string
-   * @return
+   * @return the sanitised name, a shared instance for names seen before.
    */
   static String safeName(String name) {
-      if (name == null) {
-        return null;
-      }
+      return SAFE_NAMES.get(name);
+    }
+
+  /**
+   * Lowercase a metric or label name, returning a shared instance for names seen before.
+   */
+  static String lowerCaseName(String name) {
+      return LOWER_CASE_NAMES.get(name);
+    }
+
+  private static String computeSafeName(String name) {
       boolean prevCharIsUnderscore = false;
-      StringBuilder safeNameBuilder = new StringBuilder(name.length());
+      StringBuilder safeNameBuilder = new StringBuilder(name.length() + 1);
       if (!name.isEmpty() && Character.isDigit(name.charAt(0))) {
         // prevent a numeric prefix.
-        safeNameBuilder.append("_");
+        safeNameBuilder.append('_');
       }
-      for (char nameChar : name.toCharArray()) {
+      for (int i = 0; i < name.length(); i++) {
+        char nameChar = name.charAt(i);
         boolean isUnsafeChar = !JmxCollector.isLegalCharacter(nameChar);
         if ((isUnsafeChar || nameChar == '_')) {
           if (prevCharIsUnderscore) {
             continue;
           } else {
-            safeNameBuilder.append("_");
+            safeNameBuilder.append('_');
             prevCharIsUnderscore = true;
           }
         } else {
@@ -289,23 +597,57 @@ public class JmxCollector extends Collector implements Collector.Describable {
     }
 
   private static boolean isLegalCharacter(char input) {
-    return ((input == ':') ||
-            (input == '_') ||
-            (input >= 'a' && input <= 'z') ||
-            (input >= 'A' && input <= 'Z') ||
-            (input >= '0' && input <= '9'));
+    return input < LEGAL_CHARACTERS.length && LEGAL_CHARACTERS[input];
   }
 
+    /**
+     * An aggregated series: the rule of its first sample and the value so far.
+     */
+    private static final class Aggregate {
+      final MatchedRule rule;
+      final String help;
+      double value;
+
+      Aggregate(MatchedRule rule, String help, double value) {
+        this.rule = rule;
+        this.help = help;
+        this.value = value;
+      }
+    }
+
     class Receiver implements JmxScraper.MBeanReceiver {
       Map<String, MetricFamilySamples> metricFamilySamplesMap =
         new HashMap<String, MetricFamilySamples>();
 
-      ConcurrentMap<String, MatchedRule> cachedRules;
+      GenerationCache<String, MatchedRule> cachedRules;
+
+      // Aggregated series, in the order they were first seen, until they are added by addAggregates().
+      private final Map<SeriesLimiter.SeriesKey, Aggregate> aggregates =
+        new LinkedHashMap<SeriesLimiter.SeriesKey, Aggregate>();
+
+      // The series admitted so far, null without limits.
+      private final SeriesLimiter.Scrape limits;
+
+      // Where samples are written instead of metricFamilySamplesMap, if set.
+      private final SampleArena arena;
+
+      // Attributes whose rule was looked up in the rule cache, but not found.
+      int ruleCacheMisses;
 
       private static final char SEP = '_';
 
-      Receiver(ConcurrentMap<String, MatchedRule> cachedRules) {
+      Receiver(GenerationCache<String, MatchedRule> cachedRules) {
+        this(cachedRules, null);
+      }
+
+      Receiver(GenerationCache<String, MatchedRule> cachedRules, SeriesLimiter.Scrape limits) {
+        this(cachedRules, limits, null);
+      }
+
+      Receiver(GenerationCache<String, MatchedRule> cachedRules, SeriesLimiter.Scrape limits, SampleArena arena) {
         this.cachedRules = cachedRules;
+        this.limits = limits;
+        this.arena = arena;
       }
 
       // [] and () are special in regexes, so swtich to <>.
@@ -324,15 +666,56 @@ public class JmxCollector extends Collector implements Collector.Describable {
         mfs.samples.add(sample);
       }
 
+      /**
+       * Add a sample to the series of its aggregate.
+       */
+      private void aggregate(MatchedRule rule, String help, double value) {
+        SeriesLimiter.SeriesKey key = new SeriesLimiter.SeriesKey(rule.name, rule.labelNames, rule.labelValues);
+        Aggregate aggregate = aggregates.get(key);
+        if (aggregate == null) {
+          aggregates.put(key, new Aggregate(rule, help, rule.aggregation.initial(value)));
+        } else {
+          aggregate.value = rule.aggregation.combine(aggregate.value, value);
+        }
+      }
+
+      /**
+       * Add the aggregated series as samples, once all beans were recorded.
+       */
+      void addAggregates() {
+        for (Map.Entry<SeriesLimiter.SeriesKey, Aggregate> entry : aggregates.entrySet()) {
+          Aggregate aggregate = entry.getValue();
+          if (!admit(aggregate.rule, entry.getKey())) {
+            continue;
+          }
+          Type type = aggregate.rule.aggregation.op == Aggregation.Op.COUNT ? Type.GAUGE : aggregate.rule.type;
+          if (arena != null) {
+            arena.write(aggregate.rule, aggregate.value, type, aggregate.help);
+            continue;
+          }
+          addSample(new MetricFamilySamples.Sample(aggregate.rule.name, aggregate.rule.labelNames,
+              aggregate.rule.labelValues, aggregate.value), type, aggregate.help);
+        }
+        aggregates.clear();
+      }
+
+      /**
+       * @return whether the limits allow a sample of the series.
+       */
+      private boolean admit(MatchedRule rule, SeriesLimiter.SeriesKey key) {
+        return limits == null || rule.limit == null || limits.admit(rule.limit, key);
+      }
+
       private MatchedRule defaultExport(
           String domain,
-          LinkedHashMap<String, String> beanProperties,
+          Map<String, String> beanProperties,
           LinkedList<String> attrKeys,
           String attrName,
           String help,
           Double value,
           double valueFactor,
-          Type type) {
+          Type type,
+          SeriesLimiter.RuleLimit limit) {
         StringBuilder name = new StringBuilder();
         name.append(domain);
         if (beanProperties.size() > 0) {
@@ -348,7 +731,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
         String fullname = safeName(name.toString());
 
         if (config.lowercaseOutputName) {
-          fullname = fullname.toLowerCase();
+          fullname = lowerCaseName(fullname);
         }
 
         List<String> labelNames = new ArrayList<String>();
@@ -361,19 +744,19 @@ public class JmxCollector extends Collector implements Collector.Describable {
               Map.Entry<String, String> entry = iter.next();
               String labelName = safeName(entry.getKey());
               if (config.lowercaseOutputLabelNames) {
-                labelName = labelName.toLowerCase();
+                labelName = lowerCaseName(labelName);
               }
               labelNames.add(labelName);
-              labelValues.add(entry.getValue());
+              labelValues.add(labelDeduplicator.value(entry.getValue()));
             }
         }
 
-        return new MatchedRule(fullname, type, help, labelNames, labelValues, value, valueFactor);
+        return new MatchedRule(fullname, type, help, labelDeduplicator.names(labelNames), labelValues, value, valueFactor, null, limit);
       }
 
       public void recordBean(
           String domain,
-          LinkedHashMap<String, String> beanProperties,
+          Map<String, String> beanProperties,
           LinkedList<String> attrKeys,
           String attrName,
           String attrType,
@@ -389,6 +772,9 @@ public class JmxCollector extends Collector implements Collector.Describable {
         String cacheName = beanName + attrName;
         if (config.cacheRules) {
           matchedRule = cachedRules.get(cacheName);
+          if (matchedRule == null) {
+            ruleCacheMisses++;
+          }
         }
 
         if (matchedRule == null) {
@@ -421,7 +807,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
             // If there's no name provided, use default export format.
             if (rule.name == null) {
-              matchedRule = defaultExport(domain, beanProperties, attrKeys, rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, help, value, rule.valueFactor, rule.type);
+              matchedRule = defaultExport(domain, beanProperties, attrKeys, rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, help, value, rule.valueFactor, rule.type, rule.limit);
               break;
             }
 
@@ -431,7 +817,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
               return;
             }
             if (config.lowercaseOutputName) {
-              name = name.toLowerCase();
+              name = lowerCaseName(name);
             }
 
             // Set the help.
@@ -440,8 +826,8 @@ public class JmxCollector extends Collector implements Collector.Describable {
             }
 
             // Set the labels.
-            ArrayList<String> labelNames = new ArrayList<String>();
-            ArrayList<String> labelValues = new ArrayList<String>();
+            List<String> labelNames = new ArrayList<String>();
+            List<String> labelValues = new ArrayList<String>(rule.labelNames != null ? rule.labelNames.size() : 0);
             if (rule.labelNames != null) {
               for (int i = 0; i < rule.labelNames.size(); i++) {
                 final String unsafeLabelName = rule.labelNames.get(i);
@@ -450,11 +836,11 @@ public class JmxCollector extends Collector implements Collector.Describable {
                   String labelName = safeName(matcher.replaceAll(unsafeLabelName));
                   String labelValue = matcher.replaceAll(labelValReplacement);
                   if (config.lowercaseOutputLabelNames) {
-                    labelName = labelName.toLowerCase();
+                    labelName = lowerCaseName(labelName);
                   }
                   if (!labelName.isEmpty() && !labelValue.isEmpty()) {
                     labelNames.add(labelName);
-                    labelValues.add(labelValue);
+                    labelValues.add(labelDeduplicator.value(labelValue));
                   }
                 } catch (Exception e) {
                   throw new RuntimeException(
@@ -463,7 +849,18 @@ public class JmxCollector extends Collector implements Collector.Describable {
               }
             }
 
-            matchedRule = new MatchedRule(name, rule.type, help, labelNames, labelValues, value, rule.valueFactor);
+            if (rule.aggregation != null) {
+              // Only the labels that are aggregated by identify the series.
+              List<String> keptNames = new ArrayList<String>();
+              List<String> keptValues = new ArrayList<String>();
+              for (int i : rule.aggregation.keep(labelNames)) {
+                keptNames.add(labelNames.get(i));
+                keptValues.add(labelValues.get(i));
+              }
+              labelNames = keptNames;
+              labelValues = keptValues;
+            }
+            matchedRule = new MatchedRule(name, rule.type, help, labelDeduplicator.names(labelNames), labelValues, value, rule.valueFactor, rule.aggregation, rule.limit);
             break;
           }
 
@@ -495,43 +892,306 @@ public class JmxCollector extends Collector implements Collector.Describable {
           return;
         }
 
+        if (matchedRule.aggregation != null) {
+          aggregate(matchedRule, help, value.doubleValue());
+          return;
+        }
+
+        if (matchedRule.limit != null && limits != null && !limits.admit(matchedRule.limit,
+            new SeriesLimiter.SeriesKey(matchedRule.name, matchedRule.labelNames, matchedRule.labelValues))) {
+          return;
+        }
+
         // Add to samples.
         LOGGER.fine("add metric sample: " + matchedRule.name + " " + matchedRule.labelNames + " " + matchedRule.labelValues + " " + value.doubleValue());
+        if (arena != null) {
+          arena.write(matchedRule, value.doubleValue(), matchedRule.type, help);
+          return;
+        }
         addSample(new MetricFamilySamples.Sample(matchedRule.name, matchedRule.labelNames, matchedRule.labelValues, value.doubleValue()), matchedRule.type, help);
       }
 
     }
 
+  /**
+   * @return whether scrapes are still refused because of startDelaySeconds.
+   */
+  boolean waitingForStartDelay() {
+    return config.startDelaySeconds > 0
+        && (System.nanoTime() - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds;
+  }
+
+  /**
+   * @return how long, in milliseconds, the result of a scrape is reused for.
+   */
+  long coalesceScrapesWithinMillis() {
+    return config.coalesceScrapesWithinMillis;
+  }
+
+  // The HTTP server settings only apply when the server is started, not on reload.
+  boolean nioHttpServer() {
+    return config.nioHttpServer;
+  }
+
+  int httpMaxConnections() {
+    return config.httpMaxConnections;
+  }
+
+  int httpMaxConcurrentRequests() {
+    return config.httpMaxConcurrentRequests;
+  }
+
+  // Like the HTTP server settings, push only picks up the configuration it was started with.
+  RemoteWriter.Config remoteWriteConfig() {
+    return config.remoteWrite;
+  }
+
+  SnapshotWriter.Config snapshotConfig() {
+    return config.snapshot;
+  }
+
+  /**
+   * @return whether the agent should register the {@link BulkExport} bean for remote exporters.
+   */
+  boolean bulkExportMBean() {
+    return config.bulkExportMBean;
+  }
+
+  /**
+   * Limit the collections made on the current thread to the given metric names, or lift the limit with null.
+   * <p>
+   * The HTTP servers set this while they collect the registry for a {@code name[]} request. Other samples may
+   * still be returned, so callers filter the result.
+   */
+  static void setRequestedNames(Set<String> names) {
+    if (names == null || names.isEmpty()) {
+      requestedNames.remove();
+    } else {
+      requestedNames.set(names);
+    }
+  }
+
+  /**
+   * @return the beans and attributes that can produce the given names.
+   */
+  ScrapeRestriction restrictionFor(Set<String> names) {
+    List<ScrapeRestriction.Target> targets = new ArrayList<ScrapeRestriction.Target>();
+    for (Rule rule : config.rules) {
+      if (rule.canProduce(names)) {
+        targets.add(rule.target);
+      }
+    }
+    return new ScrapeRestriction(targets);
+  }
+
+  /**
+   * Scrape the target, or share the result of another scrape.
+   * <p>
+   * Calls that arrive while a scrape is in progress wait for it and return its result, so concurrent scrapers
+   * such as HA Prometheus pairs don't multiply the load on the target. If {@code coalesceScrapesWithinMillis}
+   * is set, calls arriving that soon after a scrape finished also reuse its result.
+   * <p>
+   * If the thread {@linkplain #setRequestedNames requested} only some names, and the rules that can produce
+   * them are limited to some beans or attributes, just those are scraped.
+   * <p>
+   * Each call gets its own lists of families and samples, as callers such as
+   * {@link io.prometheus.client.CollectorRegistry#filteredMetricFamilySamples} remove samples from them.
+   */
   public List<MetricFamilySamples> collect() {
+    FutureTask<List<MetricFamilySamples>> scrape;
+    boolean owner = false;
+    ScrapeRestriction restriction = null;
+    synchronized (scrapeLock) {
+      long window = config.coalesceScrapesWithinMillis * 1000000L;
+      if (window > 0 && lastScrapeResult != null && System.nanoTime() - lastScrapeEndNanos < window) {
+        scrapesCoalesced.inc();
+        return copy(lastScrapeResult);
+      }
+      ScrapeBudget budget = config.scrapeBudget;
+      if (budget != null && lastScrapeResult != null && inFlightScrape == null && budget.isExhausted()) {
+        ScrapeBudget.exceeded.inc();
+        return copy(lastScrapeResult);
+      }
+      Set<String> names = requestedNames.get();
+      if (names != null) {
+        restriction = restrictionFor(names);
+      }
+    }
+    if (restriction != null && !restriction.isAll()) {
+      // Partial results are neither shared nor reused.
+      final ScrapeRestriction partial = restriction;
+      scrape = new FutureTask<List<MetricFamilySamples>>(new Callable<List<MetricFamilySamples>>() {
+        public List<MetricFamilySamples> call() {
+          return measuredScrape(partial);
+        }
+      });
+      start(scrape);
+      return result(scrape);
+    }
+
+    synchronized (scrapeLock) {
+      if (inFlightScrape != null) {
+        scrape = inFlightScrape;
+        scrapesCoalesced.inc();
+      } else {
+        scrape = new FutureTask<List<MetricFamilySamples>>(new Callable<List<MetricFamilySamples>>() {
+          public List<MetricFamilySamples> call() {
+            List<MetricFamilySamples> result = null;
+            try {
+              result = measuredScrape(null);
+              return result;
+            } finally {
+              synchronized (scrapeLock) {
+                inFlightScrape = null;
+                lastScrapeResult = result;
+                if (result != null) {
+                  lastScrapeEndNanos = System.nanoTime();
+                }
+              }
+            }
+          }
+        });
+        inFlightScrape = scrape;
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      start(scrape);
+    }
+    return copy(result(scrape));
+  }
+
+  /**
+   * @return a copy of a shared scrape result, whose families and sample lists the caller may modify.
+   */
+  private static List<MetricFamilySamples> copy(List<MetricFamilySamples> result) {
+    List<MetricFamilySamples> copy = new ArrayList<MetricFamilySamples>(result.size());
+    for (MetricFamilySamples family : result) {
+      copy.add(new MetricFamilySamples(family.name, family.type, family.help,
+          new ArrayList<MetricFamilySamples.Sample>(family.samples)));
+    }
+    return copy;
+  }
+
+  /**
+   * Run scrapes on a dedicated daemon thread of the lowest priority, rather than on the threads calling
+   * {@link #collect()}, so they compete less with the threads of the application. Used by the agent.
+   */
+  JmxCollector useScrapeThread() {
+    final ThreadFactory threads = MetricsServer.threadFactory("jmx-exporter-scrape-", true);
+    scrapeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = threads.newThread(r);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    return this;
+  }
+
+  private void start(FutureTask<List<MetricFamilySamples>> scrape) {
+    ExecutorService executor = scrapeExecutor;
+    if (executor != null) {
+      executor.execute(scrape);
+    } else {
+      scrape.run();
+    }
+  }
+
+  private static List<MetricFamilySamples> result(FutureTask<List<MetricFamilySamples>> scrape) {
+    try {
+      return scrape.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a JMX scrape", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Scrape, accounting for the CPU time the scrape takes.
+   */
+  private List<MetricFamilySamples> measuredScrape(ScrapeRestriction restriction) {
+    ScrapeBudget budget = config.scrapeBudget;
+    long cpuStart = ScrapeBudget.threadCpuNanos();
+    try {
+      return scrape(restriction);
+    } finally {
+      ScrapeBudget.charge(budget, cpuStart);
+    }
+  }
+
+  private List<MetricFamilySamples> scrape(ScrapeRestriction restriction) {
     if (configFile != null) {
         long mtime = configFile.lastModified();
         if (mtime > config.lastUpdate) {
           LOGGER.fine("Configuration file changed, reloading...");
           reloadConfig();
           cachedRules.clear();  // rules may have changed with the configuration, clear the rule cache
-          jmxMBeanPropertyCache.setCacheAttributeInfo(config.cacheMBeanAttributeInfo);
+          labelDeduplicator.clear();
+          configurePropertyCache();
         }
       }
 
-      Receiver receiver = new Receiver(cachedRules);
+      ScrapeEvents events = config.events;
+      Object scrapeEvent = events.beginScrape();
+      SeriesLimiter.Scrape limits = config.seriesLimiter != null ? config.seriesLimiter.startScrape() : null;
+      // Partial scrapes would drop the series they don't see from the arena.
+      SampleArena arena = restriction == null ? config.sampleArena : null;
+      if (arena != null) {
+        arena.startScrape();
+      }
+      Receiver receiver = new Receiver(cachedRules, limits, arena);
+      // Quarantines last a number of full scrapes, which frequent partial scrapes would cut short.
+      if (config.quarantine != null && restriction == null) {
+        config.quarantine.startScrape();
+      }
+      ScrapePhases phases = config.scrapePhaseMetrics ? new ScrapePhases() : null;
+      // Filtered scrapes see only some series, they don't decide which series to keep.
       JmxScraper scraper = new JmxScraper(config.jmxUrl, config.username, config.password, config.ssl,
-              config.whitelistObjectNames, config.blacklistObjectNames, receiver, jmxMBeanPropertyCache);
+              config.whitelistObjectNames, config.blacklistObjectNames, receiver, jmxMBeanPropertyCache, restriction,
+              restriction == null ? limits : null, phases, config.bulkExport, config.quarantine, events,
+              config.maxTabularRows, config.pipeline);
       long start = System.nanoTime();
       double error = 0;
-      if ((config.startDelaySeconds > 0) &&
-        ((start - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds)) {
+      if (waitingForStartDelay()) {
         throw new IllegalStateException("JMXCollector waiting for startDelaySeconds");
       }
       try {
         scraper.doScrape();
+        if (phases != null) {
+          phases.enter(ScrapePhases.Phase.RULE_MATCHING);
+        }
+        receiver.addAggregates();
+        if (limits != null && restriction == null) {
+          limits.commit();
+        }
       } catch (Exception e) {
         error = 1;
         StringWriter sw = new StringWriter();
         e.printStackTrace(new PrintWriter(sw));
         LOGGER.severe("JMX scrape failed: " + sw.toString());
       }
+      if (config.cacheRules && error == 0 && restriction == null) {
+        // Evict the rules of beans that were not seen in this scrape.
+        cachedRules.endGeneration();
+      }
+      if (config.cacheRules) {
+        events.ruleCacheMisses(receiver.ruleCacheMisses, cachedRules.size());
+      }
       List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
-      mfsList.addAll(receiver.metricFamilySamplesMap.values());
+      mfsList.addAll(arena != null ? arena.flip() : receiver.metricFamilySamplesMap.values());
+      if (phases != null) {
+        phases.end();
+      }
       List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "jmx_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
@@ -547,14 +1207,27 @@ public class JmxCollector extends Collector implements Collector.Describable {
                 "jmx_scrape_cached_beans", new ArrayList<String>(), new ArrayList<String>(), cachedRules.size()));
         mfsList.add(new MetricFamilySamples("jmx_scrape_cached_beans", Type.GAUGE, "Number of beans with their matching rule cached", samples));
       }
+      if (config.quarantine != null) {
+        mfsList.add(config.quarantine.quarantined());
+      }
+      events.endScrape(scrapeEvent, restriction != null, mfsList.size(), error != 0);
       return mfsList;
     }
 
+    /**
+     * Describe the scrape metrics. The metrics of the rules are not described, even when their names are known up
+     * front, as registering them would fail for rules named like the metrics of other collectors. The servers of
+     * the agent and standalone exporter pass {@code name[]} to {@link #collect()} through
+     * {@link #setRequestedNames} instead.
+     */
     public List<MetricFamilySamples> describe() {
       List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_cached_beans", Type.GAUGE, "Number of beans with their matching rule cached", new ArrayList<MetricFamilySamples.Sample>()));
+      if (config.quarantine != null) {
+        sampleFamilies.add(BeanQuarantine.quarantinedFamily(new ArrayList<MetricFamilySamples.Sample>()));
+      }
       return sampleFamilies;
     }
 
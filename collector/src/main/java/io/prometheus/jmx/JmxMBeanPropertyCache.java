@@ -1,106 +1,198 @@
 package io.prometheus.jmx;
 
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.logging.Logger;
+import javax.management.Descriptor;
 import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 
 /**
  * This object stores a mapping of mBean objectNames to mBean key property lists. The main purpose of it is to reduce
- * the frequency with which we invoke PROPERTY_PATTERN when discovering mBeans.
+ * the frequency with which we parse the key property list string when discovering mBeans.
  */
 class JmxMBeanPropertyCache {
-    private static final Pattern PROPERTY_PATTERN = Pattern.compile(
-            "([^,=:\\*\\?]+)" + // Name - non-empty, anything but comma, equals, colon, star, or question mark
-                    "=" +  // Equals
-                    "(" + // Either
-                    "\"" + // Quoted
-                    "(?:" + // A possibly empty sequence of
-                    "[^\\\\\"]*" + // Greedily match anything but backslash or quote
-                    "(?:\\\\.)?" + // Greedily see if we can match an escaped sequence
-                    ")*" +
-                    "\"" +
-                    "|" + // Or
-                    "[^,=:\"]*" + // Unquoted - can be empty, anything but comma, equals, colon, or quote
-                    ")");
+    private static final Logger LOGGER = Logger.getLogger(JmxMBeanPropertyCache.class.getName());
+
+    private static final String INFO_CHANGED = "jmx.mbean.info.changed";
+
+    // Number of scrapes after which unused entries are swept even if nothing appears to have changed.
+    static final int SWEEP_INTERVAL = 10;
 
     // Implement a version of ObjectName.getKeyPropertyList that returns the
     // properties in the ordered they were added (the ObjectName stores them
     // in the order they were added).
-    private final Map<ObjectName, LinkedHashMap<String, String>> keyPropertiesPerBean;
+    private final GenerationCache<ObjectName, KeyPropertyList> keyPropertiesPerBean;
 
     // Cache mbean attribute info to avoid repetitive calls to the mbean server
-    private final Map<ObjectName, MBeanAttributeInfo[]> attributeInfoPerBean;
+    private final GenerationCache<ObjectName, CachedAttributeInfo> attributeInfoPerBean;
+
+    // Number of beans in the previous scrape, a change forces a sweep of the caches.
+    private int lastBeanCount = -1;
 
-    // Whether to use the attributeInfoPerBean cache.
+    // Whether to cache the attribute info of every bean.
     // Bean information is usually immutable ([1]) and can be cached. However, applications are able to change
     // this information during the lifetime of the process, in which case caching is not recommended.
+    // Beans that declare their info immutable through the immutableInfo descriptor field are always cached.
     //
     // [1] https://docs.oracle.com/javase/8/docs/api/javax/management/MBeanInfo.html
     private boolean cacheAttributeInfo = false;
 
+    // How long to cache the attribute info of beans that do not declare it immutable. Zero disables caching.
+    private long attributeInfoTtlNanos = 0;
+
+    // Whether to invalidate cached attribute info on jmx.mbean.info.changed notifications.
+    private boolean refreshAttributeInfoOnChange = false;
+
+    // The attributes to read of each bean, null for all of them. Applied before caching the attributes.
+    private AttributeSelection attributeSelection;
+
+    // Beans of the local MBean server that we listen to for info changes.
+    private final Set<ObjectName> listeningForInfoChanges =
+            Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+
+    private final NotificationListener infoChangedListener = new NotificationListener() {
+        public void handleNotification(Notification notification, Object handback) {
+            attributeInfoPerBean.remove((ObjectName) handback);
+        }
+    };
+
+    private static class CachedAttributeInfo {
+        final MBeanAttributeInfo[] attributes;
+        final long expiresAtNanos;
+        final boolean expires;
+
+        CachedAttributeInfo(MBeanAttributeInfo[] attributes, boolean expires, long expiresAtNanos) {
+            this.attributes = attributes;
+            this.expires = expires;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return expires && nowNanos - expiresAtNanos >= 0;
+        }
+    }
+
     public JmxMBeanPropertyCache() {
         this(false);
     }
 
     public JmxMBeanPropertyCache(boolean cacheAttributeInfo) {
-        this.keyPropertiesPerBean = new ConcurrentHashMap<ObjectName, LinkedHashMap<String, String>>();
-        this.attributeInfoPerBean = new ConcurrentHashMap<ObjectName, MBeanAttributeInfo[]>();
+        this.keyPropertiesPerBean = new GenerationCache<ObjectName, KeyPropertyList>(SWEEP_INTERVAL);
+        this.attributeInfoPerBean = new GenerationCache<ObjectName, CachedAttributeInfo>(SWEEP_INTERVAL);
         this.cacheAttributeInfo = cacheAttributeInfo;
     }
 
-    Map<ObjectName, LinkedHashMap<String, String>> getKeyPropertiesPerBean() {
-        return keyPropertiesPerBean;
+    Map<ObjectName, KeyPropertyList> getKeyPropertiesPerBean() {
+        return keyPropertiesPerBean.snapshot();
     }
 
-    public LinkedHashMap<String, String> getKeyPropertyList(ObjectName mbeanName) {
-        LinkedHashMap<String, String> keyProperties = keyPropertiesPerBean.get(mbeanName);
+    public Map<String, String> getKeyPropertyList(ObjectName mbeanName) {
+        KeyPropertyList keyProperties = keyPropertiesPerBean.get(mbeanName);
         if (keyProperties == null) {
-            keyProperties = new LinkedHashMap<String, String>();
-            String properties = mbeanName.getKeyPropertyListString();
-            Matcher match = PROPERTY_PATTERN.matcher(properties);
-            while (match.lookingAt()) {
-                keyProperties.put(match.group(1), match.group(2));
-                properties = properties.substring(match.end());
-                if (properties.startsWith(",")) {
-                    properties = properties.substring(1);
-                }
-                match.reset(properties);
-            }
+            keyProperties = KeyPropertyList.parse(mbeanName.getKeyPropertyListString());
             keyPropertiesPerBean.put(mbeanName, keyProperties);
         }
         return keyProperties;
     }
 
+    /**
+     * Get the attributes of a bean, from the cache if possible.
+     * <p>
+     * Beans whose MBeanInfo descriptor has {@code immutableInfo=true}, as is the case for platform MXBeans and most
+     * standard MBeans, are cached indefinitely. Other beans are cached for the configured TTL, or indefinitely if
+     * caching of all attribute info is enabled.
+     * <p>
+     * Only the attributes of the {@link AttributeSelection} are returned.
+     */
     public MBeanAttributeInfo[] getAttributes(ObjectName mbeanName, MBeanServerConnection beanConn) throws Exception {
-        if (!cacheAttributeInfo) {
-            return beanConn.getMBeanInfo(mbeanName).getAttributes();
+        long now = System.nanoTime();
+        CachedAttributeInfo cached = attributeInfoPerBean.get(mbeanName);
+        if (cached != null && !cached.isExpired(now)) {
+            return cached.attributes;
+        }
+
+        MBeanInfo info = beanConn.getMBeanInfo(mbeanName);
+        MBeanAttributeInfo[] attributes = info.getAttributes();
+        AttributeSelection selection = attributeSelection;
+        if (selection != null) {
+            attributes = selection.select(mbeanName, attributes);
         }
+        if (cacheAttributeInfo || isImmutableInfo(info)) {
+            attributeInfoPerBean.put(mbeanName, new CachedAttributeInfo(attributes, false, 0));
+        } else if (attributeInfoTtlNanos > 0) {
+            attributeInfoPerBean.put(mbeanName, new CachedAttributeInfo(attributes, true, now + attributeInfoTtlNanos));
+            if (refreshAttributeInfoOnChange) {
+                listenForInfoChanges(mbeanName, info, beanConn);
+            }
+        } else if (cached != null) {
+            attributeInfoPerBean.remove(mbeanName);
+        }
+        return attributes;
+    }
 
-        MBeanAttributeInfo[] info = attributeInfoPerBean.get(mbeanName);
-        if (info == null) {
-            info = beanConn.getMBeanInfo(mbeanName).getAttributes();
-            attributeInfoPerBean.put(mbeanName, info);
+    static boolean isImmutableInfo(MBeanInfo info) {
+        Descriptor descriptor = info.getDescriptor();
+        if (descriptor == null) {
+            return false;
         }
-        return info;
+        Object immutableInfo = descriptor.getFieldValue("immutableInfo");
+        return immutableInfo != null && "true".equalsIgnoreCase(immutableInfo.toString());
     }
 
-    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
-        for (ObjectName prevName : keyPropertiesPerBean.keySet()) {
-            if (!latestBeans.contains(prevName)) {
-                keyPropertiesPerBean.remove(prevName);
+    /**
+     * Invalidate the cached info of a bean when it announces a change.
+     * Only possible for the local MBean server, as remote connections do not outlive a scrape.
+     */
+    private void listenForInfoChanges(ObjectName mbeanName, MBeanInfo info, MBeanServerConnection beanConn) {
+        if (!(beanConn instanceof MBeanServer) || listeningForInfoChanges.contains(mbeanName)) {
+            return;
+        }
+        boolean emitsInfoChanged = false;
+        for (MBeanNotificationInfo notificationInfo : info.getNotifications()) {
+            for (String type : notificationInfo.getNotifTypes()) {
+                if (INFO_CHANGED.equals(type)) {
+                    emitsInfoChanged = true;
+                }
             }
         }
+        if (!emitsInfoChanged) {
+            return;
+        }
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(INFO_CHANGED);
+        try {
+            ((MBeanServer) beanConn).addNotificationListener(mbeanName, infoChangedListener, filter, mbeanName);
+            listeningForInfoChanges.add(mbeanName);
+        } catch (Exception e) {
+            LOGGER.fine("Unable to listen for info changes of " + mbeanName + ": " + e);
+        }
+    }
 
-        for (ObjectName prevName : attributeInfoPerBean.keySet()) {
-            if (!latestBeans.contains(prevName)) {
-                attributeInfoPerBean.remove(prevName);
-            }
+    /**
+     * Start a new scrape generation, in which only the given beans exist.
+     * <p>
+     * Cached entries are stamped with the generation in which they were last used, so the caches are only
+     * swept when the number of beans changed, when an entry went unused during the previous scrape, or
+     * periodically. Otherwise this is constant time.
+     */
+    public synchronized void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        boolean beanCountChanged = latestBeans.size() != lastBeanCount;
+        lastBeanCount = latestBeans.size();
+        keyPropertiesPerBean.endGeneration(beanCountChanged, beanCountChanged ? latestBeans : null);
+        attributeInfoPerBean.endGeneration(beanCountChanged, beanCountChanged ? latestBeans : null);
+        if (beanCountChanged) {
+            // The server drops the listeners of unregistered beans.
+            listeningForInfoChanges.retainAll(latestBeans);
         }
     }
 
@@ -112,4 +204,32 @@ class JmxMBeanPropertyCache {
 
         this.cacheAttributeInfo = cacheAttributeInfo;
     }
+
+    /**
+     * @param ttlSeconds how long to cache the attribute info of beans that do not declare it immutable,
+     *                   zero to not cache it.
+     * @param refreshOnChange whether to also invalidate it on {@code jmx.mbean.info.changed} notifications.
+     */
+    public void setAttributeInfoTtl(long ttlSeconds, boolean refreshOnChange) {
+        if (ttlSeconds * 1000000000L < this.attributeInfoTtlNanos) {
+            attributeInfoPerBean.clear();
+        }
+        this.attributeInfoTtlNanos = ttlSeconds * 1000000000L;
+        this.refreshAttributeInfoOnChange = refreshOnChange;
+    }
+
+    /**
+     * @param attributeSelection the attributes to read of each bean, or null for all of them.
+     */
+    public void setAttributeSelection(AttributeSelection attributeSelection) {
+        // The cached attributes were selected by the previous selection.
+        if (this.attributeSelection != null || attributeSelection != null) {
+            attributeInfoPerBean.clear();
+        }
+        this.attributeSelection = attributeSelection;
+    }
+
+    AttributeSelection getAttributeSelection() {
+        return attributeSelection;
+    }
 }
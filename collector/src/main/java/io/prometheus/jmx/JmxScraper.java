@@ -1,16 +1,24 @@
 package io.prometheus.jmx;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
@@ -26,15 +34,21 @@ import javax.management.remote.rmi.RMIConnectorServer;
 import javax.naming.Context;
 import javax.rmi.ssl.SslRMIClientSocketFactory;
 
+import io.prometheus.client.Counter;
+
 
 class JmxScraper {
     private static final Logger logger = Logger.getLogger(JmxScraper.class.getName());
 
+    static final Counter tabularRowsDropped = Counter.build()
+        .name("jmx_scrape_tabular_rows_dropped_total")
+        .help("Number of rows of TabularData attributes that were not processed, beyond maxTabularRows.").register();
+
 
     public static interface MBeanReceiver {
         void recordBean(
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -42,6 +56,13 @@ class JmxScraper {
             Object value);
     }
 
+    /**
+     * Decides which attributes of the scraped beans are read.
+     */
+    interface AttributeFilter {
+        boolean include(ObjectName bean, String attribute);
+    }
+
     private final MBeanReceiver receiver;
     private final String jmxUrl;
     private final String username;
@@ -49,10 +70,41 @@ class JmxScraper {
     private final boolean ssl;
     private final List<ObjectName> whitelistObjectNames, blacklistObjectNames;
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache;
+    private final ScrapeRestriction restriction;
+    private final AttributeFilter attributeFilter;
+    private final ScrapePhases phases;
+    private final BulkExport.Replica bulkExport;
+    private final BeanQuarantine quarantine;
+    private final ScrapeEvents events;
+    private final int maxTabularRows;
+    private final ScrapePipeline pipeline;
 
     public JmxScraper(String jmxUrl, String username, String password, boolean ssl,
                       List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
                       MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache) {
+        this(jmxUrl, username, password, ssl, whitelistObjectNames, blacklistObjectNames, receiver,
+                jmxMBeanPropertyCache, null, null, null, null, null, null, 0, null);
+    }
+
+    /**
+     * @param restriction the beans and attributes to limit the scrape to, or null to scrape all of them.
+     * @param attributeFilter decides which attributes of the beans are read, or null to read all of them.
+     * @param phases measures the phases of the scrape, or null.
+     * @param bulkExport the beans of previous full scrapes through the server's {@link BulkExport} bean, to read
+     *     all beans in one call when the server has that bean and lets it be invoked, or null to always read them
+     *     one by one.
+     * @param quarantine skips the beans and attributes that keep failing, or null.
+     * @param events the flight recorder events of the scrape, or null.
+     * @param maxTabularRows the number of rows of each TabularData attribute to process, or 0 for all of them.
+     * @param pipeline reads the attributes of the beans on its fetch workers, or null to read them on the scrape
+     *     thread.
+     */
+    public JmxScraper(String jmxUrl, String username, String password, boolean ssl,
+                      List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+                      MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache,
+                      ScrapeRestriction restriction, AttributeFilter attributeFilter, ScrapePhases phases,
+                      BulkExport.Replica bulkExport, BeanQuarantine quarantine, ScrapeEvents events,
+                      int maxTabularRows, ScrapePipeline pipeline) {
         this.jmxUrl = jmxUrl;
         this.receiver = receiver;
         this.username = username;
@@ -61,6 +113,14 @@ class JmxScraper {
         this.whitelistObjectNames = whitelistObjectNames;
         this.blacklistObjectNames = blacklistObjectNames;
         this.jmxMBeanPropertyCache = jmxMBeanPropertyCache;
+        this.restriction = restriction;
+        this.attributeFilter = attributeFilter;
+        this.phases = phases;
+        this.bulkExport = bulkExport;
+        this.quarantine = quarantine;
+        this.events = events != null ? events : ScrapeEvents.NONE;
+        this.maxTabularRows = maxTabularRows;
+        this.pipeline = pipeline;
     }
 
     /**
@@ -71,6 +131,7 @@ class JmxScraper {
     public void doScrape() throws Exception {
         MBeanServerConnection beanConn;
         JMXConnector jmxc = null;
+        enter(ScrapePhases.Phase.DISCOVERY);
         if (jmxUrl.isEmpty()) {
           beanConn = ManagementFactory.getPlatformMBeanServer();
         } else {
@@ -90,7 +151,21 @@ class JmxScraper {
           beanConn = jmxc.getMBeanServerConnection();
         }
         try {
+            if (restriction != null) {
+                // The replica holds the beans of full scrapes, and restricted scrapes query fewer beans anyway.
+                scrapeBeans(beanConn, restrictedMBeanNames(beanConn));
+                return;
+            }
+
+            if (bulkExport != null) {
+                enter(ScrapePhases.Phase.ATTRIBUTE_READ);
+                if (scrapeExportedBeans(beanConn)) {
+                    return;
+                }
+            }
+
             // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
+            Object discovery = events.beginDiscovery();
             Set<ObjectName> mBeanNames = new HashSet<ObjectName>();
             for (ObjectName name : whitelistObjectNames) {
                 for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
@@ -104,14 +179,15 @@ class JmxScraper {
                 }
             }
 
+            events.endDiscovery(discovery, mBeanNames.size());
+
             // Now that we have *only* the whitelisted mBeans, remove any old ones from the cache:
             jmxMBeanPropertyCache.onlyKeepMBeans(mBeanNames);
-
-            for (ObjectName objectName : mBeanNames) {
-                long start = System.nanoTime();
-                scrapeBean(beanConn, objectName);
-                logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + objectName.toString());
+            if (quarantine != null) {
+                quarantine.onlyKeepMBeans(mBeanNames);
             }
+
+            scrapeBeans(beanConn, mBeanNames);
         } finally {
           if (jmxc != null) {
             jmxc.close();
@@ -119,41 +195,253 @@ class JmxScraper {
         }
     }
 
-    private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName) {
+    /**
+     * Query only the beans the restriction allows, and keep those that the white and blacklists allow.
+     * The property cache is left alone, as it holds the beans of full scrapes.
+     */
+    private Set<ObjectName> restrictedMBeanNames(MBeanServerConnection beanConn) throws IOException {
+        Set<ObjectName> mBeanNames = new HashSet<ObjectName>();
+        for (ObjectName query : restriction.objectNames()) {
+            for (ObjectInstance instance : beanConn.queryMBeans(query, null)) {
+                ObjectName name = instance.getObjectName();
+                if (matchesAny(whitelistObjectNames, name) && !matchesAny(blacklistObjectNames, name)) {
+                    mBeanNames.add(name);
+                }
+            }
+        }
+        return mBeanNames;
+    }
+
+    private void enter(ScrapePhases.Phase phase) {
+        if (phases != null) {
+            phases.enter(phase);
+        }
+    }
+
+    private static boolean matchesAny(List<ObjectName> patterns, ObjectName name) {
+        for (ObjectName pattern : patterns) {
+            // A null pattern, the default whitelist, matches every bean.
+            if (pattern == null || pattern.apply(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scrapeBeans(final MBeanServerConnection beanConn, Collection<ObjectName> mbeanNames)
+            throws Exception {
+        if (pipeline == null) {
+            for (ObjectName objectName : mbeanNames) {
+                scrapeBean(beanConn, objectName, true, processor);
+            }
+            return;
+        }
+        // The phases are measured on the scrape thread, where waiting for the workers counts as reading.
+        enter(ScrapePhases.Phase.ATTRIBUTE_READ);
+        pipeline.run(mbeanNames, new ScrapePipeline.Fetcher() {
+            public void fetch(ObjectName bean, ScrapePipeline.Sink sink) {
+                scrapeBean(beanConn, bean, false, sink);
+            }
+        }, new ScrapePipeline.Sink() {
+            public void accept(ObjectName bean, MBeanAttributeInfo attr, Object value) {
+                processAttribute(bean, attr, value);
+                enter(ScrapePhases.Phase.ATTRIBUTE_READ);
+            }
+        });
+    }
+
+    private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName, boolean onScrapeThread,
+                            ScrapePipeline.Sink sink) {
+        long start = System.nanoTime();
+        Object fetch = events.beginBean();
+        events.endBean(fetch, mbeanName, readBean(beanConn, mbeanName, onScrapeThread, sink));
+        logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + mbeanName.toString());
+    }
+
+    /**
+     * Read the attributes of a bean and pass them to the sink.
+     *
+     * @param onScrapeThread whether to measure the phases, which only the scrape thread does.
+     * @return the number of attributes read.
+     */
+    private int readBean(MBeanServerConnection beanConn, ObjectName mbeanName, boolean onScrapeThread,
+                         ScrapePipeline.Sink sink) {
         MBeanAttributeInfo[] info;
+        int read = 0;
 
+        if (quarantine != null && quarantine.skip(mbeanName, null)) {
+            logScrape(mbeanName.toString(), "quarantined");
+            return read;
+        }
+        if (onScrapeThread) {
+            enter(ScrapePhases.Phase.MBEAN_INFO);
+        }
         try {
             info = jmxMBeanPropertyCache.getAttributes(mbeanName, beanConn);
         } catch (Exception e) {
             logScrape(mbeanName.toString(), "getAttributes Fail: " + e);
-            return;
+            if (quarantine != null) {
+                quarantine.failure(mbeanName, null, e);
+            }
+            return read;
+        }
+        if (quarantine != null) {
+            quarantine.success(mbeanName, null);
         }
 
         for (MBeanAttributeInfo attr : info) {
-            if (!attr.isReadable()) {
-                logScrape(mbeanName, attr, "not readable");
+            if (!admit(mbeanName, attr)) {
+                continue;
+            }
+
+            if (quarantine != null && quarantine.skip(mbeanName, attr.getName())) {
+                logScrape(mbeanName, attr, "quarantined");
                 continue;
             }
 
             Object value;
+            if (onScrapeThread) {
+                enter(ScrapePhases.Phase.ATTRIBUTE_READ);
+            }
             try {
                 value = beanConn.getAttribute(mbeanName, attr.getName());
             } catch (Exception e) {
                 logScrape(mbeanName.toString(), "getAttribute Fail: " + e);
+                if (quarantine != null) {
+                    quarantine.failure(mbeanName, attr.getName(), e);
+                }
+                continue;
+            }
+            if (quarantine != null) {
+                quarantine.success(mbeanName, attr.getName());
+            }
+
+            read++;
+            sink.accept(mbeanName, attr, value);
+        }
+        return read;
+    }
+
+    /**
+     * @return whether the attribute is to be read, as far as the restriction and attribute filter go.
+     */
+    private boolean admit(ObjectName mbeanName, MBeanAttributeInfo attr) {
+        if (!attr.isReadable()) {
+            logScrape(mbeanName, attr, "not readable");
+            return false;
+        }
+        if (restriction != null && !restriction.includes(mbeanName, attr.getName())) {
+            return false;
+        }
+        if (attributeFilter != null && !include(mbeanName, attr)) {
+            logScrape(mbeanName, attr, "filtered");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean include(ObjectName mbeanName, MBeanAttributeInfo attr) {
+        // The fetch workers of a pipelined scrape share the filter.
+        synchronized (attributeFilter) {
+            return attributeFilter.include(mbeanName, attr.getName());
+        }
+    }
+
+    /**
+     * Read the beans through the server's {@link BulkExport} bean, which only reads the attributes of the
+     * {@link AttributeSelection}, and leaves out what the quarantine skips.
+     *
+     * @return whether the beans were read, or have to be read one by one.
+     */
+    private boolean scrapeExportedBeans(MBeanServerConnection beanConn) {
+        Map<ObjectName, Set<String>> skip = quarantine != null
+                ? quarantine.skipping() : Collections.<ObjectName, Set<String>>emptyMap();
+        Object discovery = events.beginDiscovery();
+        Map<ObjectName, BulkExport.Bean> beans = bulkExport.export(beanConn, whitelistObjectNames,
+                blacklistObjectNames, skip, jmxMBeanPropertyCache.getAttributeSelection());
+        if (beans == null) {
+            return false;
+        }
+        events.endDiscovery(discovery, beans.size());
+
+        jmxMBeanPropertyCache.onlyKeepMBeans(beans.keySet());
+        if (quarantine != null) {
+            Set<ObjectName> mBeanNames = new HashSet<ObjectName>(beans.keySet());
+            mBeanNames.addAll(Arrays.asList(bulkExport.failed()));
+            for (Map.Entry<ObjectName, Set<String>> entry : skip.entrySet()) {
+                // Whole beans skipped are left out of the export, but still match.
+                if (entry.getValue().isEmpty() && quarantine.skip(entry.getKey(), null)) {
+                    logScrape(entry.getKey().toString(), "quarantined");
+                    mBeanNames.add(entry.getKey());
+                }
+            }
+            quarantine.onlyKeepMBeans(mBeanNames);
+            for (ObjectName failed : bulkExport.failed()) {
+                logScrape(failed.toString(), "getAttributes Fail in bulk export");
+                quarantine.failure(failed, null, new JMException("getAttributes failed in the bulk export"));
+            }
+        }
+
+        for (Map.Entry<ObjectName, BulkExport.Bean> entry : beans.entrySet()) {
+            Object fetch = events.beginBean();
+            events.endBean(fetch, entry.getKey(), scrapeExportedBean(entry.getKey(), entry.getValue()));
+        }
+        return true;
+    }
+
+    /**
+     * Process the attributes of a bean read by the server's {@link BulkExport} bean.
+     *
+     * @return the number of attributes processed.
+     */
+    private int scrapeExportedBean(ObjectName mbeanName, BulkExport.Bean bean) {
+        int read = 0;
+        if (quarantine != null) {
+            quarantine.success(mbeanName, null);
+        }
+        for (int i = 0; i < bean.attributes.length; i++) {
+            MBeanAttributeInfo attr = bean.attributes[i];
+            if (!admit(mbeanName, attr)) {
+                continue;
+            }
+            if (quarantine != null && quarantine.skip(mbeanName, attr.getName())) {
+                logScrape(mbeanName, attr, "quarantined");
                 continue;
             }
+            if (bean.errors[i] != null) {
+                logScrape(mbeanName.toString(), "getAttribute Fail: " + bean.errors[i]);
+                if (quarantine != null) {
+                    quarantine.failure(mbeanName, attr.getName(), new JMException(bean.errors[i]));
+                }
+                continue;
+            }
+            if (quarantine != null) {
+                quarantine.success(mbeanName, attr.getName());
+            }
+            read++;
+            processAttribute(mbeanName, attr, bean.values[i]);
+        }
+        return read;
+    }
 
-            logScrape(mbeanName, attr, "process");
-            processBeanValue(
-                    mbeanName.getDomain(),
-                    jmxMBeanPropertyCache.getKeyPropertyList(mbeanName),
-                    new LinkedList<String>(),
-                    attr.getName(),
-                    attr.getType(),
-                    attr.getDescription(),
-                    value
-            );
+    private final ScrapePipeline.Sink processor = new ScrapePipeline.Sink() {
+        public void accept(ObjectName bean, MBeanAttributeInfo attr, Object value) {
+            processAttribute(bean, attr, value);
         }
+    };
+
+    private void processAttribute(ObjectName mbeanName, MBeanAttributeInfo attr, Object value) {
+        logScrape(mbeanName, attr, "process");
+        enter(ScrapePhases.Phase.RULE_MATCHING);
+        processBeanValue(
+                mbeanName.getDomain(),
+                jmxMBeanPropertyCache.getKeyPropertyList(mbeanName),
+                new LinkedList<String>(),
+                attr.getName(),
+                attr.getType(),
+                attr.getDescription(),
+                value
+        );
     }
 
 
@@ -166,7 +454,7 @@ class JmxScraper {
      */
     private void processBeanValue(
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -217,45 +505,64 @@ class JmxScraper {
             TabularType tt = tds.getTabularType();
 
             List<String> rowKeys = tt.getIndexNames();
+            // Nested tabulardata will repeat the 'key' label, so append a
+            // suffix to distinguish each. Worked out once for all rows.
+            String[] indexLabels = new String[rowKeys.size()];
+            Set<String> labels = new HashSet<String>(beanProperties.keySet());
+            for (int i = 0; i < indexLabels.length; i++) {
+                String idx = rowKeys.get(i);
+                while (labels.contains(idx)) {
+                    idx = idx + "_";
+                }
+                labels.add(idx);
+                indexLabels[i] = idx;
+            }
 
             CompositeType type = tt.getRowType();
             Set<String> valueKeys = new TreeSet<String>(type.keySet());
             valueKeys.removeAll(rowKeys);
+            String[] valueNames = valueKeys.toArray(new String[valueKeys.size()]);
+            String[] valueTypes = new String[valueNames.length];
+            for (int i = 0; i < valueNames.length; i++) {
+                valueTypes[i] = type.getType(valueNames[i]).getTypeName();
+            }
 
             LinkedList<String> extendedAttrKeys = new LinkedList<String>(attrKeys);
             extendedAttrKeys.add(attrName);
+            int rows = 0;
             for (Object valu : tds.values()) {
+                if (maxTabularRows > 0 && rows == maxTabularRows) {
+                    tabularRowsDropped.inc(tds.size() - rows);
+                    logScrape(domain + beanProperties + attrName, "dropped " + (tds.size() - rows) + " rows");
+                    break;
+                }
+                rows++;
                 if (valu instanceof CompositeData) {
                     CompositeData composite = (CompositeData) valu;
-                    LinkedHashMap<String, String> l2s = new LinkedHashMap<String, String>(beanProperties);
-                    for (String idx : rowKeys) {
-                        Object obj = composite.get(idx);
+                    String[] indexValues = new String[indexLabels.length];
+                    for (int i = 0; i < indexValues.length; i++) {
+                        Object obj = composite.get(rowKeys.get(i));
                         if (obj != null) {
-                            // Nested tabulardata will repeat the 'key' label, so
-                            // append a suffix to distinguish each.
-                            while (l2s.containsKey(idx)) {
-                              idx = idx + "_";
-                            }
-                            l2s.put(idx, obj.toString());
+                            indexValues[i] = obj.toString();
                         }
                     }
-                    for(String valueIdx : valueKeys) {
+                    Map<String, String> l2s = new RowProperties(beanProperties, indexLabels, indexValues);
+                    for (int i = 0; i < valueNames.length; i++) {
                         LinkedList<String> attrNames = extendedAttrKeys;
-                        String typ = type.getType(valueIdx).getTypeName();
-                        String name = valueIdx;
-                        if (valueIdx.toLowerCase().equals("value")) {
+                        String name = valueNames[i];
+                        if (name.equalsIgnoreCase("value")) {
                             // Skip appending 'value' to the name
                             attrNames = attrKeys;
                             name = attrName;
-                        } 
+                        }
                         processBeanValue(
                             domain,
                             l2s,
                             attrNames,
                             name,
-                            typ,
+                            valueTypes[i],
                             type.getDescription(),
-                            composite.get(valueIdx));
+                            composite.get(valueNames[i]));
                     }
                 } else {
                     logScrape(domain, "not a correct tabulardata format");
@@ -268,6 +575,96 @@ class JmxScraper {
         }
     }
 
+    /**
+     * The properties of a bean followed by the index values of a table row, so rows don't copy the properties of
+     * the bean. Index values that are null are left out.
+     */
+    static final class RowProperties extends AbstractMap<String, String> {
+        private final Map<String, String> beanProperties;
+        private final String[] indexLabels;
+        private final String[] indexValues;
+        private final int size;
+
+        RowProperties(Map<String, String> beanProperties, String[] indexLabels, String[] indexValues) {
+            this.beanProperties = beanProperties;
+            this.indexLabels = indexLabels;
+            this.indexValues = indexValues;
+            int size = beanProperties.size();
+            for (String indexValue : indexValues) {
+                if (indexValue != null) {
+                    size++;
+                }
+            }
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String get(Object key) {
+            for (int i = 0; i < indexLabels.length; i++) {
+                if (indexValues[i] != null && indexLabels[i].equals(key)) {
+                    return indexValues[i];
+                }
+            }
+            return beanProperties.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private final Iterator<Map.Entry<String, String>> bean = beanProperties.entrySet().iterator();
+                        private int next = nextIndex(0);
+
+                        private int nextIndex(int from) {
+                            while (from < indexValues.length && indexValues[from] == null) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        public boolean hasNext() {
+                            return bean.hasNext() || next < indexValues.length;
+                        }
+
+                        public Map.Entry<String, String> next() {
+                            if (bean.hasNext()) {
+                                return bean.next();
+                            }
+                            if (next >= indexValues.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(
+                                    indexLabels[next], indexValues[next]);
+                            next = nextIndex(next + 1);
+                            return entry;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+
     /**
      * For debugging.
      */
@@ -284,7 +681,7 @@ class JmxScraper {
     private static class StdoutWriter implements MBeanReceiver {
         public void recordBean(
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -0,0 +1,204 @@
+package io.prometheus.jmx;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The key properties of an ObjectName, in the order they were declared.
+ * <p>
+ * This is an immutable map backed by a single array of alternating keys and values. Beans have a handful of
+ * key properties, so lookups scan the array rather than paying for a hash table per cached bean.
+ */
+final class KeyPropertyList extends AbstractMap<String, String> {
+    private static final KeyPropertyList EMPTY = new KeyPropertyList(new String[0], 0);
+
+    // key0, value0, key1, value1, ...
+    private final String[] keysAndValues;
+    private final int size;
+
+    private KeyPropertyList(String[] keysAndValues, int size) {
+        this.keysAndValues = keysAndValues;
+        this.size = size;
+    }
+
+    /**
+     * Parse the output of {@link javax.management.ObjectName#getKeyPropertyListString()}.
+     * <p>
+     * This is a single pass scanner. Each property is a non-empty name that contains none of {@code ,=:*?},
+     * an equals sign, and a value that is either quoted (backslash escapes any character but a line
+     * terminator) or unquoted (none of {@code ,=:"}, possibly empty). A comma may separate properties.
+     * Parsing stops at the first position that does not start a property, and a repeated name replaces the
+     * earlier value in place.
+     */
+    static KeyPropertyList parse(String properties) {
+        int length = properties.length();
+        String[] keysAndValues = null;
+        int size = 0;
+        int pos = 0;
+        while (true) {
+            // Name.
+            int nameEnd = pos;
+            while (nameEnd < length && !isNameDelimiter(properties.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            if (nameEnd == pos || nameEnd == length || properties.charAt(nameEnd) != '=') {
+                break;
+            }
+
+            // Value.
+            int valueStart = nameEnd + 1;
+            int valueEnd = -1;
+            if (valueStart < length && properties.charAt(valueStart) == '"') {
+                valueEnd = quotedValueEnd(properties, valueStart);
+            }
+            if (valueEnd < 0) {
+                // Unquoted, or a quoted value without a closing quote which is read as empty.
+                valueEnd = valueStart;
+                while (valueEnd < length && !isUnquotedValueDelimiter(properties.charAt(valueEnd))) {
+                    valueEnd++;
+                }
+            }
+
+            String name = properties.substring(pos, nameEnd);
+            String value = properties.substring(valueStart, valueEnd);
+            if (keysAndValues == null) {
+                keysAndValues = new String[8];
+            }
+            int existing = indexOf(keysAndValues, size, name);
+            if (existing >= 0) {
+                keysAndValues[existing + 1] = value;
+            } else {
+                if (size * 2 == keysAndValues.length) {
+                    String[] grown = new String[keysAndValues.length * 2];
+                    System.arraycopy(keysAndValues, 0, grown, 0, keysAndValues.length);
+                    keysAndValues = grown;
+                }
+                keysAndValues[size * 2] = name;
+                keysAndValues[size * 2 + 1] = value;
+                size++;
+            }
+
+            pos = valueEnd;
+            if (pos < length && properties.charAt(pos) == ',') {
+                pos++;
+            }
+        }
+        if (size == 0) {
+            return EMPTY;
+        }
+        if (keysAndValues.length != size * 2) {
+            String[] trimmed = new String[size * 2];
+            System.arraycopy(keysAndValues, 0, trimmed, 0, trimmed.length);
+            keysAndValues = trimmed;
+        }
+        return new KeyPropertyList(keysAndValues, size);
+    }
+
+    /**
+     * @return the index after the closing quote of the value starting at {@code start}, or -1 if it is not
+     * properly terminated.
+     */
+    private static int quotedValueEnd(String properties, int start) {
+        int length = properties.length();
+        int pos = start + 1;
+        while (pos < length) {
+            char c = properties.charAt(pos);
+            if (c == '"') {
+                return pos + 1;
+            } else if (c == '\\') {
+                if (pos + 1 >= length || isLineTerminator(properties.charAt(pos + 1))) {
+                    return -1;
+                }
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNameDelimiter(char c) {
+        return c == ',' || c == '=' || c == ':' || c == '*' || c == '?';
+    }
+
+    private static boolean isUnquotedValueDelimiter(char c) {
+        return c == ',' || c == '=' || c == ':' || c == '"';
+    }
+
+    // The characters that an escape sequence can not consume, as with '.' in a regular expression.
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static int indexOf(String[] keysAndValues, int size, Object key) {
+        for (int i = 0; i < size * 2; i += 2) {
+            if (keysAndValues[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(keysAndValues, size, key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(keysAndValues, size, key);
+        return i >= 0 ? keysAndValues[i + 1] : null;
+    }
+
+    String keyAt(int index) {
+        return keysAndValues[index * 2];
+    }
+
+    String valueAt(int index) {
+        return keysAndValues[index * 2 + 1];
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int next = 0;
+
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    public Map.Entry<String, String> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry =
+                                new AbstractMap.SimpleImmutableEntry<String, String>(keyAt(next), valueAt(next));
+                        next++;
+                        return entry;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
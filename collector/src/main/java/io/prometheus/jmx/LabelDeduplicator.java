@@ -0,0 +1,76 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Deduplicates the label names and values of the samples produced by a collector.
+ * <p>
+ * Rule replacements create a new String for every label of every matched bean, so the same topic, partition or
+ * client id ends up as thousands of distinct but equal objects, both in the scrape output and in cached
+ * {@link MatchedRule}s. Interning them here keeps one instance of each. Label name lists are interned as
+ * immutable lists, so every series of a rule shares a single list of names.
+ * <p>
+ * Entries live as long as the collector's configuration; the tables are cleared on reload, or when they
+ * exceed their bound.
+ */
+class LabelDeduplicator {
+    private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<List<String>, List<String>> nameLists = new ConcurrentHashMap<List<String>, List<String>>();
+    private final int maxValues;
+    private final int maxNameLists;
+
+    LabelDeduplicator(int maxValues, int maxNameLists) {
+        this.maxValues = maxValues;
+        this.maxNameLists = maxNameLists;
+    }
+
+    /**
+     * @return the canonical instance equal to the given label value.
+     */
+    String value(String value) {
+        if (value == null) {
+            return null;
+        }
+        String canonical = values.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (values.size() >= maxValues) {
+            values.clear();
+        }
+        canonical = values.putIfAbsent(value, value);
+        return canonical != null ? canonical : value;
+    }
+
+    /**
+     * @return a shared, immutable list equal to the given label names.
+     */
+    List<String> names(List<String> names) {
+        if (names.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> canonical = nameLists.get(names);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (nameLists.size() >= maxNameLists) {
+            nameLists.clear();
+        }
+        List<String> immutable = Collections.unmodifiableList(new ArrayList<String>(names));
+        canonical = nameLists.putIfAbsent(immutable, immutable);
+        return canonical != null ? canonical : immutable;
+    }
+
+    int size() {
+        return values.size() + nameLists.size();
+    }
+
+    void clear() {
+        values.clear();
+        nameLists.clear();
+    }
+}
@@ -17,6 +17,12 @@ public class MatchedRule {
     final List<String> labelValues;
     final Double value;
     final double valueFactor;
+    // Null if samples are exported as they are.
+    final Aggregation aggregation;
+    // Null if the number of series is not limited.
+    final SeriesLimiter.RuleLimit limit;
+    // The slot of the series in the sample arena, set by the arena. Arenas check the slot is still the rule's.
+    int arenaSlot = -1;
 
     private static final MatchedRule _unmatched = new MatchedRule();
 
@@ -28,6 +34,8 @@ public class MatchedRule {
         this.labelValues = null;
         this.value = null;
         this.valueFactor = 1.0;
+        this.aggregation = null;
+        this.limit = null;
     }
 
     public MatchedRule(
@@ -38,6 +46,19 @@ public class MatchedRule {
             final List<String> labelValues,
             final Double value,
             double valueFactor) {
+        this(name, type, help, labelNames, labelValues, value, valueFactor, null, null);
+    }
+
+    MatchedRule(
+            final String name,
+            final Type type,
+            final String help,
+            final List<String> labelNames,
+            final List<String> labelValues,
+            final Double value,
+            double valueFactor,
+            final Aggregation aggregation,
+            final SeriesLimiter.RuleLimit limit) {
         this.name = name;
         this.type = type;
         this.help = help;
@@ -45,6 +66,8 @@ public class MatchedRule {
         this.labelValues = labelValues;
         this.value = value;
         this.valueFactor = valueFactor;
+        this.aggregation = aggregation;
+        this.limit = limit;
     }
 
     /**
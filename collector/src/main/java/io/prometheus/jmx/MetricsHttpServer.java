@@ -0,0 +1,80 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The default {@link MetricsServer}, built on {@code com.sun.net.httpserver} like simpleclient's {@code HTTPServer},
+ * serving repeated requests for the same snapshot from a {@link ResponseCache}.
+ */
+class MetricsHttpServer extends MetricsServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    MetricsHttpServer(InetSocketAddress addr, ResponseCache cache, int threads, boolean daemon) throws IOException {
+        super(cache);
+        server = HttpServer.create(addr, 3);
+        server.createContext("/", new MetricsHandler(cache));
+        executor = Executors.newFixedThreadPool(threads, threadFactory("jmx-exporter-http-", daemon));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @Override
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static class MetricsHandler implements HttpHandler {
+        private final ResponseCache cache;
+
+        MetricsHandler(ResponseCache cache) {
+            this.cache = cache;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (HEALTHY_PATH.equals(exchange.getRequestURI().getPath())) {
+                    byte[] body = HEALTHY_RESPONSE.getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                    return;
+                }
+                if (cache.isInitialising()) {
+                    byte[] body = INITIALISING_RESPONSE.getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(503, body.length);
+                    exchange.getResponseBody().write(body);
+                    return;
+                }
+                ResponseCache.Response response = cache.get(
+                        ExpositionFormat.negotiate(exchange.getRequestHeaders().get("Accept")),
+                        parseQuery(exchange.getRequestURI().getRawQuery()),
+                        acceptsGzip(exchange.getRequestHeaders().get("Accept-Encoding")));
+                exchange.getResponseHeaders().set("Content-Type", response.contentType);
+                if (response.gzipped) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, response.body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response.body);
+                out.flush();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
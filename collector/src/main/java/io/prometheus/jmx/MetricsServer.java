@@ -0,0 +1,175 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * An HTTP server exposing a registry for the agent and the standalone exporter.
+ * <p>
+ * Both implementations serve the metrics on every path but {@code /-/healthy}, with optional gzip and
+ * {@code name[]} filtering as simpleclient's {@code HTTPServer} does. The format is negotiated from the Accept
+ * header: the text format by default, OpenMetrics, or delimited protobuf.
+ */
+public abstract class MetricsServer {
+    static final String HEALTHY_PATH = "/-/healthy";
+    static final String HEALTHY_RESPONSE = "Exporter is Healthy.";
+    static final String INITIALISING_RESPONSE = "Exporter is initialising.";
+
+    // The settings of the server started before a collector is configured.
+    static final int DEFAULT_MAX_CONNECTIONS = 64;
+    static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 5;
+
+    final ResponseCache cache;
+    // Set by the factory methods, to restart the server with other settings.
+    private CollectorMaxAge maxAge;
+    private CollectorRegistry registry;
+    private InetSocketAddress address;
+    private boolean daemon;
+
+    MetricsServer(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Start the server configured by the collector's {@code nioHttpServer}, {@code httpMaxConnections} and
+     * {@code httpMaxConcurrentRequests}, caching responses for its {@code coalesceScrapesWithinMillis} window.
+     */
+    public static MetricsServer start(InetSocketAddress addr, CollectorRegistry registry,
+                                      JmxCollector collector, boolean daemon) throws IOException {
+        return start(addr, registry, collector, daemon, false);
+    }
+
+    /**
+     * @param initialising whether to answer metrics requests with a 503 until {@link #ready()} is called.
+     */
+    public static MetricsServer start(InetSocketAddress addr, CollectorRegistry registry,
+                                      JmxCollector collector, boolean daemon, boolean initialising)
+            throws IOException {
+        return start(addr, registry, new CollectorMaxAge(collector), collector.nioHttpServer(),
+                collector.httpMaxConnections(), collector.httpMaxConcurrentRequests(), daemon, initialising);
+    }
+
+    /**
+     * Start the default server before the collector's configuration is loaded, so the port answers metrics
+     * requests with a 503 rather than refusing connections. Call {@link #configure(JmxCollector)} once it is
+     * loaded, then {@link #ready()}.
+     */
+    public static MetricsServer startInitialising(InetSocketAddress addr, CollectorRegistry registry,
+                                                  boolean daemon) throws IOException {
+        return start(addr, registry, new CollectorMaxAge(null), false, DEFAULT_MAX_CONNECTIONS,
+                DEFAULT_MAX_CONCURRENT_REQUESTS, daemon, true);
+    }
+
+    private static MetricsServer start(InetSocketAddress addr, CollectorRegistry registry, CollectorMaxAge maxAge,
+                                       boolean nio, int maxConnections, int maxConcurrentRequests, boolean daemon,
+                                       boolean initialising) throws IOException {
+        ResponseCache cache = new ResponseCache(registry, maxAge);
+        cache.setInitialising(initialising);
+        MetricsServer server = nio
+                ? new NioMetricsHttpServer(addr, cache, maxConnections, maxConcurrentRequests, daemon)
+                : new MetricsHttpServer(addr, cache, maxConcurrentRequests, daemon);
+        server.maxAge = maxAge;
+        server.registry = registry;
+        server.address = addr;
+        server.daemon = daemon;
+        return server;
+    }
+
+    /**
+     * Apply the server settings of the collector to a server started by
+     * {@link #startInitialising(InetSocketAddress, CollectorRegistry, boolean)}. If they are not the defaults, the
+     * server is stopped and started again on the same port, still initialising.
+     *
+     * @return the server to use from now on.
+     */
+    public MetricsServer configure(JmxCollector collector) throws IOException {
+        if (!collector.nioHttpServer() && collector.httpMaxConcurrentRequests() == DEFAULT_MAX_CONCURRENT_REQUESTS) {
+            maxAge.collector = collector;
+            return this;
+        }
+        // The port may have been picked by the system.
+        InetSocketAddress addr = new InetSocketAddress(address.getAddress(), getPort());
+        stop();
+        return start(addr, registry, collector, daemon, cache.isInitialising());
+    }
+
+    public abstract int getPort();
+
+    /**
+     * Start serving metrics, once the server was started initialising.
+     */
+    public void ready() {
+        cache.setInitialising(false);
+    }
+
+    public abstract void stop();
+
+    /**
+     * @param headers the values of the Accept-Encoding headers of a request, or null.
+     */
+    static boolean acceptsGzip(List<String> headers) {
+        if (headers == null) {
+            return false;
+        }
+        for (String header : headers) {
+            for (String encoding : header.split(",")) {
+                if (encoding.trim().equalsIgnoreCase("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the {@code name[]} parameters of a raw query string.
+     */
+    static Set<String> parseQuery(String query) throws UnsupportedEncodingException {
+        Set<String> names = new HashSet<String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int idx = pair.indexOf('=');
+                if (idx != -1 && URLDecoder.decode(pair.substring(0, idx), "UTF-8").equals("name[]")) {
+                    names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reuses responses for the {@code coalesceScrapesWithinMillis} window of the collector, once there is one.
+     */
+    private static class CollectorMaxAge implements ResponseCache.MaxAge {
+        volatile JmxCollector collector;
+
+        CollectorMaxAge(JmxCollector collector) {
+            this.collector = collector;
+        }
+
+        public long maxAgeMillis() {
+            JmxCollector configured = collector;
+            return configured == null ? 0 : configured.coalesceScrapesWithinMillis();
+        }
+    }
+
+    static ThreadFactory threadFactory(final String prefix, final boolean daemon) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,506 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link MetricsServer} built on a single non-blocking selector thread.
+ * <p>
+ * The selector accepts connections, parses requests and writes responses. Rendering runs on a small pool of
+ * at most {@code maxConcurrentRequests} threads, which exit when idle. Its footprint is bounded so it can run
+ * inside a latency sensitive application:
+ * <ul>
+ * <li>Connections are kept alive, up to {@code maxConnections}. Further connections are answered with a 503 and
+ * closed straight away rather than left queued in the accept backlog, and idle ones are closed after a while.</li>
+ * <li>A metrics request that finds every renderer busy is answered with a 503 at once instead of queueing.</li>
+ * <li>Bodies are streamed to the socket through a small pool of fixed size direct buffers, so a large response
+ * never makes the JDK allocate a temporary direct buffer the size of the whole body.</li>
+ * </ul>
+ * Responses have a Content-Length, since the {@link ResponseCache} renders each body before it is sent.
+ */
+class NioMetricsHttpServer extends MetricsServer {
+    private static final Logger LOGGER = Logger.getLogger(NioMetricsHttpServer.class.getName());
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_REQUEST_HEAD_BYTES = 8 * 1024;
+    static final long IDLE_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final int ACCEPT_BACKLOG = 50;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxConnections;
+    private final Semaphore renderPermits;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor renderers;
+    private final Thread selectorThread;
+    // Connections whose response was rendered, handed from the renderers back to the selector thread.
+    private final Queue<Connection> rendered = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean running = true;
+
+    // Only used by the selector thread.
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+    private int connections = 0;
+
+    NioMetricsHttpServer(InetSocketAddress addr, ResponseCache cache, int maxConnections, int maxConcurrentRequests,
+                         boolean daemon) throws IOException {
+        super(cache);
+        this.maxConnections = maxConnections;
+        this.renderPermits = new Semaphore(maxConcurrentRequests);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(addr, ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        renderers = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory("jmx-exporter-http-", daemon));
+        renderers.allowCoreThreadTimeOut(true);
+        selectorThread = threadFactory("jmx-exporter-http-selector-", daemon).newThread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        });
+        selectorThread.start();
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        renderers.shutdownNow();
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_HEAD_BYTES);
+        SelectionKey key;
+        long lastActiveNanos = System.nanoTime();
+        boolean closed;
+
+        // The request being rendered.
+        boolean rendering;
+        boolean keepAlive;
+        boolean headOnly;
+        volatile ResponseCache.Response response;
+        volatile Throwable failure;
+
+        // The response being written: the head, then the body, copied through a pooled buffer.
+        ByteBuffer out;
+        byte[] head;
+        byte[] body;
+        int headOffset;
+        int bodyOffset;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private void loop() {
+        long lastIdleCheck = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(1000);
+                Connection done;
+                while ((done = rendered.poll()) != null) {
+                    finishRendering(done);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                if (System.nanoTime() - lastIdleCheck > TimeUnit.SECONDS.toNanos(1)) {
+                    lastIdleCheck = System.nanoTime();
+                    closeIdleConnections();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error in HTTP server selector", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error in HTTP server selector", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                read(connection);
+            } else if (key.isWritable()) {
+                write(connection);
+            }
+        } catch (IOException e) {
+            close(connection);
+        } catch (CancelledKeyException e) {
+            close(connection);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            if (connections >= maxConnections) {
+                // Best effort: the response is small enough to fit in the socket's send buffer.
+                try {
+                    channel.write(ByteBuffer.wrap(plainResponse(503, "Service Unavailable",
+                            "Too many connections.", false, false)));
+                } catch (IOException e) {
+                    // The connection is closed either way.
+                }
+                channel.close();
+                continue;
+            }
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections++;
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.request) < 0) {
+            close(connection);
+            return;
+        }
+        connection.lastActiveNanos = System.nanoTime();
+        processRequest(connection);
+    }
+
+    /**
+     * Respond to the request buffered on the connection, if it was fully received.
+     */
+    private void processRequest(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.request;
+        int end = headEnd(buffer.array(), buffer.position());
+        if (end < 0) {
+            if (!buffer.hasRemaining()) {
+                respond(connection, plainResponse(431, "Request Header Fields Too Large",
+                        "Request header too large.", false, false), null, false);
+            }
+            return;
+        }
+        String head = new String(buffer.array(), 0, end, ISO_8859_1);
+        buffer.flip();
+        buffer.position(end);
+        buffer.compact();
+
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            respond(connection, plainResponse(400, "Bad Request", "Malformed request.", false, false), null, false);
+            return;
+        }
+        String method = requestLine[0];
+        String target = requestLine[1];
+        boolean http11 = requestLine[2].equals("HTTP/1.1");
+        String connectionHeader = null;
+        List<String> accept = new ArrayList<String>();
+        List<String> acceptEncoding = new ArrayList<String>();
+        boolean hasBody = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Connection")) {
+                connectionHeader = value;
+            } else if (name.equalsIgnoreCase("Accept")) {
+                accept.add(value);
+            } else if (name.equalsIgnoreCase("Accept-Encoding")) {
+                acceptEncoding.add(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")
+                    || (name.equalsIgnoreCase("Content-Length") && !value.equals("0"))) {
+                hasBody = true;
+            }
+        }
+        boolean keepAlive = http11
+                ? !"close".equalsIgnoreCase(connectionHeader)
+                : "keep-alive".equalsIgnoreCase(connectionHeader);
+        boolean headOnly = method.equals("HEAD");
+
+        if (hasBody) {
+            respond(connection, plainResponse(413, "Payload Too Large", "Request bodies are not supported.",
+                    false, false), null, false);
+            return;
+        }
+        if (!method.equals("GET") && !headOnly) {
+            respond(connection, plainResponse(405, "Method Not Allowed", "Only GET and HEAD are supported.",
+                    false, keepAlive), null, keepAlive);
+            return;
+        }
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        String query = queryStart < 0 ? null : target.substring(queryStart + 1);
+        if (path.equals(HEALTHY_PATH)) {
+            respond(connection, plainResponse(200, "OK", HEALTHY_RESPONSE, headOnly, keepAlive), null, keepAlive);
+            return;
+        }
+
+        if (cache.isInitialising()) {
+            respond(connection, plainResponse(503, "Service Unavailable", INITIALISING_RESPONSE, headOnly, keepAlive),
+                    null, keepAlive);
+            return;
+        }
+
+        final Set<String> names;
+        try {
+            names = parseQuery(query);
+        } catch (IllegalArgumentException e) {
+            respond(connection, plainResponse(400, "Bad Request", "Malformed query.", false, false), null, false);
+            return;
+        }
+        if (!renderPermits.tryAcquire()) {
+            respond(connection, plainResponse(503, "Service Unavailable", "Too many concurrent requests.",
+                    false, false), null, false);
+            return;
+        }
+        final ExpositionFormat format = ExpositionFormat.negotiate(accept);
+        final boolean gzip = acceptsGzip(acceptEncoding);
+        final Connection rendering = connection;
+        connection.rendering = true;
+        connection.keepAlive = keepAlive;
+        connection.headOnly = headOnly;
+        connection.key.interestOps(0);
+        try {
+            renderers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        rendering.response = cache.get(format, names, gzip);
+                    } catch (Throwable t) {
+                        rendering.failure = t;
+                    } finally {
+                        renderPermits.release();
+                        rendered.add(rendering);
+                        selector.wakeup();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            renderPermits.release();
+            close(connection);
+        }
+    }
+
+    private void finishRendering(Connection connection) {
+        connection.rendering = false;
+        if (connection.closed) {
+            return;
+        }
+        try {
+            ResponseCache.Response response = connection.response;
+            connection.response = null;
+            if (response == null) {
+                LOGGER.log(Level.WARNING, "Error rendering metrics", connection.failure);
+                connection.failure = null;
+                respond(connection, plainResponse(500, "Internal Server Error", "Error rendering metrics.",
+                        false, false), null, false);
+                return;
+            }
+            byte[] head = head(200, "OK", response.contentType, response.gzipped ? "gzip" : null,
+                    response.body.length, connection.keepAlive);
+            respond(connection, head, connection.headOnly ? null : response.body, connection.keepAlive);
+        } catch (IOException e) {
+            close(connection);
+        } catch (CancelledKeyException e) {
+            close(connection);
+        }
+    }
+
+    private void respond(Connection connection, byte[] head, byte[] body, boolean keepAlive) throws IOException {
+        connection.keepAlive = keepAlive;
+        connection.head = head;
+        connection.body = body;
+        connection.headOffset = 0;
+        connection.bodyOffset = 0;
+        connection.out = bufferPool.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : bufferPool.pop();
+        connection.out.limit(0);
+        write(connection);
+    }
+
+    private void write(Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        while (true) {
+            if (!out.hasRemaining()) {
+                out.clear();
+                fill(connection, out);
+                out.flip();
+                if (!out.hasRemaining()) {
+                    finishResponse(connection);
+                    return;
+                }
+            }
+            connection.channel.write(out);
+            if (out.hasRemaining()) {
+                // The socket is full, carry on when it drains.
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.lastActiveNanos = System.nanoTime();
+        }
+    }
+
+    private static void fill(Connection connection, ByteBuffer out) {
+        if (connection.headOffset < connection.head.length) {
+            int length = Math.min(out.remaining(), connection.head.length - connection.headOffset);
+            out.put(connection.head, connection.headOffset, length);
+            connection.headOffset += length;
+        }
+        if (connection.body != null && connection.bodyOffset < connection.body.length) {
+            int length = Math.min(out.remaining(), connection.body.length - connection.bodyOffset);
+            out.put(connection.body, connection.bodyOffset, length);
+            connection.bodyOffset += length;
+        }
+    }
+
+    private void finishResponse(Connection connection) throws IOException {
+        releaseBuffer(connection);
+        connection.head = null;
+        connection.body = null;
+        if (!connection.keepAlive) {
+            close(connection);
+            return;
+        }
+        connection.lastActiveNanos = System.nanoTime();
+        connection.key.interestOps(SelectionKey.OP_READ);
+        if (connection.request.position() > 0) {
+            // A pipelined request.
+            processRequest(connection);
+        }
+    }
+
+    private void releaseBuffer(Connection connection) {
+        if (connection.out != null) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                connection.out.clear();
+                bufferPool.push(connection.out);
+            }
+            connection.out = null;
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && !connection.rendering && connection.out == null
+                    && now - connection.lastActiveNanos > TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS)) {
+                close(connection);
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection == null || connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        connections--;
+        releaseBuffer(connection);
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    /**
+     * @return the index just after the blank line ending the request head in the first {@code length} bytes,
+     * or -1 if it is not there yet.
+     */
+    static int headEnd(byte[] bytes, int length) {
+        for (int i = 3; i < length; i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    static byte[] head(int status, String reason, String contentType, String contentEncoding, int contentLength,
+                       boolean keepAlive) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+        if (contentEncoding != null) {
+            sb.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        }
+        if (status == 405) {
+            sb.append("Allow: GET, HEAD\r\n");
+        }
+        sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        return sb.toString().getBytes(ISO_8859_1);
+    }
+
+    private static byte[] plainResponse(int status, String reason, String message, boolean headOnly,
+                                        boolean keepAlive) {
+        byte[] body = message.getBytes(UTF_8);
+        byte[] head = head(status, reason, "text/plain; charset=utf-8", null, body.length, keepAlive);
+        if (headOnly) {
+            return head;
+        }
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+        return response;
+    }
+}
@@ -0,0 +1,62 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded, concurrent memo of a String to String normalisation, such as sanitising metric names.
+ * <p>
+ * The same few thousand attribute and label names are normalised on every scrape. Caching the result turns
+ * each repeat into a single hash lookup, and returning the cached instance means every sample shares one
+ * canonical String on the heap. When the cache fills up it is cleared, so an unexpected explosion of distinct
+ * names costs some recomputation rather than unbounded memory.
+ */
+abstract class NormalisationCache {
+    private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+    private final int maxSize;
+
+    NormalisationCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Compute the normalised form of a non-null input.
+     */
+    protected abstract String normalise(String input);
+
+    /**
+     * @return the canonical normalised instance for the input, or null if the input is null.
+     */
+    String get(String input) {
+        if (input == null) {
+            return null;
+        }
+        String normalised = cache.get(input);
+        if (normalised != null) {
+            return normalised;
+        }
+        normalised = normalise(input);
+        if (normalised.equals(input)) {
+            normalised = input;
+        }
+        if (cache.size() >= maxSize) {
+            cache.clear();
+        }
+        // Use the instance cached by the input itself if the result is already known (e.g. names that are
+        // already safe), so that equal names end up sharing one object.
+        String canonical = cache.get(normalised);
+        if (canonical != null && canonical.equals(normalised)) {
+            normalised = canonical;
+        }
+        String previous = cache.putIfAbsent(input, normalised);
+        return previous != null ? previous : normalised;
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    void clear() {
+        cache.clear();
+    }
+}
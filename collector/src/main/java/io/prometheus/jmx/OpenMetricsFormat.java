@@ -0,0 +1,146 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * The OpenMetrics 1.0.0 text format.
+ * <p>
+ * OpenMetrics names a counter family without its {@code _total} suffix and requires the samples to carry it.
+ * Counters whose samples are not named that way, as rules may produce, are exposed as {@code unknown} so the
+ * output stays valid without renaming any series.
+ */
+class OpenMetricsFormat extends ExpositionFormat {
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    OpenMetricsFormat() {
+        super(CONTENT_TYPE);
+    }
+
+    @Override
+    void write(OutputStream out, List<MetricFamilySamples> mfs) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        for (MetricFamilySamples family : mfs) {
+            String name = family.name;
+            String type = typeName(family.type);
+            if (family.type == Collector.Type.COUNTER) {
+                String base = name.endsWith("_total") ? name.substring(0, name.length() - 6) : name;
+                if (isOpenMetricsCounter(base, family.samples)) {
+                    name = base;
+                } else {
+                    type = "unknown";
+                }
+            }
+
+            writer.write("# TYPE ");
+            writer.write(name);
+            writer.write(' ');
+            writer.write(type);
+            writer.write('\n');
+            if (family.help != null && family.help.length() > 0) {
+                writer.write("# HELP ");
+                writer.write(name);
+                writer.write(' ');
+                writeEscaped(writer, family.help);
+                writer.write('\n');
+            }
+
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                writer.write(sample.name);
+                if (!sample.labelNames.isEmpty()) {
+                    writer.write('{');
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(sample.labelNames.get(i));
+                        writer.write("=\"");
+                        writeEscaped(writer, sample.labelValues.get(i));
+                        writer.write('"');
+                    }
+                    writer.write('}');
+                }
+                writer.write(' ');
+                writer.write(Collector.doubleToGoString(sample.value));
+                if (sample.timestampMs != null) {
+                    writer.write(' ');
+                    writeTimestamp(writer, sample.timestampMs);
+                }
+                writer.write('\n');
+            }
+        }
+        writer.write("# EOF\n");
+        writer.flush();
+    }
+
+    private static boolean isOpenMetricsCounter(String base, List<MetricFamilySamples.Sample> samples) {
+        for (MetricFamilySamples.Sample sample : samples) {
+            if (!sample.name.startsWith(base)) {
+                return false;
+            }
+            String suffix = sample.name.substring(base.length());
+            if (!suffix.equals("_total") && !suffix.equals("_created")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String typeName(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return "counter";
+            case GAUGE:
+                return "gauge";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static void writeEscaped(Writer writer, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    // OpenMetrics timestamps are in seconds.
+    private static void writeTimestamp(Writer writer, long timestampMs) throws IOException {
+        if (timestampMs < 0) {
+            writer.write(Double.toString(timestampMs / 1000.0));
+            return;
+        }
+        writer.write(Long.toString(timestampMs / 1000));
+        writer.write('.');
+        long millis = timestampMs % 1000;
+        if (millis < 100) {
+            writer.write('0');
+        }
+        if (millis < 10) {
+            writer.write('0');
+        }
+        writer.write(Long.toString(millis));
+    }
+}
@@ -0,0 +1,305 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * The delimited protobuf format: a stream of length prefixed {@code io.prometheus.client.MetricFamily} messages.
+ * <p>
+ * Messages are encoded by hand straight from the collected families, which is all that is needed for this
+ * fixed schema and keeps a protobuf runtime out of the agent. Summary and histogram samples are folded into one
+ * metric per label set. A counter, gauge or untyped family whose samples are not all named after it is split,
+ * with each other name exposed as an untyped family of its own, as the format names metrics by family.
+ */
+class ProtobufFormat extends ExpositionFormat {
+    static final String CONTENT_TYPE =
+            "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    // MetricType
+    static final int COUNTER = 0;
+    static final int GAUGE = 1;
+    static final int SUMMARY = 2;
+    static final int UNTYPED = 3;
+    static final int HISTOGRAM = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    ProtobufFormat() {
+        super(CONTENT_TYPE);
+    }
+
+    /**
+     * A growable buffer with the protobuf wire encodings used by the exposition messages.
+     */
+    static class ProtoBuffer {
+        byte[] bytes = new byte[256];
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeTag(int field, int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+
+        void writeDouble(int field, double value) {
+            writeTag(field, 1);
+            ensure(8);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (bits >>> (8 * i));
+            }
+        }
+
+        void writeUint64(int field, long value) {
+            writeTag(field, 0);
+            writeVarint(value);
+        }
+
+        void writeBytes(int field, byte[] value, int length) {
+            writeTag(field, 2);
+            writeVarint(length);
+            ensure(length);
+            System.arraycopy(value, 0, bytes, size, length);
+            size += length;
+        }
+
+        void writeString(int field, String value) {
+            byte[] encoded = value.getBytes(UTF_8);
+            writeBytes(field, encoded, encoded.length);
+        }
+
+        void writeMessage(int field, ProtoBuffer message) {
+            writeBytes(field, message.bytes, message.size);
+        }
+    }
+
+    @Override
+    void write(OutputStream out, List<MetricFamilySamples> mfs) throws IOException {
+        ProtoBuffer family = new ProtoBuffer();
+        ProtoBuffer metric = new ProtoBuffer();
+        ProtoBuffer value = new ProtoBuffer();
+        ProtoBuffer nested = new ProtoBuffer();
+        ProtoBuffer prefix = new ProtoBuffer();
+
+        for (MetricFamilySamples mf : mfs) {
+            if (mf.type == Collector.Type.SUMMARY || mf.type == Collector.Type.HISTOGRAM) {
+                family.reset();
+                writeFamilyHeader(family, mf.name, mf.help, mf.type == Collector.Type.SUMMARY ? SUMMARY : HISTOGRAM);
+                for (List<MetricFamilySamples.Sample> group : groupByLabels(mf).values()) {
+                    metric.reset();
+                    writeDistribution(metric, value, nested, mf, group);
+                    family.writeMessage(4, metric);
+                }
+                writeDelimited(out, prefix, family);
+                continue;
+            }
+
+            // Counters, gauges and untyped: one family per sample name, the family's own name first.
+            Map<String, List<MetricFamilySamples.Sample>> byName =
+                    new LinkedHashMap<String, List<MetricFamilySamples.Sample>>();
+            byName.put(mf.name, new ArrayList<MetricFamilySamples.Sample>());
+            for (MetricFamilySamples.Sample sample : mf.samples) {
+                List<MetricFamilySamples.Sample> samples = byName.get(sample.name);
+                if (samples == null) {
+                    samples = new ArrayList<MetricFamilySamples.Sample>();
+                    byName.put(sample.name, samples);
+                }
+                samples.add(sample);
+            }
+            for (Map.Entry<String, List<MetricFamilySamples.Sample>> entry : byName.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                int type = entry.getKey().equals(mf.name) ? metricType(mf.type) : UNTYPED;
+                family.reset();
+                writeFamilyHeader(family, entry.getKey(), mf.help, type);
+                for (MetricFamilySamples.Sample sample : entry.getValue()) {
+                    metric.reset();
+                    writeLabels(metric, sample, null);
+                    value.reset();
+                    value.writeDouble(1, sample.value);
+                    // Counter = 3, Gauge = 2, Untyped = 5.
+                    metric.writeMessage(type == COUNTER ? 3 : type == GAUGE ? 2 : 5, value);
+                    if (sample.timestampMs != null) {
+                        metric.writeUint64(6, sample.timestampMs);
+                    }
+                    family.writeMessage(4, metric);
+                }
+                writeDelimited(out, prefix, family);
+            }
+        }
+    }
+
+    private static int metricType(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return COUNTER;
+            case GAUGE:
+                return GAUGE;
+            default:
+                return UNTYPED;
+        }
+    }
+
+    private static void writeFamilyHeader(ProtoBuffer family, String name, String help, int type) {
+        family.writeString(1, name);
+        if (help != null && help.length() > 0) {
+            family.writeString(2, help);
+        }
+        family.writeTag(3, 0);
+        family.writeVarint(type);
+    }
+
+    private static void writeDelimited(OutputStream out, ProtoBuffer prefix, ProtoBuffer message) throws IOException {
+        prefix.reset();
+        prefix.writeVarint(message.size);
+        out.write(prefix.bytes, 0, prefix.size);
+        out.write(message.bytes, 0, message.size);
+    }
+
+    /**
+     * Write the label pairs of a sample, leaving out the {@code quantile} or {@code le} label.
+     */
+    private static void writeLabels(ProtoBuffer metric, MetricFamilySamples.Sample sample, String skip) {
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+            String name = sample.labelNames.get(i);
+            if (name.equals(skip)) {
+                continue;
+            }
+            byte[] nameBytes = name.getBytes(UTF_8);
+            byte[] valueBytes = sample.labelValues.get(i).getBytes(UTF_8);
+            // A LabelPair of a name (1) and a value (2), each a tag, a length and the bytes.
+            int length = 2 + varintSize(nameBytes.length) + nameBytes.length
+                    + varintSize(valueBytes.length) + valueBytes.length;
+            metric.writeTag(1, 2);
+            metric.writeVarint(length);
+            metric.writeBytes(1, nameBytes, nameBytes.length);
+            metric.writeBytes(2, valueBytes, valueBytes.length);
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Group the samples of a summary or histogram family by their labels, without the quantile or bucket label.
+     */
+    private static Map<List<String>, List<MetricFamilySamples.Sample>> groupByLabels(MetricFamilySamples mf) {
+        String skip = mf.type == Collector.Type.SUMMARY ? "quantile" : "le";
+        Map<List<String>, List<MetricFamilySamples.Sample>> groups =
+                new LinkedHashMap<List<String>, List<MetricFamilySamples.Sample>>();
+        for (MetricFamilySamples.Sample sample : mf.samples) {
+            List<String> key = new ArrayList<String>(sample.labelNames.size() * 2);
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (!sample.labelNames.get(i).equals(skip)) {
+                    key.add(sample.labelNames.get(i));
+                    key.add(sample.labelValues.get(i));
+                }
+            }
+            List<MetricFamilySamples.Sample> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<MetricFamilySamples.Sample>();
+                groups.put(key, group);
+            }
+            group.add(sample);
+        }
+        return groups;
+    }
+
+    private static void writeDistribution(ProtoBuffer metric, ProtoBuffer value, ProtoBuffer nested,
+                                          MetricFamilySamples mf, List<MetricFamilySamples.Sample> group) {
+        boolean summary = mf.type == Collector.Type.SUMMARY;
+        String skip = summary ? "quantile" : "le";
+        writeLabels(metric, group.get(0), skip);
+
+        value.reset();
+        Long timestampMs = null;
+        for (MetricFamilySamples.Sample sample : group) {
+            if (sample.name.equals(mf.name + "_count")) {
+                value.writeUint64(1, (long) sample.value);
+            } else if (sample.name.equals(mf.name + "_sum")) {
+                value.writeDouble(2, sample.value);
+            }
+            if (sample.timestampMs != null) {
+                timestampMs = sample.timestampMs;
+            }
+        }
+        for (MetricFamilySamples.Sample sample : group) {
+            String label = labelValue(sample, skip);
+            if (label == null) {
+                continue;
+            }
+            double bound;
+            try {
+                bound = parseBound(label);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nested.reset();
+            if (summary && sample.name.equals(mf.name)) {
+                // Quantile: quantile (1), value (2).
+                nested.writeDouble(1, bound);
+                nested.writeDouble(2, sample.value);
+                value.writeMessage(3, nested);
+            } else if (!summary && sample.name.equals(mf.name + "_bucket") && bound != Double.POSITIVE_INFINITY) {
+                // Bucket: cumulative_count (1), upper_bound (2). The +Inf bucket is implied by sample_count.
+                nested.writeUint64(1, (long) sample.value);
+                nested.writeDouble(2, bound);
+                value.writeMessage(3, nested);
+            }
+        }
+        // Summary = 4, Histogram = 7.
+        metric.writeMessage(summary ? 4 : 7, value);
+        if (timestampMs != null) {
+            metric.writeUint64(6, timestampMs);
+        }
+    }
+
+    private static String labelValue(MetricFamilySamples.Sample sample, String name) {
+        int i = sample.labelNames.indexOf(name);
+        return i >= 0 ? sample.labelValues.get(i) : null;
+    }
+
+    private static double parseBound(String bound) {
+        if (bound.equals("+Inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (bound.equals("-Inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(bound);
+    }
+}
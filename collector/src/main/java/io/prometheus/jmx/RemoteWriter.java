@@ -0,0 +1,424 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+
+/**
+ * Pushes the samples of a registry to a Prometheus remote write endpoint on a schedule.
+ * <p>
+ * Each push collects the registry and encodes it into snappy compressed {@code prometheus.WriteRequest}
+ * batches, which a dedicated sender thread delivers in order. Batches that fail with a network error, a 5xx or
+ * a 429 are retried with exponential backoff, other rejections are dropped. While batches can't be delivered,
+ * they wait in a bounded in-memory queue; with a {@code queueDirectory} they are moved to a {@link DiskQueue}
+ * instead, which survives a restart. Everything in memory is always older than everything on disk, so delivery
+ * stays in order. On shutdown a final push is made, and whatever can't be delivered in time is persisted.
+ */
+class RemoteWriter {
+    private static final Logger LOGGER = Logger.getLogger(RemoteWriter.class.getName());
+    private static final long MIN_BACKOFF_MILLIS = 100;
+
+    static class Config {
+        URL url;
+        long intervalSeconds = 15;
+        int maxSamplesPerBatch = 2000;
+        int maxQueuedBatches = 100;
+        File queueDirectory;
+        long maxQueueDirectoryBytes = 256L * 1024 * 1024;
+        int timeoutSeconds = 10;
+        long maxBackoffMillis = 30000;
+        // Sorted, so they can be merged with the labels of each sample.
+        Map<String, String> labels = new TreeMap<String, String>();
+
+        static Config fromYaml(Map<String, Object> yaml) {
+            Config cfg = new Config();
+            if (!yaml.containsKey("url")) {
+                throw new IllegalArgumentException("remoteWrite must have a url");
+            }
+            try {
+                cfg.url = new URL((String) yaml.get("url"));
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Invalid remoteWrite url: " + e.getMessage(), e);
+            }
+            if (yaml.containsKey("intervalSeconds")) {
+                cfg.intervalSeconds = positive(yaml, "intervalSeconds").longValue();
+            }
+            if (yaml.containsKey("maxSamplesPerBatch")) {
+                cfg.maxSamplesPerBatch = positive(yaml, "maxSamplesPerBatch").intValue();
+            }
+            if (yaml.containsKey("maxQueuedBatches")) {
+                cfg.maxQueuedBatches = positive(yaml, "maxQueuedBatches").intValue();
+            }
+            if (yaml.containsKey("queueDirectory")) {
+                cfg.queueDirectory = new File((String) yaml.get("queueDirectory"));
+            }
+            if (yaml.containsKey("maxQueueDirectoryBytes")) {
+                cfg.maxQueueDirectoryBytes = positive(yaml, "maxQueueDirectoryBytes").longValue();
+            }
+            if (yaml.containsKey("timeoutSeconds")) {
+                cfg.timeoutSeconds = positive(yaml, "timeoutSeconds").intValue();
+            }
+            if (yaml.containsKey("maxBackoffMillis")) {
+                cfg.maxBackoffMillis = positive(yaml, "maxBackoffMillis").longValue();
+            }
+            if (yaml.containsKey("labels")) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) yaml.get("labels")).entrySet()) {
+                    cfg.labels.put(entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+            return cfg;
+        }
+
+        private static Number positive(Map<String, Object> yaml, String key) {
+            Number value = (Number) yaml.get(key);
+            if (value.longValue() <= 0) {
+                throw new IllegalArgumentException("remoteWrite " + key + " must be positive");
+            }
+            return value;
+        }
+    }
+
+    private final CollectorRegistry registry;
+    private final Config config;
+    private final DiskQueue disk;
+    private final ScheduledExecutorService scheduler;
+    private final Thread sender;
+    private final Object lock = new Object();
+    // Compressed batches, oldest first. Guarded by lock, as is the disk queue.
+    private final ArrayDeque<byte[]> memory = new ArrayDeque<byte[]>();
+    private volatile boolean stopped = false;
+
+    private final Counter batchesSent;
+    private final Counter sendFailures;
+    private final Counter batchesDropped;
+
+    RemoteWriter(CollectorRegistry registry, Config config) throws IOException {
+        this.registry = registry;
+        this.config = config;
+        this.disk = config.queueDirectory != null
+                ? new DiskQueue(config.queueDirectory, config.maxQueueDirectoryBytes) : null;
+        batchesSent = Counter.build()
+                .name("jmx_remote_write_batches_sent_total")
+                .help("Number of remote write batches delivered").register(registry);
+        sendFailures = Counter.build()
+                .name("jmx_remote_write_send_failures_total")
+                .help("Number of failed remote write attempts that will be retried").register(registry);
+        batchesDropped = Counter.build()
+                .name("jmx_remote_write_batches_dropped_total")
+                .help("Number of remote write batches dropped, because they were rejected or queues were full")
+                .register(registry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                MetricsServer.threadFactory("jmx-exporter-remote-write-", true));
+        sender = MetricsServer.threadFactory("jmx-exporter-remote-write-sender-", true).newThread(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        });
+    }
+
+    /**
+     * Start pushing if the collector's configuration has a {@code remoteWrite} section.
+     *
+     * @return the started writer, or null if push is not configured.
+     */
+    static RemoteWriter startIfConfigured(CollectorRegistry registry, JmxCollector collector) throws IOException {
+        Config config = collector.remoteWriteConfig();
+        if (config == null) {
+            return null;
+        }
+        final RemoteWriter writer = new RemoteWriter(registry, config);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                writer.stop();
+            }
+        }, "jmx-exporter-remote-write-shutdown"));
+        return writer;
+    }
+
+    void start() {
+        sender.start();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                push();
+            }
+        }, 0, config.intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Make a final push, give the sender up to {@code timeoutSeconds} to deliver what is queued, and persist
+     * the rest if there is a queue directory.
+     */
+    void stop() {
+        if (stopped) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(config.timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        push();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.timeoutSeconds);
+        synchronized (lock) {
+            while (queued() > 0 && System.nanoTime() < deadline) {
+                try {
+                    lock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            stopped = true;
+            lock.notifyAll();
+        }
+        sender.interrupt();
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(config.timeoutSeconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            spillToDisk();
+        }
+    }
+
+    /**
+     * @return the number of batches waiting to be delivered.
+     */
+    int queued() {
+        synchronized (lock) {
+            return memory.size() + (disk != null ? disk.size() : 0);
+        }
+    }
+
+    void push() {
+        try {
+            List<MetricFamilySamples> mfs = Collections.list(registry.metricFamilySamples());
+            for (byte[] batch : encode(mfs, System.currentTimeMillis(), config.labels, config.maxSamplesPerBatch)) {
+                enqueue(Snappy.compress(batch));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Remote write push failed", e);
+        }
+    }
+
+    private void enqueue(byte[] batch) {
+        synchronized (lock) {
+            if (disk != null && (!disk.isEmpty() || memory.size() >= config.maxQueuedBatches)) {
+                try {
+                    batchesDropped.inc(disk.addLast(batch));
+                } catch (IOException e) {
+                    LOGGER.warning("Can not persist remote write batch: " + e);
+                    batchesDropped.inc();
+                }
+            } else {
+                if (memory.size() >= config.maxQueuedBatches) {
+                    memory.pollFirst();
+                    batchesDropped.inc();
+                }
+                memory.addLast(batch);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Move the in-memory batches in front of those on disk. Called with the lock held.
+     */
+    private void spillToDisk() {
+        if (disk == null) {
+            return;
+        }
+        while (!memory.isEmpty()) {
+            try {
+                batchesDropped.inc(disk.addFirst(memory.peekLast()));
+            } catch (IOException e) {
+                LOGGER.warning("Can not persist remote write batch: " + e);
+                return;
+            }
+            memory.pollLast();
+        }
+    }
+
+    private void sendLoop() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!stopped) {
+            byte[] batch = null;
+            File file = null;
+            synchronized (lock) {
+                if (!memory.isEmpty()) {
+                    batch = memory.peekFirst();
+                } else if (disk != null && !disk.isEmpty()) {
+                    Map.Entry<File, byte[]> head = disk.peek();
+                    if (head != null) {
+                        file = head.getKey();
+                        batch = head.getValue();
+                    }
+                }
+                if (batch == null) {
+                    try {
+                        lock.wait(1000);
+                    } catch (InterruptedException e) {
+                        // Checks whether the writer was stopped.
+                    }
+                    continue;
+                }
+            }
+
+            if (send(batch)) {
+                backoff = MIN_BACKOFF_MILLIS;
+                synchronized (lock) {
+                    if (file != null) {
+                        disk.remove(file);
+                    } else if (memory.peekFirst() == batch) {
+                        memory.pollFirst();
+                    }
+                    lock.notifyAll();
+                }
+            } else {
+                sendFailures.inc();
+                synchronized (lock) {
+                    // The receiver is down: keep the backlog where it survives a restart.
+                    spillToDisk();
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    // Checks whether the writer was stopped.
+                }
+                backoff = Math.min(backoff * 2, config.maxBackoffMillis);
+            }
+        }
+    }
+
+    /**
+     * @return true if the batch was consumed, either delivered or rejected for good, false to retry it.
+     */
+    private boolean send(byte[] batch) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) config.url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(config.timeoutSeconds * 1000);
+            connection.setReadTimeout(config.timeoutSeconds * 1000);
+            connection.setFixedLengthStreamingMode(batch.length);
+            connection.setRequestProperty("Content-Type", "application/x-protobuf");
+            connection.setRequestProperty("Content-Encoding", "snappy");
+            connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+            connection.setRequestProperty("User-Agent", "jmx_exporter");
+            OutputStream out = connection.getOutputStream();
+            out.write(batch);
+            out.close();
+
+            int status = connection.getResponseCode();
+            drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            if (status / 100 == 2) {
+                batchesSent.inc();
+                return true;
+            }
+            if (status / 100 == 5 || status == 429) {
+                LOGGER.fine("Remote write endpoint returned " + status + ", retrying");
+                return false;
+            }
+            LOGGER.warning("Remote write endpoint rejected a batch with status " + status + ", dropping it");
+            batchesDropped.inc();
+            return true;
+        } catch (IOException e) {
+            LOGGER.fine("Remote write failed, retrying: " + e);
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+            // Discard.
+        }
+        in.close();
+    }
+
+    /**
+     * Encode samples into uncompressed {@code prometheus.WriteRequest} messages of at most
+     * {@code maxSamplesPerBatch} series each.
+     * <p>
+     * Each series gets the {@code __name__} of its sample, the sample's labels and the given extra labels, which
+     * don't override labels of the sample, sorted by name as the receiver requires.
+     */
+    static List<byte[]> encode(List<MetricFamilySamples> mfs, long timestampMs, Map<String, String> extraLabels,
+                               int maxSamplesPerBatch) {
+        List<byte[]> batches = new ArrayList<byte[]>();
+        ProtobufFormat.ProtoBuffer request = new ProtobufFormat.ProtoBuffer();
+        ProtobufFormat.ProtoBuffer series = new ProtobufFormat.ProtoBuffer();
+        ProtobufFormat.ProtoBuffer nested = new ProtobufFormat.ProtoBuffer();
+        int inBatch = 0;
+        for (MetricFamilySamples family : mfs) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                TreeMap<String, String> labels = new TreeMap<String, String>(extraLabels);
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    labels.put(sample.labelNames.get(i), sample.labelValues.get(i));
+                }
+                labels.put("__name__", sample.name);
+
+                series.reset();
+                for (Map.Entry<String, String> label : labels.entrySet()) {
+                    // Label: name (1), value (2).
+                    nested.reset();
+                    nested.writeString(1, label.getKey());
+                    nested.writeString(2, label.getValue());
+                    series.writeMessage(1, nested);
+                }
+                // Sample: value (1), timestamp (2).
+                nested.reset();
+                nested.writeDouble(1, sample.value);
+                nested.writeUint64(2, sample.timestampMs != null ? sample.timestampMs : timestampMs);
+                series.writeMessage(2, nested);
+                request.writeMessage(1, series);
+
+                if (++inBatch == maxSamplesPerBatch) {
+                    batches.add(toBytes(request));
+                    request.reset();
+                    inBatch = 0;
+                }
+            }
+        }
+        if (inBatch > 0) {
+            batches.add(toBytes(request));
+        }
+        return batches;
+    }
+
+    private static byte[] toBytes(ProtobufFormat.ProtoBuffer buffer) {
+        byte[] bytes = new byte[buffer.size];
+        System.arraycopy(buffer.bytes, 0, bytes, 0, buffer.size);
+        return bytes;
+    }
+}
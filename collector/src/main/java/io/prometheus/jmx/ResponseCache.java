@@ -0,0 +1,255 @@
+package io.prometheus.jmx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * Serialised exposition responses of a registry, shared between requests for the same snapshot.
+ * <p>
+ * Serialising and compressing a large scrape costs far more CPU than writing the resulting bytes, so each
+ * rendered body is kept along with a gzip copy compressed on first demand. Responses are keyed by format and
+ * {@code name[]} filter. Concurrent requests for the same key wait for a single rendering, and a rendered body
+ * is served again for {@code maxAgeMillis} after it was produced, which for a {@link JmxCollector} is its
+ * {@code coalesceScrapesWithinMillis} window: the samples could not have changed in the meantime anyway. With
+ * that window at its default of 0, bodies are only shared by concurrent requests, and not kept.
+ */
+class ResponseCache {
+    // Distinct name[] filters are chosen by clients, so bound how many bodies are kept at once.
+    static final int MAX_CACHED_RESPONSES = 64;
+
+    /**
+     * A serialised response body.
+     */
+    static class Response {
+        final String contentType;
+        final byte[] body;
+        final boolean gzipped;
+
+        Response(String contentType, byte[] body, boolean gzipped) {
+            this.contentType = contentType;
+            this.body = body;
+            this.gzipped = gzipped;
+        }
+    }
+
+    /**
+     * The source of the maximum age of a cached response, which may change as configuration is reloaded.
+     */
+    interface MaxAge {
+        long maxAgeMillis();
+    }
+
+    private static class Key {
+        final ExpositionFormat format;
+        final Set<String> names;
+
+        Key(ExpositionFormat format, Set<String> names) {
+            this.format = format;
+            this.names = names;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return format.equals(other.format) && names.equals(other.names);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * format.hashCode() + names.hashCode();
+        }
+    }
+
+    private static class Snapshot {
+        final String contentType;
+        final byte[] body;
+        final long renderedAtNanos;
+        private byte[] gzipped;
+
+        Snapshot(String contentType, byte[] body, long renderedAtNanos) {
+            this.contentType = contentType;
+            this.body = body;
+            this.renderedAtNanos = renderedAtNanos;
+        }
+
+        synchronized byte[] gzipped() throws IOException {
+            if (gzipped == null) {
+                ScrapePhases phases = new ScrapePhases();
+                phases.enter(ScrapePhases.Phase.SERIALISATION);
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(body);
+                gzip.close();
+                gzipped = compressed.toByteArray();
+                phases.end();
+            }
+            return gzipped;
+        }
+    }
+
+    private final CollectorRegistry registry;
+    private final MaxAge maxAge;
+    private final Object lock = new Object();
+    private final Map<Key, Snapshot> snapshots = new HashMap<Key, Snapshot>();
+    private final Map<Key, FutureTask<Snapshot>> inFlight = new HashMap<Key, FutureTask<Snapshot>>();
+    // Set until the registry is ready to be rendered, when servers answer that they are initialising.
+    private volatile boolean initialising;
+
+    ResponseCache(CollectorRegistry registry, MaxAge maxAge) {
+        this.registry = registry;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param format the exposition format to render.
+     * @param names the metric names to include, or an empty set for all of them.
+     * @param gzip whether the body should be gzip compressed.
+     */
+    Response get(ExpositionFormat format, Set<String> names, boolean gzip) throws IOException {
+        final Key key = new Key(format, Collections.unmodifiableSet(new HashSet<String>(names)));
+        long window = maxAge.maxAgeMillis() * 1000000L;
+        Snapshot fresh = null;
+        FutureTask<Snapshot> render;
+        boolean owner = false;
+        synchronized (lock) {
+            Snapshot snapshot = snapshots.get(key);
+            if (snapshot != null && window > 0 && System.nanoTime() - snapshot.renderedAtNanos < window) {
+                fresh = snapshot;
+            }
+            render = fresh != null ? null : inFlight.get(key);
+            if (fresh == null && render == null) {
+                render = new FutureTask<Snapshot>(new Callable<Snapshot>() {
+                    public Snapshot call() throws IOException {
+                        return render(key);
+                    }
+                });
+                inFlight.put(key, render);
+                owner = true;
+            }
+        }
+
+        if (fresh != null) {
+            // Compress outside of the lock, so a first gzip request does not hold up other keys.
+            return response(fresh, gzip);
+        }
+        if (owner) {
+            render.run();
+            synchronized (lock) {
+                inFlight.remove(key);
+                snapshots.remove(key);
+                if (window > 0) {
+                    try {
+                        if (snapshots.size() >= MAX_CACHED_RESPONSES) {
+                            snapshots.clear();
+                        }
+                        snapshots.put(key, render.get());
+                    } catch (Exception e) {
+                        // Reported to every waiting request below.
+                    }
+                }
+            }
+        }
+
+        try {
+            return response(render.get(), gzip);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a concurrent response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    void setInitialising(boolean initialising) {
+        this.initialising = initialising;
+    }
+
+    boolean isInitialising() {
+        return initialising;
+    }
+
+    int size() {
+        synchronized (lock) {
+            return snapshots.size();
+        }
+    }
+
+    private static Response response(Snapshot snapshot, boolean gzip) throws IOException {
+        if (gzip) {
+            return new Response(snapshot.contentType, snapshot.gzipped(), true);
+        }
+        return new Response(snapshot.contentType, snapshot.body, false);
+    }
+
+    private Snapshot render(Key key) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+        List<MetricFamilySamples> mfs;
+        // Let JmxCollectors scrape only the beans that feed the requested names.
+        JmxCollector.setRequestedNames(key.names);
+        try {
+            mfs = filter(registry.metricFamilySamples(), key.names);
+        } finally {
+            JmxCollector.setRequestedNames(null);
+        }
+        ScrapePhases phases = new ScrapePhases();
+        phases.enter(ScrapePhases.Phase.SERIALISATION);
+        key.format.write(body, mfs);
+        byte[] bytes = body.toByteArray();
+        phases.end();
+        return new Snapshot(key.format.contentType, bytes, System.nanoTime());
+    }
+
+    /**
+     * Select the samples with the given names.
+     * <p>
+     * Unlike {@link CollectorRegistry#filteredMetricFamilySamples}, this builds new lists rather than removing
+     * samples from the lists returned by the collectors, which other collectors might not expect.
+     */
+    static List<MetricFamilySamples> filter(Enumeration<MetricFamilySamples> mfs, Set<String> names) {
+        List<MetricFamilySamples> filtered = new ArrayList<MetricFamilySamples>();
+        while (mfs.hasMoreElements()) {
+            MetricFamilySamples family = mfs.nextElement();
+            if (names.isEmpty()) {
+                filtered.add(family);
+                continue;
+            }
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                if (names.contains(sample.name)) {
+                    samples.add(sample);
+                }
+            }
+            if (!samples.isEmpty()) {
+                filtered.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+            }
+        }
+        return filtered;
+    }
+}
@@ -0,0 +1,211 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the series of full scrapes across scrapes, so a scrape of a stable JVM doesn't rebuild the same families
+ * and samples from scratch.
+ * <p>
+ * Each series owns a slot, found through the {@link MatchedRule} that produced it when rules are cached, or by its
+ * name and labels otherwise. A scrape only writes the values of the series it sees into the back buffer, an array
+ * of doubles. {@link #flip()} then publishes them: samples whose values didn't change are handed out again as they
+ * are, new samples are only created for values that changed, and series that were not written are dropped and their
+ * slots reused.
+ * <p>
+ * A family is only rebuilt when one of its samples changed or a series was added or dropped, otherwise the family
+ * of the previous flip is returned again. Their sample lists are unmodifiable, {@link JmxCollector#collect()} hands
+ * out copies that callers such as {@link io.prometheus.client.CollectorRegistry} may modify. Only one scrape may use
+ * an arena at a time.
+ */
+class SampleArena {
+    private static final int INITIAL_SLOTS = 64;
+
+    /**
+     * The series of one metric name, in the order they were first written.
+     */
+    private static class Family {
+        final String name;
+        final Type type;
+        final String help;
+        int[] slots = new int[4];
+        int size;
+        // The family handed out by the last flip, and whether its series changed since.
+        MetricFamilySamples published;
+        boolean changed = true;
+
+        Family(String name, Type type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+            changed = true;
+        }
+    }
+
+    private final Map<SeriesLimiter.SeriesKey, Integer> slotsByKey = new HashMap<SeriesLimiter.SeriesKey, Integer>();
+    private final Map<String, Family> familiesByName = new HashMap<String, Family>();
+    private final List<Family> families = new ArrayList<Family>();
+    // The result of the last flip, rebuilt when one of its families is.
+    private List<MetricFamilySamples> published = Collections.emptyList();
+
+    // Per slot: the identity of the series and the last rule that wrote it.
+    private SeriesLimiter.SeriesKey[] keys = new SeriesLimiter.SeriesKey[INITIAL_SLOTS];
+    private MatchedRule[] owners = new MatchedRule[INITIAL_SLOTS];
+    // The back buffer, and the generation each value was last written in.
+    private double[] values = new double[INITIAL_SLOTS];
+    private long[] written = new long[INITIAL_SLOTS];
+    // The front buffer: the samples handed out by the last flip.
+    private MetricFamilySamples.Sample[] samples = new MetricFamilySamples.Sample[INITIAL_SLOTS];
+
+    private int size;
+    private int[] free = new int[INITIAL_SLOTS];
+    private int freeCount;
+    private long generation;
+
+    /**
+     * Start writing the values of a new scrape.
+     */
+    void startScrape() {
+        generation++;
+    }
+
+    /**
+     * Write the value of the series of a rule. Of series written more than once in a scrape, the last value is kept.
+     */
+    void write(MatchedRule rule, double value, Type type, String help) {
+        int slot = rule.arenaSlot;
+        if (slot < 0 || slot >= size || owners[slot] != rule) {
+            slot = slotOf(rule, type, help);
+        }
+        values[slot] = value;
+        written[slot] = generation;
+    }
+
+    private int slotOf(MatchedRule rule, Type type, String help) {
+        SeriesLimiter.SeriesKey key = new SeriesLimiter.SeriesKey(rule.name, rule.labelNames, rule.labelValues);
+        Integer existing = slotsByKey.get(key);
+        int slot;
+        if (existing != null) {
+            slot = existing;
+        } else {
+            slot = allocate();
+            keys[slot] = key;
+            slotsByKey.put(key, slot);
+            Family family = familiesByName.get(rule.name);
+            if (family == null) {
+                family = new Family(rule.name, type, help);
+                familiesByName.put(rule.name, family);
+                families.add(family);
+            }
+            family.add(slot);
+        }
+        owners[slot] = rule;
+        rule.arenaSlot = slot;
+        return slot;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            values = Arrays.copyOf(values, capacity);
+            written = Arrays.copyOf(written, capacity);
+            samples = Arrays.copyOf(samples, capacity);
+            free = Arrays.copyOf(free, capacity);
+        }
+        // Slots past the size were never written, so they can't pass for written in this generation.
+        return size++;
+    }
+
+    private void release(int slot) {
+        slotsByKey.remove(keys[slot]);
+        keys[slot] = null;
+        owners[slot] = null;
+        samples[slot] = null;
+        written[slot] = 0;
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Publish the values written since {@link #startScrape()}.
+     *
+     * @return the unmodifiable families of the series written, those of the previous flip if they didn't change.
+     */
+    List<MetricFamilySamples> flip() {
+        boolean rebuild = false;
+        int kept = 0;
+        for (int f = 0; f < families.size(); f++) {
+            Family family = families.get(f);
+            int live = 0;
+            for (int i = 0; i < family.size; i++) {
+                int slot = family.slots[i];
+                if (written[slot] != generation) {
+                    release(slot);
+                    family.changed = true;
+                    continue;
+                }
+                family.slots[live++] = slot;
+                MetricFamilySamples.Sample sample = samples[slot];
+                if (sample == null || Double.doubleToLongBits(sample.value) != Double.doubleToLongBits(values[slot])) {
+                    SeriesLimiter.SeriesKey key = keys[slot];
+                    samples[slot] = new MetricFamilySamples.Sample(key.name, key.labelNames, key.labelValues,
+                        values[slot]);
+                    family.changed = true;
+                }
+            }
+            family.size = live;
+            if (live == 0) {
+                familiesByName.remove(family.name);
+                rebuild = true;
+                continue;
+            }
+            families.set(kept++, family);
+            if (family.changed) {
+                List<MetricFamilySamples.Sample> list = new ArrayList<MetricFamilySamples.Sample>(live);
+                for (int i = 0; i < live; i++) {
+                    list.add(samples[family.slots[i]]);
+                }
+                family.published = new MetricFamilySamples(family.name, family.type, family.help,
+                    Collections.unmodifiableList(list));
+                family.changed = false;
+                rebuild = true;
+            }
+        }
+        while (families.size() > kept) {
+            families.remove(families.size() - 1);
+        }
+        if (rebuild) {
+            List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(kept);
+            for (int f = 0; f < kept; f++) {
+                result.add(families.get(f).published);
+            }
+            published = Collections.unmodifiableList(result);
+        }
+        return published;
+    }
+
+    /**
+     * @return the number of series in the arena.
+     */
+    int series() {
+        return slotsByKey.size();
+    }
+}
@@ -0,0 +1,80 @@
+package io.prometheus.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Accounts for the CPU time spent scraping, and limits it to a budget per interval.
+ * <p>
+ * The CPU time of each scrape is measured on the thread running it, and on its fetch workers when it is pipelined.
+ * Once the scrapes of an interval used up the budget, further requests are answered with the result of the last
+ * scrape until the next interval starts. A scrape that was already running finishes, so an interval can overrun its
+ * budget by up to one scrape.
+ */
+class ScrapeBudget {
+    static final Counter cpuSeconds = Counter.build()
+        .name("jmx_scrape_cpu_seconds_total")
+        .help("CPU time spent by the threads running JMX scrapes, in seconds.").register();
+    static final Counter exceeded = Counter.build()
+        .name("jmx_scrape_budget_exceeded_total")
+        .help("Number of requests answered with the previous scrape, as the scrape CPU budget was used up.").register();
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final long budgetNanos;
+    private final long intervalNanos;
+    private long intervalStart = System.nanoTime();
+    private long usedNanos;
+
+    ScrapeBudget(long budgetMillis, long intervalSeconds) {
+        this.budgetNanos = budgetMillis * 1000000L;
+        this.intervalNanos = intervalSeconds * 1000000000L;
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, or -1 if the JVM can't measure it.
+     */
+    static long threadCpuNanos() {
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Account for a scrape that started when the current thread had used {@code startNanos} of CPU time.
+     */
+    static void charge(ScrapeBudget budget, long startNanos) {
+        if (startNanos < 0) {
+            return;
+        }
+        long used = threadCpuNanos() - startNanos;
+        cpuSeconds.inc(used / 1.0E9);
+        if (budget != null) {
+            budget.add(used);
+        }
+    }
+
+    synchronized void add(long nanos) {
+        rollInterval();
+        usedNanos += nanos;
+    }
+
+    /**
+     * @return whether the scrapes of the current interval used up the budget.
+     */
+    synchronized boolean isExhausted() {
+        rollInterval();
+        return usedNanos >= budgetNanos;
+    }
+
+    private void rollInterval() {
+        long now = System.nanoTime();
+        if (now - intervalStart >= intervalNanos) {
+            intervalStart = now;
+            usedNanos = 0;
+        }
+    }
+}
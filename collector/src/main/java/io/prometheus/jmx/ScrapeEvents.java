@@ -0,0 +1,82 @@
+package io.prometheus.jmx;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Events of the internals of scrapes, to correlate them with the GC and latency of the application in a flight
+ * recording.
+ * <p>
+ * This class does nothing. With {@code flightRecorderEvents} set, and a JVM that has the {@code jdk.jfr} API, the
+ * collector uses a {@link JfrScrapeEvents} instead, which commits the events to Java Flight Recorder. Calls return
+ * an event to pass to the matching end call, which is null here, so the events cost nothing without JFR.
+ */
+class ScrapeEvents {
+    private static final Logger LOGGER = Logger.getLogger(ScrapeEvents.class.getName());
+
+    // The number of rule cache misses in a scrape that makes a burst.
+    static final int RULE_CACHE_MISS_BURST = 100;
+
+    static final ScrapeEvents NONE = new ScrapeEvents();
+    private static ScrapeEvents flightRecorder;
+
+    /**
+     * @return the events committed to Java Flight Recorder, or {@link #NONE} if the JVM doesn't have it.
+     */
+    static synchronized ScrapeEvents flightRecorder() {
+        if (flightRecorder == null) {
+            flightRecorder = NONE;
+            try {
+                Class.forName("jdk.jfr.FlightRecorder");
+                // Only loaded from here, as its events extend jdk.jfr.Event.
+                flightRecorder = (ScrapeEvents) JfrScrapeEvents.class.newInstance();
+            } catch (ClassNotFoundException e) {
+                LOGGER.fine("Java Flight Recorder is not available, flight recorder events are disabled");
+            } catch (Throwable e) {
+                LOGGER.log(Level.WARNING, "Flight recorder events are disabled", e);
+            }
+        }
+        return flightRecorder;
+    }
+
+    Object beginScrape() {
+        return null;
+    }
+
+    /**
+     * @param restricted whether the scrape was limited to some metric names.
+     */
+    void endScrape(Object event, boolean restricted, int families, boolean error) {
+    }
+
+    Object beginDiscovery() {
+        return null;
+    }
+
+    void endDiscovery(Object event, int beans) {
+    }
+
+    /**
+     * Start getting the attributes of a bean, committed only if it takes longer than the threshold of the event.
+     */
+    Object beginBean() {
+        return null;
+    }
+
+    void endBean(Object event, ObjectName bean, int attributes) {
+    }
+
+    /**
+     * Commit the rule cache misses of a scrape, if they make a burst.
+     */
+    void ruleCacheMisses(int misses, int cachedRules) {
+    }
+
+    Object beginConfigReload() {
+        return null;
+    }
+
+    void endConfigReload(Object event, String file, boolean success) {
+    }
+}
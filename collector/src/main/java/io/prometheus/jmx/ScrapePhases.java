@@ -0,0 +1,122 @@
+package io.prometheus.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Measures where the time of a scrape goes: the wall clock time, thread CPU time and bytes allocated by the thread
+ * in each phase, exported as the {@code jmx_scrape_phase_*} counters.
+ * <p>
+ * A tracker belongs to the thread doing the work, and is only read when the phase changes. Readings are not free,
+ * mostly the allocated bytes which HotSpot looks up by thread id, so scrapes are only measured with
+ * {@code scrapePhaseMetrics} set.
+ */
+class ScrapePhases {
+    enum Phase {
+        // Connecting and querying bean names.
+        DISCOVERY,
+        // Getting the attributes of beans, from the cache or the MBeanServer.
+        MBEAN_INFO,
+        ATTRIBUTE_READ,
+        // Walking attribute values, matching rules and building samples.
+        RULE_MATCHING,
+        SERIALISATION;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    static final Counter seconds = Counter.build()
+        .name("jmx_scrape_phase_seconds_total")
+        .help("Wall clock time spent in each phase of JMX scrapes and of serialising responses, in seconds.")
+        .labelNames("phase").register();
+    static final Counter cpuSeconds = Counter.build()
+        .name("jmx_scrape_phase_cpu_seconds_total")
+        .help("Thread CPU time spent in each phase of JMX scrapes and of serialising responses, in seconds.")
+        .labelNames("phase").register();
+    static final Counter allocatedBytes = Counter.build()
+        .name("jmx_scrape_phase_allocated_bytes_total")
+        .help("Bytes allocated in each phase of JMX scrapes and of serialising responses.")
+        .labelNames("phase").register();
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean allocationSupported = allocationSupported();
+
+    private static final Phase[] PHASES = Phase.values();
+    private final long[] wallNanos = new long[PHASES.length];
+    private final long[] cpuNanos = new long[PHASES.length];
+    private final long[] allocated = new long[PHASES.length];
+    private Phase current;
+    private long wallStart;
+    private long cpuStart;
+    private long allocatedStart;
+
+    private static boolean allocationSupported() {
+        try {
+            return threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+        } catch (LinkageError e) {
+            // Not a HotSpot based JVM.
+            return false;
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the JVM can't tell.
+     */
+    static long threadAllocatedBytes() {
+        if (!allocationSupported) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * End the current phase, if any, and start the given one.
+     */
+    void enter(Phase phase) {
+        if (phase == current) {
+            return;
+        }
+        long wall = System.nanoTime();
+        long cpu = ScrapeBudget.threadCpuNanos();
+        long bytes = threadAllocatedBytes();
+        if (current != null) {
+            int i = current.ordinal();
+            wallNanos[i] += wall - wallStart;
+            cpuNanos[i] += cpu - cpuStart;
+            allocated[i] += bytes - allocatedStart;
+        }
+        current = phase;
+        wallStart = wall;
+        cpuStart = cpu;
+        allocatedStart = bytes;
+    }
+
+    /**
+     * End the current phase, and add the measurements to the counters.
+     */
+    void end() {
+        enter(null);
+        for (Phase phase : PHASES) {
+            int i = phase.ordinal();
+            if (wallNanos[i] == 0) {
+                continue;
+            }
+            seconds.labels(phase.label).inc(wallNanos[i] / 1.0E9);
+            // Unsupported readings are -1 at both ends, so add up to 0.
+            if (cpuNanos[i] > 0) {
+                cpuSeconds.labels(phase.label).inc(cpuNanos[i] / 1.0E9);
+            }
+            if (allocated[i] > 0) {
+                allocatedBytes.labels(phase.label).inc(allocated[i]);
+            }
+            wallNanos[i] = 0;
+            cpuNanos[i] = 0;
+            allocated[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.prometheus.jmx;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+
+/**
+ * Reads the attributes of beans on fetch worker threads, while the scrape thread processes the attributes already
+ * read, so the latency of a remote server overlaps with matching the rules.
+ * <p>
+ * Workers pass the attributes through a bounded queue, and wait while it is full, so a slow scrape thread holds at
+ * most {@code queueSize} values in memory. Matching stays on the scrape thread, as the receiver is not thread-safe.
+ * The worker threads stop after a minute without scrapes, so a pipeline needs no shutdown. Their CPU time is
+ * accounted for like that of the scrape thread, in {@code jmx_scrape_cpu_seconds_total} and the scrape budget.
+ */
+class ScrapePipeline {
+    /**
+     * Receives the attributes of a bean as they are read.
+     */
+    interface Sink {
+        void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value);
+    }
+
+    /**
+     * Reads the attributes of a bean, on a fetch worker.
+     */
+    interface Fetcher {
+        void fetch(ObjectName bean, Sink sink);
+    }
+
+    private static final class Record {
+        final ObjectName bean;
+        final MBeanAttributeInfo attribute;
+        final Object value;
+
+        Record(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+            this.bean = bean;
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+
+    // Each worker ends with this, so the scrape thread knows when all beans are done.
+    private static final Record END = new Record(null, null, null);
+    private static final long OFFER_MILLIS = 100;
+
+    private final int workers;
+    private final int queueSize;
+    private final ScrapeBudget budget;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param budget the budget the CPU time of the workers is charged to, or null.
+     */
+    ScrapePipeline(int workers, int queueSize, ScrapeBudget budget) {
+        this.workers = workers;
+        this.queueSize = queueSize;
+        this.budget = budget;
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                MetricsServer.threadFactory("jmx-exporter-fetch-", true));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    int workers() {
+        return workers;
+    }
+
+    /**
+     * Fetch the beans on the workers, and pass their attributes to the consumer on the calling thread.
+     * <p>
+     * Returns once all beans are fetched. If the consumer throws, the workers drop what they still read and stop
+     * at the next bean.
+     */
+    void run(Collection<ObjectName> beans, final Fetcher fetcher, Sink consumer) throws Exception {
+        final ConcurrentLinkedQueue<ObjectName> pending = new ConcurrentLinkedQueue<ObjectName>(beans);
+        final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(queueSize);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Sink producer = new Sink() {
+            public void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+                put(queue, new Record(bean, attribute, value), cancelled);
+            }
+        };
+
+        int tasks = Math.min(workers, beans.size());
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long cpuStart = ScrapeBudget.threadCpuNanos();
+                    try {
+                        ObjectName bean;
+                        while (!cancelled.get() && failure.get() == null && (bean = pending.poll()) != null) {
+                            fetcher.fetch(bean, producer);
+                        }
+                    } catch (Throwable e) {
+                        // The other workers stop at their next bean.
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        // Before the end, so the scrape is charged by the time it returns.
+                        ScrapeBudget.charge(budget, cpuStart);
+                        put(queue, END, cancelled);
+                    }
+                }
+            });
+        }
+
+        try {
+            int ended = 0;
+            while (ended < tasks) {
+                Record record = queue.take();
+                if (record == END) {
+                    ended++;
+                } else {
+                    consumer.accept(record.bean, record.attribute, record.value);
+                }
+            }
+        } finally {
+            cancelled.set(true);
+            queue.clear();
+        }
+        Throwable e = failure.get();
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw (Exception) e;
+        }
+    }
+
+    /**
+     * Wait for room in the queue, unless the scrape thread gave up on the scrape, which it only does once it
+     * takes nothing more from the queue.
+     */
+    private static void put(BlockingQueue<Record> queue, Record record, AtomicBoolean cancelled) {
+        // Keep waiting when interrupted, the scrape thread counts on the end of each worker.
+        boolean interrupted = false;
+        try {
+            while (!cancelled.get()) {
+                try {
+                    if (queue.offer(record, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * The beans and attributes a scrape has to visit, when only some metric names are requested.
+ * <p>
+ * A restriction is the union of the {@link Target}s of the rules that can produce a requested name. Each target
+ * is derived from the literal parts of a rule's pattern: the domain and first {@code key=value} property in front
+ * of the attribute name become an ObjectName pattern, and a literal attribute name, or the first attribute key, becomes
+ * an attribute name prefix. Whatever can't be derived for sure is left unrestricted, so a restricted scrape visits
+ * at least the attributes that could match the rule.
+ */
+class ScrapeRestriction {
+
+    /**
+     * The beans and attributes a single rule can match.
+     */
+    static class Target {
+        static final Target ALL = new Target(null, null);
+
+        // Null for any bean.
+        final ObjectName objectName;
+        // Null for any attribute.
+        final String attributePrefix;
+
+        Target(ObjectName objectName, String attributePrefix) {
+            this.objectName = objectName;
+            this.attributePrefix = attributePrefix;
+        }
+
+        boolean isAll() {
+            return objectName == null && attributePrefix == null;
+        }
+
+        boolean includes(ObjectName bean, String attribute) {
+            return (objectName == null || objectName.apply(bean))
+                    && (attributePrefix == null || attribute.startsWith(attributePrefix));
+        }
+    }
+
+    final List<Target> targets;
+
+    ScrapeRestriction(List<Target> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * @return whether the restriction allows every attribute of every bean.
+     */
+    boolean isAll() {
+        for (Target target : targets) {
+            if (target.isAll()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the patterns to query the bean names with, null meaning every bean.
+     */
+    List<ObjectName> objectNames() {
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        for (Target target : targets) {
+            if (target.objectName == null) {
+                return Collections.singletonList(null);
+            }
+            if (!names.contains(target.objectName)) {
+                names.add(target.objectName);
+            }
+        }
+        return names;
+    }
+
+    boolean includes(ObjectName bean, String attribute) {
+        for (Target target : targets) {
+            if (target.includes(bean, attribute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Derive the target of a rule from its pattern, as given in the configuration.
+     *
+     * @param attrNameSnakeCase whether the rule matches the snake case attribute name.
+     */
+    static Target ofPattern(String pattern, boolean attrNameSnakeCase) {
+        // Alternation and inline flags can make any literal part optional.
+        if (pattern == null || pattern.indexOf('|') >= 0 || pattern.contains("(?")) {
+            return Target.ALL;
+        }
+        ObjectName objectName = objectName(pattern);
+        String attributePrefix = attributePrefix(pattern, attrNameSnakeCase);
+        if (objectName == null && attributePrefix == null) {
+            return Target.ALL;
+        }
+        return new Target(objectName, attributePrefix);
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    private static boolean isOptional(String pattern, int i) {
+        if (i >= pattern.length()) {
+            return false;
+        }
+        char c = pattern.charAt(i);
+        return c == '?' || c == '*' || c == '{';
+    }
+
+    /**
+     * The literal domain in front of the bean properties and the literal properties among them.
+     */
+    private static ObjectName objectName(String pattern) {
+        // Rule patterns are not anchored, unless they say so.
+        boolean anchored = pattern.startsWith("^");
+        int i = anchored ? 1 : 0;
+        StringBuilder domain = new StringBuilder(anchored ? "" : "*");
+        int literal = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '.') {
+                domain.append('.');
+                i += 2;
+            } else if (c == '.') {
+                domain.append('?');
+                i++;
+            } else if (isNameChar(c)) {
+                domain.append(c);
+                i++;
+            } else {
+                break;
+            }
+            literal++;
+        }
+        if (literal == 0 || i >= pattern.length() || pattern.charAt(i) != '<' || isOptional(pattern, i + 1)) {
+            return null;
+        }
+
+        // The first property is one of the bean's. Later ones may be index keys of tabular attributes.
+        int end = pattern.indexOf(", ", i);
+        int close = pattern.indexOf('>', i);
+        if (end < 0 || (close >= 0 && close < end)) {
+            end = close;
+        }
+        StringBuilder name = new StringBuilder(domain).append(':');
+        if (end > 0 && !isOptional(pattern, end + 1)) {
+            String property = pattern.substring(i + 1, end);
+            int eq = property.indexOf('=');
+            if (eq > 0 && isLiteral(property.substring(0, eq)) && isLiteral(property.substring(eq + 1))
+                    && eq < property.length() - 1) {
+                name.append(property).append(',');
+            }
+        }
+        name.append('*');
+        try {
+            return new ObjectName(name.toString());
+        } catch (MalformedObjectNameException e) {
+            return null;
+        }
+    }
+
+    private static boolean isLiteral(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!isNameChar(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The name of the bean attribute a pattern requires: the first attribute key if there are any, as nested
+     * values of composite and tabular attributes are keyed by their attribute, otherwise the attribute name.
+     */
+    private static String attributePrefix(String pattern, boolean attrNameSnakeCase) {
+        int start = pattern.indexOf("><");
+        if (start < 0 || !balancedBrackets(pattern, start)) {
+            return null;
+        }
+        int i = start + 2;
+        if (isOptional(pattern, i)) {
+            return null;
+        }
+        if (i < pattern.length() && pattern.charAt(i) == '>') {
+            // No attribute keys, the attribute name follows. Snake case names differ from the bean's.
+            if (attrNameSnakeCase || isOptional(pattern, i + 1)) {
+                return null;
+            }
+            return literalPrefix(pattern, i + 1);
+        }
+        return literalPrefix(pattern, i);
+    }
+
+    /**
+     * @return the literal characters starting at the given index that a match must contain, or null if none.
+     */
+    private static String literalPrefix(String pattern, int start) {
+        int length = 0;
+        while (start + length < pattern.length() && isNameChar(pattern.charAt(start + length))) {
+            length++;
+        }
+        // A quantifier makes the last character optional.
+        if (length > 0 && isOptional(pattern, start + length)) {
+            length--;
+        }
+        return length > 0 ? pattern.substring(start, start + length) : null;
+    }
+
+    private static boolean balancedBrackets(String pattern, int end) {
+        int depth = 0;
+        for (int i = 0; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && depth > 0) {
+                depth--;
+            }
+        }
+        return depth == 0;
+    }
+}
@@ -0,0 +1,189 @@
+package io.prometheus.jmx;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.management.ObjectName;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Enforces the {@code maxSeries} limits of the rules and of the whole collector.
+ * <p>
+ * Series exported by the previous scrape are always kept, and new series are admitted while the number of series
+ * stays within the limit, so a flood of new beans can't push out the series that were already there. Samples of
+ * series that are not admitted are dropped and counted per rule.
+ * <p>
+ * Once a rule is at its limit, any new series it would produce gets dropped anyway, so the attributes of beans
+ * that were not scraped before are not even read if only rules at their limit could match them.
+ */
+class SeriesLimiter {
+    static final Counter seriesDropped = Counter.build()
+        .name("jmx_series_dropped_total")
+        .help("Number of samples dropped because their rule, or the exporter, reached its maxSeries limit.")
+        .labelNames("rule").register();
+
+    /**
+     * The limit of one rule, and the series it exported in the previous scrape.
+     */
+    static class RuleLimit {
+        final String label;
+        // Zero for no limit of its own.
+        final int maxSeries;
+        final ScrapeRestriction.Target target;
+        volatile Set<SeriesKey> previous = Collections.emptySet();
+
+        RuleLimit(String label, int maxSeries, ScrapeRestriction.Target target) {
+            this.label = label;
+            this.maxSeries = maxSeries;
+            this.target = target;
+        }
+
+        boolean isFull() {
+            return maxSeries > 0 && previous.size() >= maxSeries;
+        }
+    }
+
+    /**
+     * The identity of a series: its name and labels.
+     */
+    static final class SeriesKey {
+        final String name;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        private final int hash;
+
+        SeriesKey(String name, List<String> labelNames, List<String> labelValues) {
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.hash = 31 * (31 * name.hashCode() + labelNames.hashCode()) + labelValues.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return hash == other.hash && name.equals(other.name) && labelNames.equals(other.labelNames)
+                && labelValues.equals(other.labelValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Admitted {
+        final Set<SeriesKey> series = new HashSet<SeriesKey>();
+        // Series that were not in the previous scrape.
+        int added;
+    }
+
+    /**
+     * The series admitted by one scrape.
+     */
+    class Scrape implements JmxScraper.AttributeFilter {
+        private final Map<RuleLimit, Admitted> rules = new HashMap<RuleLimit, Admitted>();
+        private final Admitted all = new Admitted();
+        private final Set<ObjectName> beans = new HashSet<ObjectName>();
+
+        /**
+         * @return whether a sample of the series may be exported.
+         */
+        boolean admit(RuleLimit rule, SeriesKey key) {
+            Admitted admitted = null;
+            boolean newForRule = false;
+            if (rule.maxSeries > 0) {
+                admitted = rules.get(rule);
+                if (admitted == null) {
+                    admitted = new Admitted();
+                    rules.put(rule, admitted);
+                }
+                if (!admitted.series.contains(key)) {
+                    newForRule = !rule.previous.contains(key);
+                    if (newForRule && rule.previous.size() + admitted.added >= rule.maxSeries) {
+                        seriesDropped.labels(rule.label).inc();
+                        return false;
+                    }
+                }
+            }
+            boolean newForAll = false;
+            if (maxSeries > 0 && !all.series.contains(key)) {
+                newForAll = !previous.contains(key);
+                if (newForAll && previous.size() + all.added >= maxSeries) {
+                    seriesDropped.labels(rule.label).inc();
+                    return false;
+                }
+            }
+            if (admitted != null && admitted.series.add(key) && newForRule) {
+                admitted.added++;
+            }
+            if (maxSeries > 0 && all.series.add(key) && newForAll) {
+                all.added++;
+            }
+            return true;
+        }
+
+        /**
+         * @return whether to read an attribute of a bean. Attributes of beans that were read from before are.
+         */
+        public boolean include(ObjectName bean, String attribute) {
+            if (beans.contains(bean)) {
+                return true;
+            }
+            if (!knownBeans.contains(bean) && !anyRoomFor(bean, attribute)) {
+                return false;
+            }
+            beans.add(bean);
+            return true;
+        }
+
+        private boolean anyRoomFor(ObjectName bean, String attribute) {
+            if (maxSeries > 0 && previous.size() >= maxSeries) {
+                return false;
+            }
+            for (RuleLimit rule : limits) {
+                if (!rule.isFull() && rule.target.includes(bean, attribute)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Make the series of this complete scrape the ones to keep in the next.
+         */
+        void commit() {
+            synchronized (SeriesLimiter.this) {
+                for (RuleLimit rule : limits) {
+                    Admitted admitted = rules.get(rule);
+                    rule.previous = admitted != null ? admitted.series : Collections.<SeriesKey>emptySet();
+                }
+                previous = maxSeries > 0 ? all.series : Collections.<SeriesKey>emptySet();
+                knownBeans = beans;
+            }
+        }
+    }
+
+    // Zero for no limit on all series.
+    private final int maxSeries;
+    // The limits of all rules, in order, whether they have a limit of their own or not.
+    private final List<RuleLimit> limits;
+    private volatile Set<SeriesKey> previous = Collections.emptySet();
+    private volatile Set<ObjectName> knownBeans = Collections.emptySet();
+
+    SeriesLimiter(int maxSeries, List<RuleLimit> limits) {
+        this.maxSeries = maxSeries;
+        this.limits = limits;
+    }
+
+    Scrape startScrape() {
+        return new Scrape();
+    }
+}
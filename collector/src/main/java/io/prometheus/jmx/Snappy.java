@@ -0,0 +1,119 @@
+package io.prometheus.jmx;
+
+import java.util.Arrays;
+
+/**
+ * A compressor for the Snappy block format, as used by the Prometheus remote write protocol.
+ * <p>
+ * This is the greedy hash based scheme of the reference implementation, without its heuristics for skipping
+ * incompressible input. The input is compressed in independent 64KB fragments, so every copy has a two byte
+ * offset.
+ */
+final class Snappy {
+    private static final int FRAGMENT_SIZE = 1 << 16;
+    private static final int HASH_BITS = 14;
+    private static final int MIN_MATCH = 4;
+
+    private Snappy() {
+    }
+
+    static byte[] compress(byte[] input) {
+        return compress(input, 0, input.length);
+    }
+
+    static byte[] compress(byte[] input, int offset, int length) {
+        // The worst case of the format, for incompressible input.
+        byte[] out = new byte[32 + length + length / 6];
+        int op = writeVarint(out, 0, length);
+        int[] table = new int[1 << HASH_BITS];
+        for (int start = offset; start < offset + length; start += FRAGMENT_SIZE) {
+            int end = Math.min(start + FRAGMENT_SIZE, offset + length);
+            op = compressFragment(input, start, end, out, op, table);
+        }
+        byte[] compressed = new byte[op];
+        System.arraycopy(out, 0, compressed, 0, op);
+        return compressed;
+    }
+
+    private static int compressFragment(byte[] in, int start, int end, byte[] out, int op, int[] table) {
+        Arrays.fill(table, -1);
+        int ip = start;
+        int nextEmit = start;
+        while (ip + MIN_MATCH <= end) {
+            int bytes = load32(in, ip);
+            int hash = (bytes * 0x1e35a7bd) >>> (32 - HASH_BITS);
+            int candidate = table[hash];
+            table[hash] = ip;
+            if (candidate >= start && load32(in, candidate) == bytes) {
+                op = emitLiteral(in, nextEmit, ip - nextEmit, out, op);
+                int matched = MIN_MATCH;
+                while (ip + matched < end && in[candidate + matched] == in[ip + matched]) {
+                    matched++;
+                }
+                op = emitCopy(ip - candidate, matched, out, op);
+                ip += matched;
+                nextEmit = ip;
+            } else {
+                ip++;
+            }
+        }
+        return emitLiteral(in, nextEmit, end - nextEmit, out, op);
+    }
+
+    private static int load32(byte[] in, int i) {
+        return (in[i] & 0xFF) | (in[i + 1] & 0xFF) << 8 | (in[i + 2] & 0xFF) << 16 | (in[i + 3] & 0xFF) << 24;
+    }
+
+    private static int emitLiteral(byte[] in, int start, int length, byte[] out, int op) {
+        if (length == 0) {
+            return op;
+        }
+        int n = length - 1;
+        if (n < 60) {
+            out[op++] = (byte) (n << 2);
+        } else if (n < (1 << 8)) {
+            out[op++] = (byte) (60 << 2);
+            out[op++] = (byte) n;
+        } else if (n < (1 << 16)) {
+            out[op++] = (byte) (61 << 2);
+            out[op++] = (byte) n;
+            out[op++] = (byte) (n >>> 8);
+        } else {
+            out[op++] = (byte) (62 << 2);
+            out[op++] = (byte) n;
+            out[op++] = (byte) (n >>> 8);
+            out[op++] = (byte) (n >>> 16);
+        }
+        System.arraycopy(in, start, out, op, length);
+        return op + length;
+    }
+
+    private static int emitCopy(int offset, int length, byte[] out, int op) {
+        // A two byte offset copy holds 1 to 64 bytes. Split long matches so the last piece is at least 4 bytes.
+        while (length >= 68) {
+            op = emitCopy2(offset, 64, out, op);
+            length -= 64;
+        }
+        if (length > 64) {
+            op = emitCopy2(offset, 60, out, op);
+            length -= 60;
+        }
+        return emitCopy2(offset, length, out, op);
+    }
+
+    private static int emitCopy2(int offset, int length, byte[] out, int op) {
+        out[op++] = (byte) (((length - 1) << 2) | 2);
+        out[op++] = (byte) offset;
+        out[op++] = (byte) (offset >>> 8);
+        return op;
+    }
+
+    private static int writeVarint(byte[] out, int op, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[op++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[op++] = (byte) value;
+        return op;
+    }
+}
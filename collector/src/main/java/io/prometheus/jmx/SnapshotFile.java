@@ -0,0 +1,177 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped file holding the latest snapshot of the metrics of a JVM, for readers in other processes.
+ * <p>
+ * The file starts with a header: the magic number {@code JMXS}, the version, a sequence number, the capacity of a
+ * slot, and the timestamp and length of each of the two slots that follow it. The writer renders a snapshot into
+ * the slot that is not published, then publishes it by incrementing the sequence number: the published slot is the
+ * sequence number modulo 2. A reader reads the sequence number, copies the published slot and reads the sequence
+ * number again. If it changed, the writer may have overwritten the slot in the meantime, and the reader retries.
+ * <p>
+ * Only one process may write a file. A writer that finds a file of the same capacity continues its sequence, and
+ * replaces a file of another capacity, which readers notice from the length of the file.
+ */
+class SnapshotFile {
+    static final int MAGIC = 0x4A4D5853;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int TIMESTAMPS_OFFSET = 24;
+    private static final int LENGTHS_OFFSET = 40;
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    /**
+     * A published snapshot.
+     */
+    static class Snapshot {
+        final byte[] body;
+        final long timestampMillis;
+
+        Snapshot(byte[] body, long timestampMillis) {
+            this.body = body;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+
+    // Volatile accesses around the sequence number order the accesses to the slots before and after it.
+    private static volatile int fence;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private SnapshotFile(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Open a file for writing snapshots of up to {@code capacity} bytes.
+     */
+    static SnapshotFile create(File path, int capacity) throws IOException {
+        long length = HEADER_BYTES + 2L * capacity;
+        if (path.exists() && path.length() != length && !path.delete()) {
+            throw new IOException("Can't replace snapshot file " + path);
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            boolean reuse = file.length() == length;
+            // Sparse, so the slots only take up the pages that were written.
+            file.setLength(length);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (!reuse || buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                    || buffer.getInt(CAPACITY_OFFSET) != capacity) {
+                buffer.putLong(SEQUENCE_OFFSET, 0);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putInt(VERSION_OFFSET, VERSION);
+                buffer.putInt(MAGIC_OFFSET, MAGIC);
+            }
+            return new SnapshotFile(file, buffer, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a file written by another process for reading.
+     */
+    static SnapshotFile open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long length = file.length();
+            if (length < HEADER_BYTES) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                    || length != HEADER_BYTES + 2L * capacity) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            return new SnapshotFile(file, buffer, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the length of the file, as of opening it.
+     */
+    long length() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Publish a snapshot.
+     *
+     * @return false if the snapshot is larger than a slot, and was not written.
+     */
+    boolean write(byte[] body, long timestampMillis) {
+        if (body.length > capacity) {
+            return false;
+        }
+        long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        int slot = (int) ((sequence + 1) & 1);
+        ByteBuffer slotBuffer = buffer.duplicate();
+        slotBuffer.position(HEADER_BYTES + slot * capacity);
+        slotBuffer.put(body);
+        buffer.putLong(TIMESTAMPS_OFFSET + 8 * slot, timestampMillis);
+        buffer.putInt(LENGTHS_OFFSET + 4 * slot, body.length);
+        fence();
+        buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+        return true;
+    }
+
+    /**
+     * @return the published snapshot, or null if none was published yet.
+     * @throws IOException if the writer kept overwriting the slot being read.
+     */
+    Snapshot read() throws IOException {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long sequence = buffer.getLong(SEQUENCE_OFFSET);
+            if (sequence == 0) {
+                return null;
+            }
+            fence();
+            int slot = (int) (sequence & 1);
+            int length = buffer.getInt(LENGTHS_OFFSET + 4 * slot);
+            long timestamp = buffer.getLong(TIMESTAMPS_OFFSET + 8 * slot);
+            if (length < 0 || length > capacity) {
+                continue;
+            }
+            byte[] body = new byte[length];
+            ByteBuffer slotBuffer = buffer.duplicate();
+            slotBuffer.position(HEADER_BYTES + slot * capacity);
+            slotBuffer.get(body);
+            fence();
+            if (buffer.getLong(SEQUENCE_OFFSET) == sequence) {
+                return new Snapshot(body, timestamp);
+            }
+        }
+        throw new IOException("Snapshot kept changing while being read");
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private static void fence() {
+        // A volatile write followed by a volatile read is a full fence on HotSpot.
+        fence = 0;
+        int ignored = fence;
+    }
+}
@@ -0,0 +1,132 @@
+package io.prometheus.jmx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+
+/**
+ * Writes the samples of a registry to a {@link SnapshotFile} on a schedule, in the text format, so a reader on the
+ * same host can serve them without the JVM listening on a port.
+ */
+class SnapshotWriter {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotWriter.class.getName());
+
+    static class Config {
+        File file;
+        long intervalSeconds = 15;
+        int maxBytes = 8 * 1024 * 1024;
+
+        static Config fromYaml(Map<String, Object> yaml) {
+            Config cfg = new Config();
+            if (!yaml.containsKey("file")) {
+                throw new IllegalArgumentException("snapshot must have a file");
+            }
+            cfg.file = new File((String) yaml.get("file"));
+            if (yaml.containsKey("intervalSeconds")) {
+                cfg.intervalSeconds = positive(yaml, "intervalSeconds").longValue();
+            }
+            if (yaml.containsKey("maxBytes")) {
+                long maxBytes = positive(yaml, "maxBytes").longValue();
+                // Both slots and the header have to fit in a single mapping.
+                if (maxBytes > (Integer.MAX_VALUE - SnapshotFile.HEADER_BYTES) / 2) {
+                    throw new IllegalArgumentException("snapshot maxBytes must be at most 1GiB");
+                }
+                cfg.maxBytes = (int) maxBytes;
+            }
+            return cfg;
+        }
+
+        private static Number positive(Map<String, Object> yaml, String key) {
+            Number value = (Number) yaml.get(key);
+            if (value.longValue() <= 0) {
+                throw new IllegalArgumentException("snapshot " + key + " must be positive");
+            }
+            return value;
+        }
+    }
+
+    private final CollectorRegistry registry;
+    private final Config config;
+    private final SnapshotFile file;
+    private final ScheduledExecutorService scheduler;
+    private final Counter writeFailures;
+
+    SnapshotWriter(CollectorRegistry registry, Config config) throws IOException {
+        this.registry = registry;
+        this.config = config;
+        this.file = SnapshotFile.create(config.file, config.maxBytes);
+        writeFailures = Counter.build()
+                .name("jmx_snapshot_write_failures_total")
+                .help("Number of snapshots that failed, or were too large to be written to the snapshot file")
+                .register(registry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                MetricsServer.threadFactory("jmx-exporter-snapshot-", true));
+    }
+
+    /**
+     * Start writing snapshots if the collector's configuration has a {@code snapshot} section.
+     *
+     * @return the started writer, or null if snapshots are not configured.
+     */
+    static SnapshotWriter startIfConfigured(CollectorRegistry registry, JmxCollector collector) throws IOException {
+        Config config = collector.snapshotConfig();
+        if (config == null) {
+            return null;
+        }
+        final SnapshotWriter writer = new SnapshotWriter(registry, config);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                writer.stop();
+            }
+        }, "jmx-exporter-snapshot-shutdown"));
+        return writer;
+    }
+
+    void start() {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, 0, config.intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Closing the snapshot file failed", e);
+        }
+    }
+
+    /**
+     * Collect the registry and publish it as the latest snapshot.
+     */
+    void write() {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+            ExpositionFormat.TEXT_004.write(body,
+                    ResponseCache.filter(registry.metricFamilySamples(), Collections.<String>emptySet()));
+            if (!file.write(body.toByteArray(), System.currentTimeMillis())) {
+                writeFailures.inc();
+                LOGGER.warning("Snapshot of " + body.size() + " bytes is larger than the snapshot maxBytes of "
+                        + config.maxBytes);
+            }
+        } catch (Exception e) {
+            // Don't let a failure cancel the schedule.
+            writeFailures.inc();
+            LOGGER.log(Level.WARNING, "Writing a snapshot failed", e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AttributeSelectionTest {
+
+    public interface WideMBean {
+        int getFirst();
+        int getSecond();
+        int getThird();
+    }
+
+    public static class Wide implements WideMBean {
+        int reads;
+
+        public int getFirst() {
+            reads++;
+            return 1;
+        }
+
+        public int getSecond() {
+            reads++;
+            return 2;
+        }
+
+        public int getThird() {
+            reads++;
+            return 3;
+        }
+    }
+
+    @Test
+    public void testIncludeAndExclude() throws Exception {
+        Map<String, Object> include = new HashMap<String, Object>();
+        include.put("io.prometheus.jmx.test:type=Wide,*", Arrays.asList("First", "Second"));
+        include.put("io.prometheus.jmx.test:type=Wide,name=both", "Third");
+        Map<String, Object> exclude = new HashMap<String, Object>();
+        exclude.put("io.prometheus.jmx.test:*", Collections.singletonList("Second"));
+        AttributeSelection selection = AttributeSelection.fromYaml(include, exclude);
+
+        ObjectName wide = new ObjectName("io.prometheus.jmx.test:type=Wide,name=one");
+        assertTrue(selection.includes(wide, "First"));
+        assertFalse(selection.includes(wide, "Second"));
+        assertFalse(selection.includes(wide, "Third"));
+        // The lists of all matching include patterns count.
+        assertTrue(selection.includes(new ObjectName("io.prometheus.jmx.test:type=Wide,name=both"), "Third"));
+        // Beans matching no include pattern have all attributes but the excluded ones read.
+        ObjectName other = new ObjectName("io.prometheus.jmx.test:type=Other");
+        assertTrue(selection.includes(other, "Third"));
+        assertFalse(selection.includes(other, "Second"));
+
+        MBeanAttributeInfo[] attributes = {attribute("First"), attribute("Second"), attribute("Third")};
+        assertEquals(1, selection.select(wide, attributes).length);
+        assertEquals("First", selection.select(wide, attributes)[0].getName());
+        assertSame(attributes, selection.select(new ObjectName("other:type=Other"), attributes));
+
+        assertNull(AttributeSelection.fromYaml(null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testListIsNoMap() throws Exception {
+        AttributeSelection.fromYaml(Arrays.asList("First"), null);
+    }
+
+    @Test
+    public void testOnlySelectedAttributesAreRead() throws Exception {
+        ObjectName name = new ObjectName("io.prometheus.jmx.test:type=Wide,name=collected");
+        Wide wide = new Wide();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(wide, name);
+        try {
+            CollectorRegistry registry = new CollectorRegistry();
+            new JmxCollector("---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Wide,*\"]\n"
+                    + "includeAttributes:\n  \"io.prometheus.jmx.test:type=Wide,*\": [First, Third]\n"
+                    + "excludeAttributes:\n  \"io.prometheus.jmx.test:type=Wide,*\": [Third]\n").register(registry);
+            assertNotNull(registry.getSampleValue("io_prometheus_jmx_test_Wide_First",
+                    new String[]{"name"}, new String[]{"collected"}));
+            assertNull(registry.getSampleValue("io_prometheus_jmx_test_Wide_Second",
+                    new String[]{"name"}, new String[]{"collected"}));
+            assertNull(registry.getSampleValue("io_prometheus_jmx_test_Wide_Third",
+                    new String[]{"name"}, new String[]{"collected"}));
+            // Each of the three lookups above scraped, and only read First.
+            assertEquals(3, wide.reads);
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    private static MBeanAttributeInfo attribute(String name) {
+        return new MBeanAttributeInfo(name, "int", "", true, false, false);
+    }
+}
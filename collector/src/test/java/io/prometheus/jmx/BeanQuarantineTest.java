@@ -0,0 +1,179 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BeanQuarantineTest {
+
+    public interface BrokenMBean {
+        int getBroken();
+        int getWorking();
+    }
+
+    public static class Broken implements BrokenMBean {
+        volatile boolean fail = true;
+        int reads;
+
+        public int getBroken() {
+            reads++;
+            if (fail) {
+                throw new IllegalStateException("broken");
+            }
+            return 1;
+        }
+
+        public int getWorking() {
+            return 2;
+        }
+    }
+
+    private static final ObjectName BEAN = objectName("io.prometheus.jmx.test:type=Quarantined");
+    private static Broken broken;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        broken = new Broken();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(broken, BEAN);
+    }
+
+    @Test
+    public void testBacksOffExponentially() {
+        BeanQuarantine quarantine = new BeanQuarantine(2, 1);
+        List<Boolean> read = new ArrayList<Boolean>();
+        for (int i = 0; i < 12; i++) {
+            quarantine.startScrape();
+            boolean skip = quarantine.skip(BEAN, "Broken");
+            read.add(!skip);
+            if (!skip) {
+                quarantine.failure(BEAN, "Broken", new IllegalStateException());
+            }
+        }
+        // Two failures, then skip 1, 2 and 4 scrapes between probes.
+        assertEquals("[true, true, false, true, false, false, true, false, false, false, false, true]",
+                read.toString());
+
+        quarantine.startScrape();
+        quarantine.success(BEAN, "Broken");
+        assertFalse(quarantine.skip(BEAN, "Broken"));
+        assertTrue(quarantine.quarantined().samples.isEmpty());
+    }
+
+    @Test
+    public void testConnectionErrorsAreNotCounted() {
+        assertFalse(BeanQuarantine.isBeanFailure(new IOException("connection closed")));
+        assertTrue(BeanQuarantine.isBeanFailure(new UnmarshalException("timed out", new SocketTimeoutException())));
+        assertTrue(BeanQuarantine.isBeanFailure(new IllegalStateException()));
+
+        BeanQuarantine quarantine = new BeanQuarantine(1, 1);
+        quarantine.startScrape();
+        quarantine.failure(BEAN, null, new IOException());
+        quarantine.startScrape();
+        assertFalse(quarantine.skip(BEAN, null));
+    }
+
+    @Test
+    public void testCollectorSkipsFailingAttribute() throws Exception {
+        JmxCollector jc = new JmxCollector("---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Quarantined\"]\n"
+                + "quarantineAfterFailures: 2\nquarantineScrapes: 3\n");
+        broken.fail = true;
+        broken.reads = 0;
+        for (int i = 0; i < 5; i++) {
+            jc.collect();
+        }
+        // Read in the first two scrapes, then skipped for three.
+        assertEquals(2, broken.reads);
+
+        List<MetricFamilySamples> mfs = jc.collect();
+        assertEquals(3, broken.reads);
+        MetricFamilySamples quarantined = family(mfs, "jmx_scrape_quarantined");
+        assertEquals(1, quarantined.samples.size());
+        assertEquals(BEAN.toString(), quarantined.samples.get(0).labelValues.get(0));
+        assertEquals("Broken", quarantined.samples.get(0).labelValues.get(1));
+        assertEquals(3, quarantined.samples.get(0).value, .001);
+        // The other attribute is still read.
+        assertEquals(2, family(mfs, "io_prometheus_jmx_test_Quarantined_Working").samples.get(0).value, .001);
+
+        broken.fail = false;
+        for (int i = 0; i < 7; i++) {
+            mfs = jc.collect();
+        }
+        assertEquals(4, broken.reads);
+        assertTrue(family(mfs, "jmx_scrape_quarantined").samples.isEmpty());
+        assertEquals(1, family(mfs, "io_prometheus_jmx_test_Quarantined_Broken").samples.get(0).value, .001);
+    }
+
+    @Test
+    public void testPartialScrapesDontShortenQuarantine() throws Exception {
+        JmxCollector jc = new JmxCollector("---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Quarantined\"]\n"
+                + "quarantineAfterFailures: 1\nquarantineScrapes: 3\nrules:\n"
+                + "- pattern: \"io.prometheus.jmx.test<type=Quarantined><>Working\"\n  name: working\n");
+        broken.fail = true;
+        broken.reads = 0;
+        jc.collect();
+        assertEquals(1, broken.reads);
+
+        JmxCollector.setRequestedNames(Collections.singleton("working"));
+        try {
+            for (int i = 0; i < 5; i++) {
+                jc.collect();
+            }
+        } finally {
+            JmxCollector.setRequestedNames(null);
+        }
+        // Still skipped for the next three full scrapes.
+        for (int i = 0; i < 3; i++) {
+            jc.collect();
+        }
+        assertEquals(1, broken.reads);
+        jc.collect();
+        assertEquals(2, broken.reads);
+    }
+
+    @Test
+    public void testRegistryFiltersOnQuarantined() throws Exception {
+        JmxCollector jc = new JmxCollector("---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Quarantined\"]\n"
+                + "quarantineAfterFailures: 1\nrules:\n"
+                + "- pattern: \"io.prometheus.jmx.test<type=Quarantined><>Working\"\n  name: working\n");
+        broken.fail = true;
+        CollectorRegistry registry = new CollectorRegistry();
+        jc.register(registry);
+        jc.collect();
+
+        List<MetricFamilySamples> mfs = Collections.list(
+                registry.filteredMetricFamilySamples(Collections.singleton("jmx_scrape_quarantined")));
+        assertEquals(1, mfs.size());
+        assertEquals(BEAN.toString(), family(mfs, "jmx_scrape_quarantined").samples.get(0).labelValues.get(0));
+    }
+
+    private static MetricFamilySamples family(List<MetricFamilySamples> mfs, String name) {
+        for (MetricFamilySamples family : mfs) {
+            if (family.name.equals(name)) {
+                return family;
+            }
+        }
+        throw new AssertionError("No family " + name);
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
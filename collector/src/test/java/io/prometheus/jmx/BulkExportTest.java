@@ -0,0 +1,289 @@
+package io.prometheus.jmx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkExportTest {
+
+    public interface CountMBean {
+        int getCount();
+    }
+
+    public static class Count implements CountMBean {
+        volatile int count;
+        int reads;
+
+        public int getCount() {
+            reads++;
+            return count;
+        }
+    }
+
+    public interface BrokenMBean {
+        int getBroken();
+    }
+
+    public static class Broken implements BrokenMBean {
+        int reads;
+
+        public int getBroken() {
+            reads++;
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    private static final ObjectName[] WHITELIST = {objectName("io.prometheus.jmx.test:type=Bulk,*")};
+    private static final ObjectName[] BLACKLIST = {objectName("io.prometheus.jmx.test:type=Bulk,name=ignored")};
+    private static final ObjectName[] NO_NAMES = {};
+    private static final String[][] NO_ATTRIBUTES = {};
+    private static final Map<ObjectName, Set<String>> NO_SKIP = Collections.emptyMap();
+
+    private MBeanServer server;
+    private Count first;
+    private Count second;
+
+    @Before
+    public void setUp() throws Exception {
+        server = MBeanServerFactory.newMBeanServer();
+        first = new Count();
+        server.registerMBean(first, objectName("io.prometheus.jmx.test:type=Bulk,name=first"));
+        second = new Count();
+        server.registerMBean(second, objectName("io.prometheus.jmx.test:type=Bulk,name=second"));
+        server.registerMBean(new Count(), objectName("io.prometheus.jmx.test:type=Bulk,name=ignored"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(BulkExport.NAME)) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(BulkExport.NAME);
+        }
+    }
+
+    @Test
+    public void testExportsOnlyBeansChangedSinceGeneration() throws Exception {
+        BulkExport export = new BulkExport(server);
+        Object[] payload = export(export, -1, NO_NAMES, NO_ATTRIBUTES);
+        assertEquals(2, ((ObjectName[]) payload[BulkExport.NAMES]).length);
+        assertEquals(2, ((ObjectName[]) payload[BulkExport.CHANGED_NAMES]).length);
+        assertEquals("Count", ((javax.management.MBeanAttributeInfo[][]) payload[BulkExport.CHANGED_ATTRIBUTES])[0][0]
+                .getName());
+
+        long generation = (Long) payload[BulkExport.GENERATION];
+        payload = export(export, generation, NO_NAMES, NO_ATTRIBUTES);
+        assertEquals(2, ((ObjectName[]) payload[BulkExport.NAMES]).length);
+        assertEquals(0, ((ObjectName[]) payload[BulkExport.CHANGED_NAMES]).length);
+
+        first.count = 5;
+        generation = (Long) payload[BulkExport.GENERATION];
+        payload = export(export, generation, NO_NAMES, NO_ATTRIBUTES);
+        assertEquals(Arrays.asList(objectName("io.prometheus.jmx.test:type=Bulk,name=first")),
+                Arrays.asList((ObjectName[]) payload[BulkExport.CHANGED_NAMES]));
+        assertEquals(5, ((Object[][]) payload[BulkExport.CHANGED_VALUES])[0][0]);
+
+        // A generation of another instance gets everything.
+        payload = export(new BulkExport(server), (Long) payload[BulkExport.GENERATION], NO_NAMES,
+                NO_ATTRIBUTES);
+        assertEquals(2, ((ObjectName[]) payload[BulkExport.CHANGED_NAMES]).length);
+    }
+
+    @Test
+    public void testReplicaKeepsUnchangedBeans() throws Exception {
+        server.registerMBean(new BulkExport(server), BulkExport.NAME);
+        BulkExport.Replica replica = new BulkExport.Replica();
+        List<ObjectName> whitelist = Arrays.asList(WHITELIST);
+        List<ObjectName> blacklist = Arrays.asList(BLACKLIST);
+
+        Map<ObjectName, BulkExport.Bean> beans = replica.export(server, whitelist, blacklist, NO_SKIP, null);
+        assertEquals(2, beans.size());
+        assertTrue(replica.generation() >= 0);
+
+        second.count = 7;
+        beans = replica.export(server, whitelist, blacklist, NO_SKIP, null);
+        assertEquals(0, beans.get(objectName("io.prometheus.jmx.test:type=Bulk,name=first")).values[0]);
+        assertEquals(7, beans.get(objectName("io.prometheus.jmx.test:type=Bulk,name=second")).values[0]);
+
+        server.unregisterMBean(objectName("io.prometheus.jmx.test:type=Bulk,name=second"));
+        beans = replica.export(server, whitelist, blacklist, NO_SKIP, null);
+        assertEquals(Collections.singleton(objectName("io.prometheus.jmx.test:type=Bulk,name=first")),
+                beans.keySet());
+    }
+
+    @Test
+    public void testReplicaWithoutBulkExportBean() throws Exception {
+        BulkExport.Replica replica = new BulkExport.Replica();
+        assertNull(replica.export(server, Arrays.asList(WHITELIST), Arrays.asList(BLACKLIST), NO_SKIP, null));
+        assertEquals(-1, replica.generation());
+    }
+
+    @Test
+    public void testReplicaWhenInvokeIsRefused() throws Exception {
+        server.registerMBean(new BulkExport(server), BulkExport.NAME);
+        // Like a read-only role of a JMX access file.
+        MBeanServerConnection readOnly = (MBeanServerConnection) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {MBeanServer.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("invoke")) {
+                            throw new SecurityException("Access denied!");
+                        }
+                        try {
+                            return method.invoke(server, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        BulkExport.Replica replica = new BulkExport.Replica();
+        assertNull(replica.export(readOnly, Arrays.asList(WHITELIST), Arrays.asList(BLACKLIST), NO_SKIP, null));
+        assertEquals(-1, replica.generation());
+    }
+
+    @Test
+    public void testExportLeavesOutSkippedAttributesAndReportsFailures() throws Exception {
+        ObjectName name = objectName("io.prometheus.jmx.test:type=Bulk,name=broken");
+        Broken broken = new Broken();
+        server.registerMBean(broken, name);
+        BulkExport export = new BulkExport(server);
+
+        Object[] payload = export(export, -1, NO_NAMES, NO_ATTRIBUTES);
+        List<ObjectName> changed = Arrays.asList((ObjectName[]) payload[BulkExport.CHANGED_NAMES]);
+        String error = ((String[][]) payload[BulkExport.CHANGED_ERRORS])[changed.indexOf(name)][0];
+        assertTrue(error, error.contains("broken"));
+        assertEquals(1, broken.reads);
+
+        payload = export(export, -1, new ObjectName[] {name}, new String[][] {{"Broken"}});
+        changed = Arrays.asList((ObjectName[]) payload[BulkExport.CHANGED_NAMES]);
+        assertNull(((String[][]) payload[BulkExport.CHANGED_ERRORS])[changed.indexOf(name)][0]);
+        assertEquals(1, broken.reads);
+
+        // Without attributes, the whole bean is left out.
+        payload = export(export, -1, new ObjectName[] {name}, new String[][] {{}});
+        assertFalse(Arrays.asList((ObjectName[]) payload[BulkExport.NAMES]).contains(name));
+    }
+
+    @Test
+    public void testScraperQuarantinesThroughBulkExport() throws Exception {
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = objectName("io.prometheus.jmx.test:type=BulkBroken");
+        Broken broken = new Broken();
+        platform.registerMBean(broken, name);
+        try {
+            BulkExport.register();
+            BulkExport.Replica replica = new BulkExport.Replica();
+            BeanQuarantine quarantine = new BeanQuarantine(1, 2);
+            for (int i = 0; i < 3; i++) {
+                quarantine.startScrape();
+                new JmxScraper("", "", "", false, Collections.singletonList(name), new ArrayList<ObjectName>(),
+                        new JmxScraper.MBeanReceiver() {
+                            public void recordBean(String domain, Map<String, String> beanProperties,
+                                                   LinkedList<String> attrKeys, String attrName, String attrType,
+                                                   String attrDescription, Object value) {
+                            }
+                        }, new JmxMBeanPropertyCache(), null, null, null, replica, quarantine, null, 0, null)
+                        .doScrape();
+            }
+            // Failed in the first scrape, then the next two skipped it.
+            assertEquals(1, broken.reads);
+            assertTrue(replica.generation() >= 0);
+        } finally {
+            platform.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testScraperPassesAttributeSelection() throws Exception {
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = objectName("io.prometheus.jmx.test:type=BulkWide");
+        AttributeSelectionTest.Wide wide = new AttributeSelectionTest.Wide();
+        platform.registerMBean(wide, name);
+        try {
+            BulkExport.register();
+            final List<String> attributes = new ArrayList<String>();
+            JmxMBeanPropertyCache propertyCache = new JmxMBeanPropertyCache();
+            propertyCache.setAttributeSelection(new AttributeSelection(
+                    Collections.<ObjectName, Set<String>>singletonMap(name, Collections.singleton("Second")),
+                    Collections.<ObjectName, Set<String>>emptyMap()));
+            BulkExport.Replica replica = new BulkExport.Replica();
+            new JmxScraper("", "", "", false, Collections.singletonList(name), new ArrayList<ObjectName>(),
+                    new JmxScraper.MBeanReceiver() {
+                        public void recordBean(String domain, Map<String, String> beanProperties,
+                                               LinkedList<String> attrKeys, String attrName, String attrType,
+                                               String attrDescription, Object value) {
+                            attributes.add(attrName);
+                        }
+                    }, propertyCache, null, null, null, replica, null, null, 0, null).doScrape();
+            assertEquals(Arrays.asList("Second"), attributes);
+            // The agent only read the selected attribute.
+            assertEquals(1, wide.reads);
+            assertTrue(replica.generation() >= 0);
+        } finally {
+            platform.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testScraperReadsThroughBulkExport() throws Exception {
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = objectName("io.prometheus.jmx.test:type=BulkScraped");
+        Count count = new Count();
+        count.count = 3;
+        platform.registerMBean(count, name);
+        try {
+            BulkExport.register();
+            final List<Object> values = new ArrayList<Object>();
+            JmxScraper.MBeanReceiver receiver = new JmxScraper.MBeanReceiver() {
+                public void recordBean(String domain, Map<String, String> beanProperties,
+                                       LinkedList<String> attrKeys, String attrName, String attrType,
+                                       String attrDescription, Object value) {
+                    values.add(value);
+                }
+            };
+            BulkExport.Replica replica = new BulkExport.Replica();
+            for (int i = 0; i < 2; i++) {
+                new JmxScraper("", "", "", false, Collections.singletonList(name), new ArrayList<ObjectName>(),
+                        receiver, new JmxMBeanPropertyCache(), null, null, null, replica, null, null, 0, null).doScrape();
+            }
+            assertEquals(Arrays.<Object>asList(3, 3), values);
+            // Both scrapes were answered by the bulk export bean.
+            assertEquals(2, count.reads);
+            assertTrue(replica.generation() >= 0);
+        } finally {
+            platform.unregisterMBean(name);
+        }
+    }
+
+    private static Object[] export(BulkExport export, long since, ObjectName[] skipNames, String[][] skipAttributes) {
+        return export.export(WHITELIST, BLACKLIST, since, skipNames, skipAttributes, NO_NAMES, NO_ATTRIBUTES, NO_NAMES,
+                NO_ATTRIBUTES);
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ExpositionFormatTest {
+    private static final String PROMETHEUS_PROTOBUF_ACCEPT = "application/vnd.google.protobuf;"
+            + "proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3,*/*;q=0.1";
+    private static final String PROMETHEUS_OPENMETRICS_ACCEPT =
+            "application/openmetrics-text; version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1";
+
+    private static MetricFamilySamples.Sample sample(String name, List<String> labelNames, List<String> labelValues,
+                                                     double value) {
+        return new MetricFamilySamples.Sample(name, labelNames, labelValues, value);
+    }
+
+    private static List<MetricFamilySamples> families() {
+        List<String> none = Collections.emptyList();
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        mfs.add(new MetricFamilySamples("requests_total", Collector.Type.COUNTER, "Requests \"served\"",
+                Arrays.asList(sample("requests_total", Arrays.asList("topic"), Arrays.asList("a\\b\n"), 3))));
+        mfs.add(new MetricFamilySamples("bytes", Collector.Type.COUNTER, "Bytes",
+                Arrays.asList(sample("bytes", none, none, 1024))));
+        mfs.add(new MetricFamilySamples("heap", Collector.Type.GAUGE, "",
+                Arrays.asList(new MetricFamilySamples.Sample("heap", none, none, 0.5, 1500L))));
+        mfs.add(new MetricFamilySamples("latency", Collector.Type.SUMMARY, "Latency", Arrays.asList(
+                sample("latency", Arrays.asList("quantile"), Arrays.asList("0.99"), 7),
+                sample("latency_count", none, none, 10),
+                sample("latency_sum", none, none, 42))));
+        return mfs;
+    }
+
+    @Test
+    public void testNegotiation() {
+        assertSame(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(null));
+        assertSame(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(Arrays.asList("text/plain")));
+        assertSame(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(Arrays.asList("application/json")));
+        assertSame(ExpositionFormat.PROTOBUF, ExpositionFormat.negotiate(Arrays.asList(PROMETHEUS_PROTOBUF_ACCEPT)));
+        assertSame(ExpositionFormat.OPENMETRICS_100,
+                ExpositionFormat.negotiate(Arrays.asList(PROMETHEUS_OPENMETRICS_ACCEPT)));
+        assertSame(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(
+                Arrays.asList("application/openmetrics-text;q=0.2,text/plain;q=0.9")));
+        // Protobuf must name the message and the delimited encoding.
+        assertSame(ExpositionFormat.TEXT_004,
+                ExpositionFormat.negotiate(Arrays.asList("application/vnd.google.protobuf")));
+        assertSame(ExpositionFormat.TEXT_004,
+                ExpositionFormat.negotiate(Arrays.asList("application/openmetrics-text;q=0")));
+    }
+
+    @Test
+    public void testOpenMetrics() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExpositionFormat.OPENMETRICS_100.write(out, families());
+        assertEquals(
+                "# TYPE requests counter\n" +
+                "# HELP requests Requests \\\"served\\\"\n" +
+                "requests_total{topic=\"a\\\\b\\n\"} 3.0\n" +
+                "# TYPE bytes unknown\n" +
+                "# HELP bytes Bytes\n" +
+                "bytes 1024.0\n" +
+                "# TYPE heap gauge\n" +
+                "heap 0.5 1.500\n" +
+                "# TYPE latency summary\n" +
+                "# HELP latency Latency\n" +
+                "latency{quantile=\"0.99\"} 7.0\n" +
+                "latency_count 10.0\n" +
+                "latency_sum 42.0\n" +
+                "# EOF\n", out.toString("UTF-8"));
+    }
+
+    /**
+     * Decodes a protobuf message into its fields, with nested messages left as byte arrays.
+     */
+    private static Map<Integer, List<Object>> decode(byte[] bytes, int offset, int length) {
+        Map<Integer, List<Object>> fields = new LinkedHashMap<Integer, List<Object>>();
+        int[] pos = {offset};
+        while (pos[0] < offset + length) {
+            long tag = readVarint(bytes, pos);
+            int field = (int) (tag >>> 3);
+            Object value;
+            switch ((int) (tag & 7)) {
+                case 0:
+                    value = readVarint(bytes, pos);
+                    break;
+                case 1:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits |= (bytes[pos[0]++] & 0xFFL) << (8 * i);
+                    }
+                    value = Double.longBitsToDouble(bits);
+                    break;
+                case 2:
+                    int size = (int) readVarint(bytes, pos);
+                    value = Arrays.copyOfRange(bytes, pos[0], pos[0] + size);
+                    pos[0] += size;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected wire type");
+            }
+            if (!fields.containsKey(field)) {
+                fields.put(field, new ArrayList<Object>());
+            }
+            fields.get(field).add(value);
+        }
+        return fields;
+    }
+
+    private static Map<Integer, List<Object>> decode(Object message) {
+        byte[] bytes = (byte[]) message;
+        return decode(bytes, 0, bytes.length);
+    }
+
+    private static long readVarint(byte[] bytes, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = bytes[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static String string(Object bytes) throws Exception {
+        return new String((byte[]) bytes, "UTF-8");
+    }
+
+    @Test
+    public void testProtobuf() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExpositionFormat.PROTOBUF.write(out, families());
+        byte[] bytes = out.toByteArray();
+
+        List<Map<Integer, List<Object>>> families = new ArrayList<Map<Integer, List<Object>>>();
+        int[] pos = {0};
+        while (pos[0] < bytes.length) {
+            int length = (int) readVarint(bytes, pos);
+            families.add(decode(bytes, pos[0], length));
+            pos[0] += length;
+        }
+        assertEquals(4, families.size());
+
+        Map<Integer, List<Object>> requests = families.get(0);
+        assertEquals("requests_total", string(requests.get(1).get(0)));
+        assertEquals("Requests \"served\"", string(requests.get(2).get(0)));
+        assertEquals((long) ProtobufFormat.COUNTER, requests.get(3).get(0));
+        Map<Integer, List<Object>> metric = decode(requests.get(4).get(0));
+        Map<Integer, List<Object>> label = decode(metric.get(1).get(0));
+        assertEquals("topic", string(label.get(1).get(0)));
+        assertEquals("a\\b\n", string(label.get(2).get(0)));
+        assertEquals(3.0, decode(metric.get(3).get(0)).get(1).get(0));
+
+        Map<Integer, List<Object>> heap = families.get(2);
+        assertEquals((long) ProtobufFormat.GAUGE, heap.get(3).get(0));
+        metric = decode(heap.get(4).get(0));
+        assertEquals(0.5, decode(metric.get(2).get(0)).get(1).get(0));
+        assertEquals(1500L, metric.get(6).get(0));
+
+        Map<Integer, List<Object>> latency = families.get(3);
+        assertEquals((long) ProtobufFormat.SUMMARY, latency.get(3).get(0));
+        assertEquals(1, latency.get(4).size());
+        Map<Integer, List<Object>> summary = decode(decode(latency.get(4).get(0)).get(4).get(0));
+        assertEquals(10L, summary.get(1).get(0));
+        assertEquals(42.0, summary.get(2).get(0));
+        Map<Integer, List<Object>> quantile = decode(summary.get(3).get(0));
+        assertEquals(0.99, quantile.get(1).get(0));
+        assertEquals(7.0, quantile.get(2).get(0));
+    }
+
+    @Test
+    public void testProtobufHistogram() throws Exception {
+        List<String> none = Collections.emptyList();
+        List<String> le = Arrays.asList("le");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExpositionFormat.PROTOBUF.write(out, Arrays.asList(new MetricFamilySamples("size", Collector.Type.HISTOGRAM,
+                "Size", Arrays.asList(
+                sample("size_bucket", le, Arrays.asList("1.0"), 2),
+                sample("size_bucket", le, Arrays.asList("+Inf"), 5),
+                sample("size_count", none, none, 5),
+                sample("size_sum", none, none, 9)))));
+        byte[] bytes = out.toByteArray();
+        int[] pos = {0};
+        int length = (int) readVarint(bytes, pos);
+        Map<Integer, List<Object>> family = decode(bytes, pos[0], length);
+        assertEquals((long) ProtobufFormat.HISTOGRAM, family.get(3).get(0));
+        Map<Integer, List<Object>> histogram = decode(decode(family.get(4).get(0)).get(7).get(0));
+        assertEquals(5L, histogram.get(1).get(0));
+        assertEquals(9.0, histogram.get(2).get(0));
+        // The +Inf bucket is implied by the count.
+        assertEquals(1, histogram.get(3).size());
+        Map<Integer, List<Object>> bucket = decode(histogram.get(3).get(0));
+        assertEquals(2L, bucket.get(1).get(0));
+        assertEquals(1.0, bucket.get(2).get(0));
+    }
+}
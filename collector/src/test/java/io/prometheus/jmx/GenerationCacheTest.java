@@ -0,0 +1,75 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GenerationCacheTest {
+
+    @Test
+    public void testNoSweepWhenEveryEntryWasTouched() {
+        GenerationCache<String, String> cache = new GenerationCache<String, String>(100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals(0, cache.endGeneration());
+        cache.get("a");
+        cache.get("b");
+        assertEquals(0, cache.endGeneration());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testUntouchedEntriesAreEvicted() {
+        GenerationCache<String, String> cache = new GenerationCache<String, String>(100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.endGeneration();
+        cache.get("a");
+        assertEquals(1, cache.endGeneration());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testRepeatedTouchesCountOnce() {
+        GenerationCache<String, String> cache = new GenerationCache<String, String>(100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.endGeneration();
+        cache.get("a");
+        cache.get("a");
+        // "b" was not touched even though two touches happened.
+        assertEquals(1, cache.endGeneration());
+        assertFalse(cache.containsKey("b"));
+    }
+
+    @Test
+    public void testForcedSweepWithKeepSet() {
+        GenerationCache<String, String> cache = new GenerationCache<String, String>(100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        Set<String> keep = new HashSet<String>(Collections.singleton("b"));
+        assertEquals(1, cache.endGeneration(true, keep));
+        assertTrue(cache.containsKey("b"));
+        assertFalse(cache.containsKey("a"));
+    }
+
+    @Test
+    public void testPeriodicSweep() {
+        GenerationCache<String, String> cache = new GenerationCache<String, String>(3);
+        cache.put("a", "1");
+        // Skipped sweeps never evict, but the periodic one still only evicts untouched entries.
+        for (int i = 0; i < 10; i++) {
+            cache.get("a");
+            assertEquals(0, cache.endGeneration());
+        }
+        assertEquals(1, cache.size());
+    }
+}
@@ -7,9 +7,16 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -17,6 +24,10 @@ import static org.junit.Assert.fail;
 
 public class JmxCollectorTest {
 
+    private static final String PARTITION_RULE = "\n---\nrules:\n"
+        + "- pattern: `io.prometheus.jmx.test<type=Partition, topic=([a-z]+), partition=([0-9]+)><>Value`\n"
+        + "  name: partition_value\n  labels: {topic: `$1`, partition: `$2`}\n";
+
     CollectorRegistry registry;
 
     @BeforeClass
@@ -33,6 +44,7 @@ public class JmxCollectorTest {
         TomcatServlet.registerBean(mbs);
         Bool.registerBean(mbs);
         Camel.registerBean(mbs);
+        Partition.registerBeans(mbs);
     }
 
     @Before
@@ -160,6 +172,70 @@ public class JmxCollectorTest {
       assertEquals(338, registry.getSampleValue("Hadoop_DataNodeInfo_DatanodeNetworkCounts", new String[]{"service", "key", "key_"}, new String[]{"DataNode", "1.2.3.4", "networkErrors"}), .001);
     }
 
+    public interface TableMXBean {
+      Map<String, Long> getRows();
+    }
+
+    @Test
+    public void testMaxTabularRows() throws Exception {
+      ObjectName name = new ObjectName("io.prometheus.jmx.test:type=Table");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new TableMXBean() {
+        public Map<String, Long> getRows() {
+          Map<String, Long> rows = new TreeMap<String, Long>();
+          rows.put("a", 1L);
+          rows.put("b", 2L);
+          rows.put("c", 3L);
+          return rows;
+        }
+      }, name);
+      try {
+        String config = "---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Table\"]\n";
+        new JmxCollector(config).register(registry);
+        assertEquals(2, registry.getSampleValue("io_prometheus_jmx_test_Table_Rows", new String[]{"key"}, new String[]{"b"}), .001);
+
+        JmxCollector limited = new JmxCollector(config + "maxTabularRows: 2\n");
+        double dropped = JmxScraper.tabularRowsDropped.get();
+        int rows = 0;
+        for (Collector.MetricFamilySamples mfs : limited.collect()) {
+          if (mfs.name.equals("io_prometheus_jmx_test_Table_Rows")) {
+            rows += mfs.samples.size();
+          }
+        }
+        assertEquals(2, rows);
+        assertEquals(dropped + 1, JmxScraper.tabularRowsDropped.get(), .001);
+      } finally {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+    }
+
+    @Test
+    public void testPipelinedScrapeMatchesSequential() throws Exception {
+      String config = "---\nwhitelistObjectNames: [\"org.apache.cassandra.*:*\", \"Hadoop:*\", \"hadoop:*\", \"org.apache.camel:*\"]\n";
+      Set<String> sequential = samples(new JmxCollector(config).collect());
+      // A queue of one attribute makes the workers wait for the scrape thread all the time.
+      Set<String> pipelined = samples(new JmxCollector(config + "pipelineFetchThreads: 4\npipelineQueueSize: 1\n").collect());
+      assertFalse(sequential.isEmpty());
+      assertEquals(sequential, pipelined);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testPipelineQueueSizeMustBePositive() throws Exception {
+      new JmxCollector("---\npipelineFetchThreads: 2\npipelineQueueSize: 0\n");
+    }
+
+    private static Set<String> samples(List<Collector.MetricFamilySamples> mfs) {
+      Set<String> samples = new HashSet<String>();
+      for (Collector.MetricFamilySamples family : mfs) {
+        if (family.name.startsWith("jmx_scrape_")) {
+          continue;
+        }
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+          samples.add(sample.name + sample.labelNames + sample.labelValues + " " + sample.value);
+        }
+      }
+      return samples;
+    }
+
     @Test
     public void testWhitelist() throws Exception {
       JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- java.lang:*\n- java.lang:*\n- org.apache.cassandra.concurrent:*".replace('`','"')).register(registry);
@@ -284,4 +360,95 @@ public class JmxCollectorTest {
         assertTrue(registry.getSampleValue("jmx_scrape_cached_beans", new String[]{}, new String[]{}) > 0);
         assertEquals(4.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
     }
+
+    @Test
+    public void testAggregateOps() throws Exception {
+      assertAggregates("sum", 14, 9, 5);
+      assertAggregates("max", 7, 7, 5);
+      assertAggregates("min", 2, 2, 5);
+      assertAggregates("count", 3, 2, 1);
+    }
+
+    @Test
+    public void testAggregateOnlyFirstMatchingRule() throws Exception {
+      new JmxCollector((PARTITION_RULE + "  aggregate: count\n"
+          + "- pattern: `io.prometheus.jmx.test<type=Partition, topic=([a-z]+), partition=([0-9]+)><>Value`\n"
+          + "  name: partition_max\n  aggregate: max\n").replace('`','"')).register(registry);
+      assertEquals(3, registry.getSampleValue("partition_value", new String[]{}, new String[]{}), .001);
+      assertNull(registry.getSampleValue("partition_max", new String[]{}, new String[]{}));
+    }
+
+    /**
+     * Check an aggregate op over the partitions, without labels and by topic.
+     */
+    private void assertAggregates(String op, double all, double topicA, double topicB) throws Exception {
+      CollectorRegistry registry = new CollectorRegistry();
+      new JmxCollector((PARTITION_RULE + "  aggregate: " + op + "\n").replace('`','"')).register(registry);
+      assertEquals(op, all, registry.getSampleValue("partition_value", new String[]{}, new String[]{}), .001);
+      assertNull(op, registry.getSampleValue("partition_value", new String[]{"topic", "partition"}, new String[]{"a", "0"}));
+
+      registry = new CollectorRegistry();
+      new JmxCollector((PARTITION_RULE + "  aggregate: {op: " + op + ", by: [topic]}\n").replace('`','"'))
+          .register(registry);
+      assertEquals(op, topicA, registry.getSampleValue("partition_value", new String[]{"topic"}, new String[]{"a"}), .001);
+      assertEquals(op, topicB, registry.getSampleValue("partition_value", new String[]{"topic"}, new String[]{"b"}), .001);
+      assertNull(op, registry.getSampleValue("partition_value", new String[]{}, new String[]{}));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testAggregateMustHaveKnownOp() throws Exception {
+      new JmxCollector("---\nrules:\n- pattern: a\n  name: a\n  aggregate: avg");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testAggregateMustHaveName() throws Exception {
+      new JmxCollector("---\nrules:\n- pattern: a\n  aggregate: sum");
+    }
+
+    @Test
+    public void testRuleMaxSeriesKeepsExistingSeries() throws Exception {
+      int pools = ManagementFactory.getMemoryPoolMXBeans().size();
+      JmxCollector jc = new JmxCollector(("\n---\nrules:\n"
+          + "- pattern: `java.lang<type=MemoryPool, name=(.+)><>Valid`\n  name: pool_valid\n  labels: {pool: `$1`}\n"
+          + "  maxSeries: 1\n").replace('`','"')).register(registry);
+      Double dropped = CollectorRegistry.defaultRegistry.getSampleValue("jmx_series_dropped_total",
+          new String[]{"rule"}, new String[]{"java.lang<type=MemoryPool, name=(.+)><>Valid"});
+      String kept = onlyPool("pool_valid");
+      assertEquals(kept, onlyPool("pool_valid"));
+      assertEquals((dropped == null ? 0 : dropped) + 2 * (pools - 1), CollectorRegistry.defaultRegistry.getSampleValue(
+          "jmx_series_dropped_total", new String[]{"rule"}, new String[]{"java.lang<type=MemoryPool, name=(.+)><>Valid"}), .001);
+    }
+
+    @Test
+    public void testGlobalMaxSeries() throws Exception {
+      JmxCollector jc = new JmxCollector(("\n---\nmaxSeries: 2\nrules:\n"
+          + "- pattern: `java.lang<type=MemoryPool, name=(.+)><>Valid`\n  name: pool_valid\n  labels: {pool: `$1`}\n"
+          + "- pattern: `java.lang<type=Threading><>ThreadCount`\n  name: threads\n").replace('`','"')).register(registry);
+      int series = 0;
+      for (Collector.MetricFamilySamples mfs : jc.collect()) {
+        if (!mfs.name.startsWith("jmx_")) {
+          series += mfs.samples.size();
+        }
+      }
+      assertEquals(2, series);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMaxSeriesMustBePositive() throws Exception {
+      new JmxCollector("---\nrules:\n- pattern: a\n  maxSeries: 0");
+    }
+
+    private String onlyPool(String name) {
+      String pool = null;
+      for (Collector.MetricFamilySamples mfs : java.util.Collections.list(registry.metricFamilySamples())) {
+        for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+          if (sample.name.equals(name)) {
+            assertNull(pool);
+            pool = sample.labelValues.get(0);
+          }
+        }
+      }
+      assertNotNull(pool);
+      return pool;
+    }
 }
@@ -3,18 +3,21 @@ package io.prometheus.jmx;
 import org.junit.Test;
 
 import java.io.ObjectInputStream;
+import java.lang.management.ManagementFactory;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import javax.management.Attribute;
 import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
+import javax.management.Descriptor;
+import javax.management.DynamicMBean;
+import javax.management.ImmutableDescriptor;
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
@@ -28,7 +31,10 @@ import javax.management.MBeanNotificationInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanRegistrationException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
 import javax.management.NotCompliantMBeanException;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
 import javax.management.NotificationFilter;
 import javax.management.NotificationListener;
 import javax.management.ObjectInstance;
@@ -47,63 +53,63 @@ public class JmxMBeanPropertyCacheTest {
     @Test
     public void testSingleObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value"));
         assertSameElementsAndOrder(parameterList, "name", "value");
     }
 
     @Test
     public void testSimpleObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "value", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=\"value2\""));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=\"value2\""));
         assertSameElementsAndOrder(parameterList, "name", "value", "name2", "\"value2\"");
     }
 
     @Test
     public void testQuotedObjectNameWithComma() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value,more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value,more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value,more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithEquals() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value=more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value=more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value=more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithQuote() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\"more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\"more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\"more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithBackslash() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\\more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithMultipleQuoted() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\\\?\\*\\n\\\",:=more\",name2= value2 "));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\\\?\\*\\n\\\",:=more\",name2= value2 "));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\\\\?\\*\\n\\\",:=more\"", "name2", " value2 ");
     }
 
     @Test
     public void testIssue52() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(
+        Map<String, String> parameterList = testCache.getKeyPropertyList(
                 new ObjectName("org.apache.camel:context=ourinternalname,type=endpoints,name=\"seda://endpointName\\?concurrentConsumers=8&size=50000\""));
         assertSameElementsAndOrder(parameterList,
                 "context", "ourinternalname",
@@ -115,8 +121,8 @@ public class JmxMBeanPropertyCacheTest {
     public void testIdempotentGet() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
         ObjectName testObjectName = new ObjectName("com.organisation:name=value");
-        LinkedHashMap<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
-        LinkedHashMap<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
         assertEquals(parameterListFirst, parameterListSecond);
     }
 
@@ -124,11 +130,11 @@ public class JmxMBeanPropertyCacheTest {
     public void testGetAfterDeleteOneObject() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
         ObjectName testObjectName = new ObjectName("com.organisation:name=value");
-        LinkedHashMap<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
         assertNotNull(parameterListFirst);
         testCache.onlyKeepMBeans(Collections.<ObjectName>emptySet());
-        assertEquals(Collections.<ObjectName, LinkedHashMap<String,String>>emptyMap(), testCache.getKeyPropertiesPerBean());
-        LinkedHashMap<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
+        assertEquals(Collections.<ObjectName, KeyPropertyList>emptyMap(), testCache.getKeyPropertiesPerBean());
+        Map<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
         assertNotNull(parameterListSecond);
     }
 
@@ -201,7 +207,104 @@ public class JmxMBeanPropertyCacheTest {
         assertEquals(3L, beanConn.getMBeanInfoCallCount.get(testObjectName).longValue());
     }
 
-    private void assertSameElementsAndOrder(LinkedHashMap<?, ?> actual, Object... expected) {
+    @Test
+    public void testImmutableInfoIsCachedByDefault() throws Throwable {
+        FakeMBeanServer beanConn = new FakeMBeanServer();
+        beanConn.descriptor = new ImmutableDescriptor("immutableInfo=true");
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        ObjectName testObjectName = new ObjectName("com.organisation:name=value");
+        testCache.getAttributes(testObjectName, beanConn);
+        testCache.getAttributes(testObjectName, beanConn);
+        assertEquals(1L, beanConn.getMBeanInfoCallCount.get(testObjectName).longValue());
+    }
+
+    @Test
+    public void testMutableInfoIsNotCachedByDefault() throws Throwable {
+        FakeMBeanServer beanConn = new FakeMBeanServer();
+        beanConn.descriptor = new ImmutableDescriptor("immutableInfo=false");
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        ObjectName testObjectName = new ObjectName("com.organisation:name=value");
+        testCache.getAttributes(testObjectName, beanConn);
+        testCache.getAttributes(testObjectName, beanConn);
+        assertEquals(2L, beanConn.getMBeanInfoCallCount.get(testObjectName).longValue());
+    }
+
+    @Test
+    public void testMutableInfoIsCachedForTtl() throws Throwable {
+        FakeMBeanServer beanConn = new FakeMBeanServer();
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        testCache.setAttributeInfoTtl(3600, false);
+        ObjectName testObjectName = new ObjectName("com.organisation:name=value");
+        testCache.getAttributes(testObjectName, beanConn);
+        testCache.getAttributes(testObjectName, beanConn);
+        assertEquals(1L, beanConn.getMBeanInfoCallCount.get(testObjectName).longValue());
+
+        // Disabling the TTL drops entries cached with it.
+        testCache.setAttributeInfoTtl(0, false);
+        testCache.getAttributes(testObjectName, beanConn);
+        assertEquals(2L, beanConn.getMBeanInfoCallCount.get(testObjectName).longValue());
+    }
+
+    @Test
+    public void testPlatformMXBeansDeclareImmutableInfo() throws Throwable {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(JmxMBeanPropertyCache.isImmutableInfo(server.getMBeanInfo(new ObjectName("java.lang:type=Runtime"))));
+    }
+
+    @Test
+    public void testInfoChangedNotificationInvalidatesCache() throws Throwable {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName testObjectName = new ObjectName("com.organisation:name=changing");
+        ChangingInfoBean bean = new ChangingInfoBean();
+        server.registerMBean(bean, testObjectName);
+
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        testCache.setAttributeInfoTtl(3600, true);
+        testCache.getAttributes(testObjectName, server);
+        // The server itself also asks for the info, e.g. when registering the bean and the listener.
+        int callCount = bean.getMBeanInfoCallCount;
+        testCache.getAttributes(testObjectName, server);
+        assertEquals(callCount, bean.getMBeanInfoCallCount);
+
+        bean.sendNotification(new Notification("jmx.mbean.info.changed", testObjectName, 1));
+        testCache.getAttributes(testObjectName, server);
+        assertEquals(callCount + 1, bean.getMBeanInfoCallCount);
+        testCache.getAttributes(testObjectName, server);
+        assertEquals(callCount + 1, bean.getMBeanInfoCallCount);
+    }
+
+    public static class ChangingInfoBean extends NotificationBroadcasterSupport implements DynamicMBean {
+        int getMBeanInfoCallCount = 0;
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public void setAttribute(Attribute attribute) {
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            return new AttributeList();
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return null;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            getMBeanInfoCallCount++;
+            return new MBeanInfo(ChangingInfoBean.class.getName(), null, new MBeanAttributeInfo[0],
+                    new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+                    new MBeanNotificationInfo[] {new MBeanNotificationInfo(
+                            new String[] {"jmx.mbean.info.changed"}, Notification.class.getName(), "Info changed")});
+        }
+    }
+
+    private void assertSameElementsAndOrder(Map<?, ?> actual, Object... expected) {
         assert expected.length % 2 == 0;
         List<Map.Entry<?,?>> actualList = new ArrayList<Map.Entry<?, ?>>(actual.entrySet());
         List<Map.Entry<?,?>> expectedList = new ArrayList<Map.Entry<?,?>>();
@@ -214,6 +317,7 @@ public class JmxMBeanPropertyCacheTest {
     private static class FakeMBeanServer implements MBeanServer {
 
         Map<ObjectName, Long> getMBeanInfoCallCount = new HashMap<ObjectName, Long>();
+        Descriptor descriptor = null;
 
         @Override
         public MBeanInfo getMBeanInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException {
@@ -223,7 +327,7 @@ public class JmxMBeanPropertyCacheTest {
             }
             getMBeanInfoCallCount.put(name, callCount + 1);
 
-            return new MBeanInfo(null, null, new MBeanAttributeInfo[0], new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+            return new MBeanInfo(null, null, new MBeanAttributeInfo[0], new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0], descriptor);
         }
 
         @Override
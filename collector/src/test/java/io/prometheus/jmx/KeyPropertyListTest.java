@@ -0,0 +1,132 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPropertyListTest {
+    // The regular expression that KeyPropertyList.parse replaces, kept as the reference implementation.
+    private static final Pattern PROPERTY_PATTERN = Pattern.compile(
+            "([^,=:\\*\\?]+)" + // Name - non-empty, anything but comma, equals, colon, star, or question mark
+                    "=" +  // Equals
+                    "(" + // Either
+                    "\"" + // Quoted
+                    "(?:" + // A possibly empty sequence of
+                    "[^\\\\\"]*" + // Greedily match anything but backslash or quote
+                    "(?:\\\\.)?" + // Greedily see if we can match an escaped sequence
+                    ")*" +
+                    "\"" +
+                    "|" + // Or
+                    "[^,=:\"]*" + // Unquoted - can be empty, anything but comma, equals, colon, or quote
+                    ")");
+
+    private static final char[] ALPHABET = {
+            'a', 'b', 'Z', '0', ' ', '-', '/', '&', ',', ',', '=', '=', '=', ':', '*', '?', '"', '"', '\\', '\\',
+            '\n', '\r', '\u0085', '\u2028', '\u00e5'};
+
+    private static LinkedHashMap<String, String> referenceParse(String properties) {
+        LinkedHashMap<String, String> keyProperties = new LinkedHashMap<String, String>();
+        Matcher match = PROPERTY_PATTERN.matcher(properties);
+        while (match.lookingAt()) {
+            keyProperties.put(match.group(1), match.group(2));
+            properties = properties.substring(match.end());
+            if (properties.startsWith(",")) {
+                properties = properties.substring(1);
+            }
+            match.reset(properties);
+        }
+        return keyProperties;
+    }
+
+    private static void assertParity(String properties) {
+        Map<String, String> expected = referenceParse(properties);
+        KeyPropertyList actual = KeyPropertyList.parse(properties);
+        assertEquals("Parsing " + properties, new ArrayList<Map.Entry<String, String>>(expected.entrySet()),
+                new ArrayList<Map.Entry<String, String>>(actual.entrySet()));
+        assertEquals(expected, actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testFuzzArbitraryStringsAgainstRegex() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(24);
+            for (int j = 0; j < length; j++) {
+                sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+            }
+            assertParity(sb.toString());
+        }
+    }
+
+    @Test
+    public void testFuzzObjectNamesAgainstRegex() throws MalformedObjectNameException {
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder("domain:");
+            int properties = 1 + random.nextInt(6);
+            for (int p = 0; p < properties; p++) {
+                if (p > 0) {
+                    sb.append(',');
+                }
+                sb.append("key").append(p).append('=');
+                StringBuilder value = new StringBuilder();
+                int length = random.nextInt(10);
+                for (int j = 0; j < length; j++) {
+                    value.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+                }
+                if (random.nextBoolean()) {
+                    sb.append(ObjectName.quote(value.toString()));
+                } else {
+                    sb.append(value.toString().replaceAll("[,=:*?\"\\\\\n]", "_"));
+                }
+            }
+            assertParity(new ObjectName(sb.toString()).getKeyPropertyListString());
+        }
+    }
+
+    @Test
+    public void testEdgeCasesAgainstRegex() {
+        String[] cases = {
+                "", ",", "=", "a=", "a=,", "=b", "a=b,", "a=b,,c=d", "a=b=c", "a=\"b", "a=\"b\\\"", "a=\"b\\\nc\"",
+                "a=\"b\"c=d", "a=\"b\",c=\"d\"", "a=1,a=2,b=3,a=4", "a*=b", "a:b=c", "a=b:c", "a=\"\"", "a=\"\\\\\"",
+        };
+        for (String properties : cases) {
+            assertParity(properties);
+        }
+    }
+
+    @Test
+    public void testMapView() {
+        KeyPropertyList list = KeyPropertyList.parse("type=Log,name=Size,topic=orders");
+        assertEquals(3, list.size());
+        assertEquals("Size", list.get("name"));
+        assertNull(list.get("partition"));
+        assertTrue(list.containsKey("topic"));
+        assertFalse(list.containsKey("partition"));
+        assertEquals("type", list.keyAt(0));
+        assertEquals("orders", list.valueAt(2));
+        List<String> keys = new ArrayList<String>(list.keySet());
+        assertEquals("[type, name, topic]", keys.toString());
+        assertEquals("{type=Log, name=Size, topic=orders}", list.toString());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        KeyPropertyList.parse("type=Log").put("name", "Size");
+    }
+}
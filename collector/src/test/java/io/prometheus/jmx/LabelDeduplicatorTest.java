@@ -0,0 +1,49 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LabelDeduplicatorTest {
+
+    @Test
+    public void testEqualValuesShareOneInstance() {
+        LabelDeduplicator dedup = new LabelDeduplicator(10, 10);
+        String first = dedup.value(new String("orders"));
+        String second = dedup.value(new String("orders"));
+        assertEquals("orders", second);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void testEqualNameListsShareOneImmutableList() {
+        LabelDeduplicator dedup = new LabelDeduplicator(10, 10);
+        List<String> first = dedup.names(new ArrayList<String>(Arrays.asList("topic", "partition")));
+        List<String> second = dedup.names(new ArrayList<String>(Arrays.asList("topic", "partition")));
+        assertSame(first, second);
+        assertEquals(Arrays.asList("topic", "partition"), first);
+        try {
+            first.add("clientId");
+            fail("Interned label names must be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTablesAreBounded() {
+        LabelDeduplicator dedup = new LabelDeduplicator(5, 5);
+        for (int i = 0; i < 100; i++) {
+            dedup.value("value" + i);
+            dedup.names(Arrays.asList("name" + i));
+        }
+        assertTrue(dedup.size() <= 10);
+    }
+}
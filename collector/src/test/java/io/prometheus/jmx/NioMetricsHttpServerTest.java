@@ -0,0 +1,255 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioMetricsHttpServerTest {
+    private static final int SAMPLES = 5000;
+
+    private static class ManySamplesCollector extends Collector {
+        volatile CountDownLatch release;
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            entered.countDown();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+            for (int i = 0; i < SAMPLES; i++) {
+                samples.add(new MetricFamilySamples.Sample("many", Collections.singletonList("index"),
+                        Collections.singletonList(Integer.toString(i)), i));
+            }
+            return Collections.singletonList(new MetricFamilySamples("many", Type.GAUGE, "help", samples));
+        }
+    }
+
+    private static class Response {
+        int status;
+        String head;
+        byte[] body;
+    }
+
+    private ManySamplesCollector collector;
+    private CollectorRegistry registry;
+    private NioMetricsHttpServer server;
+
+    @Before
+    public void setUp() {
+        registry = new CollectorRegistry();
+        collector = new ManySamplesCollector().register(registry);
+    }
+
+    @After
+    public void tearDown() {
+        if (collector.release != null) {
+            collector.release.countDown();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void start(int maxConnections, int maxConcurrentRequests) throws IOException {
+        server = new NioMetricsHttpServer(new InetSocketAddress("localhost", 0), new ResponseCache(registry,
+                new ResponseCache.MaxAge() {
+                    public long maxAgeMillis() {
+                        return 0;
+                    }
+                }), maxConnections, maxConcurrentRequests, true);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static Response readResponse(InputStream in) throws IOException {
+        return readResponse(in, false);
+    }
+
+    private static Response readResponse(InputStream in, boolean headOnly) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int last = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed in response head");
+            }
+            head.write(b);
+            last = (last << 8) | b;
+            if (last == 0x0d0a0d0a) {
+                break;
+            }
+        }
+        Response response = new Response();
+        response.head = head.toString("ISO-8859-1");
+        response.status = Integer.parseInt(response.head.substring(9, 12));
+        int length = 0;
+        for (String line : response.head.split("\r\n")) {
+            if (line.startsWith("Content-Length: ") && !headOnly) {
+                length = Integer.parseInt(line.substring("Content-Length: ".length()));
+            }
+        }
+        response.body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(response.body, read, length - read);
+            if (n < 0) {
+                throw new IOException("Connection closed in response body");
+            }
+            read += n;
+        }
+        return response;
+    }
+
+    private static String request(String method, String target, String headers) {
+        return method + " " + target + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n";
+    }
+
+    @Test
+    public void testServesGzippedMetrics() throws Exception {
+        start(4, 2);
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + server.getPort() + "/metrics").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        InputStream in = new GZIPInputStream(connection.getInputStream());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        assertTrue(body.toString("UTF-8").contains("many{index=\"4999\",} 4999.0"));
+    }
+
+    @Test
+    public void testKeepAliveAndPipelining() throws Exception {
+        start(4, 2);
+        Socket socket = connect();
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write((request("GET", "/metrics", "") + request("HEAD", "/metrics", "")
+                    + request("GET", "/-/healthy", "")).getBytes("ISO-8859-1"));
+            out.flush();
+
+            Response metrics = readResponse(socket.getInputStream());
+            assertEquals(200, metrics.status);
+            assertTrue(metrics.head.contains("Connection: keep-alive"));
+            assertTrue(metrics.body.length > NioMetricsHttpServer.BUFFER_SIZE);
+            assertTrue(new String(metrics.body, "UTF-8").contains("many{index=\"4999\",} 4999.0"));
+
+            // HEAD has the length of the body, but no body.
+            String head = readResponse(socket.getInputStream(), true).head;
+            assertTrue(head.contains("Content-Length: " + metrics.body.length));
+
+            Response healthy = readResponse(socket.getInputStream());
+            assertEquals(MetricsServer.HEALTHY_RESPONSE, new String(healthy.body, "UTF-8"));
+
+            // And the connection is still usable.
+            out.write(request("GET", "/-/healthy", "").getBytes("ISO-8859-1"));
+            assertEquals(200, readResponse(socket.getInputStream()).status);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testConnectionClose() throws Exception {
+        start(4, 2);
+        Socket socket = connect();
+        try {
+            socket.getOutputStream().write(request("GET", "/-/healthy", "Connection: close\r\n").getBytes("ISO-8859-1"));
+            Response response = readResponse(socket.getInputStream());
+            assertEquals(200, response.status);
+            assertTrue(response.head.contains("Connection: close"));
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testUnsupportedMethod() throws Exception {
+        start(4, 2);
+        Socket socket = connect();
+        try {
+            socket.getOutputStream().write(request("DELETE", "/metrics", "").getBytes("ISO-8859-1"));
+            Response response = readResponse(socket.getInputStream());
+            assertEquals(405, response.status);
+            assertTrue(response.head.contains("Allow: GET, HEAD"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testRejectsRequestsBeyondConcurrencyLimit() throws Exception {
+        start(4, 1);
+        collector.release = new CountDownLatch(1);
+        Socket first = connect();
+        Socket second = connect();
+        try {
+            first.getOutputStream().write(request("GET", "/metrics", "").getBytes("ISO-8859-1"));
+            collector.entered.await();
+
+            second.getOutputStream().write(request("GET", "/metrics", "").getBytes("ISO-8859-1"));
+            Response rejected = readResponse(second.getInputStream());
+            assertEquals(503, rejected.status);
+
+            collector.release.countDown();
+            assertEquals(200, readResponse(first.getInputStream()).status);
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testRejectsConnectionsBeyondLimit() throws Exception {
+        start(1, 1);
+        Socket first = connect();
+        try {
+            // Make sure the first connection was accepted.
+            first.getOutputStream().write(request("GET", "/-/healthy", "").getBytes("ISO-8859-1"));
+            assertEquals(200, readResponse(first.getInputStream()).status);
+
+            Socket second = connect();
+            try {
+                assertEquals(503, readResponse(second.getInputStream()).status);
+            } finally {
+                second.close();
+            }
+        } finally {
+            first.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NormalisationCacheTest {
+
+    private static class CountingCache extends NormalisationCache {
+        int calls;
+
+        CountingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected String normalise(String input) {
+            calls++;
+            return input.toLowerCase();
+        }
+    }
+
+    @Test
+    public void testNullIsNotCached() {
+        CountingCache cache = new CountingCache(10);
+        assertNull(cache.get(null));
+        assertEquals(0, cache.calls);
+    }
+
+    @Test
+    public void testRepeatedLookupsAreMemoised() {
+        CountingCache cache = new CountingCache(10);
+        String first = cache.get("FooBar");
+        String second = cache.get(new String("FooBar"));
+        assertEquals("foobar", first);
+        assertSame(first, second);
+        assertEquals(1, cache.calls);
+    }
+
+    @Test
+    public void testEqualResultsShareOneInstance() {
+        CountingCache cache = new CountingCache(10);
+        String alreadyNormal = cache.get(new String("foobar"));
+        String normalised = cache.get("FOOBAR");
+        assertSame(alreadyNormal, normalised);
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        CountingCache cache = new CountingCache(5);
+        for (int i = 0; i < 100; i++) {
+            cache.get("Name" + i);
+        }
+        assertTrue(cache.size() <= 5);
+    }
+
+    @Test
+    public void testSafeNameReturnsCanonicalInstance() {
+        String first = JmxCollector.safeName(new String("kafka.server-BrokerTopicMetrics"));
+        String second = JmxCollector.safeName(new String("kafka.server-BrokerTopicMetrics"));
+        assertEquals("kafka_server_BrokerTopicMetrics", first);
+        assertSame(first, second);
+    }
+}
@@ -0,0 +1,30 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface PartitionMBean {
+    public int getValue();
+}
+
+class Partition implements PartitionMBean {
+    private final int value;
+
+    Partition(int value) {
+        this.value = value;
+    }
+
+    /**
+     * Register partitions of two topics with distinct values: a has 2 and 7, b has 5.
+     */
+    public static void registerBeans(MBeanServer mbs)
+            throws javax.management.JMException {
+        mbs.registerMBean(new Partition(2), new ObjectName("io.prometheus.jmx.test:type=Partition,topic=a,partition=0"));
+        mbs.registerMBean(new Partition(7), new ObjectName("io.prometheus.jmx.test:type=Partition,topic=a,partition=1"));
+        mbs.registerMBean(new Partition(5), new ObjectName("io.prometheus.jmx.test:type=Partition,topic=b,partition=0"));
+    }
+
+    public int getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,388 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteWriterTest {
+
+    /**
+     * A remote write receiver that records the decompressed bodies it accepts.
+     */
+    private static class StubReceiver implements HttpHandler {
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        volatile int status = 204;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = readAll(exchange.getRequestBody());
+            int status = this.status;
+            if (status / 100 == 2) {
+                assertEquals("snappy", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                assertEquals("application/x-protobuf", exchange.getRequestHeaders().getFirst("Content-Type"));
+                received.add(uncompress(body));
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+    }
+
+    private HttpServer server;
+    private StubReceiver receiver;
+    private File queueDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new StubReceiver();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v1/write", receiver);
+        server.start();
+        queueDirectory = File.createTempFile("remote-write", "");
+        queueDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = queueDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        queueDirectory.delete();
+    }
+
+    private RemoteWriter.Config config() throws Exception {
+        RemoteWriter.Config config = new RemoteWriter.Config();
+        config.url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/write");
+        config.intervalSeconds = 3600;
+        config.timeoutSeconds = 1;
+        config.maxBackoffMillis = 100;
+        return config;
+    }
+
+    @Test
+    public void testSnappyRoundTrip() {
+        Random random = new Random(0);
+        byte[] noise = new byte[100000];
+        random.nextBytes(noise);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("kafka_server_brokertopicmetrics_bytesin_total{topic=\"t").append(i % 50).append("\"} ");
+        }
+        byte[] repetitive = text.toString().getBytes();
+
+        for (byte[] input : Arrays.asList(new byte[0], "a".getBytes(), noise, repetitive)) {
+            byte[] compressed = Snappy.compress(input);
+            assertArrayEquals(input, uncompress(compressed));
+        }
+        assertTrue(Snappy.compress(repetitive).length < repetitive.length / 10);
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        List<String> none = Collections.emptyList();
+        List<MetricFamilySamples> mfs = Arrays.asList(
+                new MetricFamilySamples("a", Collector.Type.GAUGE, "help", Arrays.asList(
+                        new MetricFamilySamples.Sample("a", Arrays.asList("job", "zone"), Arrays.asList("x", "z"), 1),
+                        new MetricFamilySamples.Sample("a", none, none, 2, 5L))),
+                new MetricFamilySamples("b", Collector.Type.GAUGE, "help", Arrays.asList(
+                        new MetricFamilySamples.Sample("b", none, none, 3))));
+        Map<String, String> extra = new TreeMap<String, String>();
+        extra.put("job", "jmx");
+        extra.put("instance", "host");
+
+        List<byte[]> batches = RemoteWriter.encode(mfs, 1000, extra, 2);
+        assertEquals(2, batches.size());
+
+        List<Map<String, String>> labels = new ArrayList<Map<String, String>>();
+        List<double[]> samples = new ArrayList<double[]>();
+        for (byte[] batch : batches) {
+            decodeWriteRequest(batch, labels, samples);
+        }
+        assertEquals(3, labels.size());
+        // The sample's own labels win over the extra labels, and labels are sorted by name.
+        assertEquals(Arrays.asList("__name__", "instance", "job", "zone"),
+                new ArrayList<String>(labels.get(0).keySet()));
+        assertEquals("a", labels.get(0).get("__name__"));
+        assertEquals("x", labels.get(0).get("job"));
+        assertEquals("jmx", labels.get(1).get("job"));
+        assertEquals("b", labels.get(2).get("__name__"));
+        assertArrayEquals(new double[]{1, 1000}, samples.get(0), 0);
+        assertArrayEquals(new double[]{2, 5}, samples.get(1), 0);
+        assertArrayEquals(new double[]{3, 1000}, samples.get(2), 0);
+    }
+
+    @Test
+    public void testPushToReceiver() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("pushed").help("help").register(registry).set(42);
+        RemoteWriter writer = new RemoteWriter(registry, config());
+        writer.start();
+        try {
+            waitFor(receiver.received, 1);
+        } finally {
+            writer.stop();
+        }
+        // One push on start, and a final one on stop.
+        assertEquals(Arrays.asList(42.0, 42.0), valuesOf(receiver.received, "pushed"));
+        assertEquals(2.0, registry.getSampleValue("jmx_remote_write_batches_sent_total"), 0);
+    }
+
+    @Test
+    public void testPersistsWhileReceiverIsDown() throws Exception {
+        receiver.status = 503;
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge gauge = Gauge.build().name("pushed").help("help").register(registry);
+        RemoteWriter.Config config = config();
+        config.queueDirectory = queueDirectory;
+        RemoteWriter writer = new RemoteWriter(registry, config);
+        gauge.set(1);
+        writer.start();
+        waitForSample(registry, "jmx_remote_write_send_failures_total", 1);
+        gauge.set(2);
+        writer.push();
+        // The final push on stop, which then persists what could not be delivered.
+        writer.stop();
+        assertTrue(receiver.received.isEmpty());
+        assertEquals(3, new DiskQueue(queueDirectory, Long.MAX_VALUE).size());
+
+        // After a restart, the persisted batches are delivered first and in order.
+        receiver.status = 200;
+        registry = new CollectorRegistry();
+        Gauge.build().name("pushed").help("help").register(registry).set(3);
+        writer = new RemoteWriter(registry, config);
+        writer.start();
+        try {
+            waitFor(receiver.received, 4);
+        } finally {
+            writer.stop();
+        }
+        assertEquals(0, writer.queued());
+        assertEquals(0, new DiskQueue(queueDirectory, Long.MAX_VALUE).size());
+        assertEquals(Arrays.asList(1.0, 2.0, 2.0, 3.0, 3.0), valuesOf(receiver.received, "pushed"));
+    }
+
+    @Test
+    public void testBoundedMemoryQueue() throws Exception {
+        receiver.status = 503;
+        CollectorRegistry registry = new CollectorRegistry();
+        RemoteWriter.Config config = config();
+        config.maxQueuedBatches = 2;
+        RemoteWriter writer = new RemoteWriter(registry, config);
+        for (int i = 0; i < 5; i++) {
+            writer.push();
+        }
+        assertEquals(2, writer.queued());
+        assertEquals(3.0, registry.getSampleValue("jmx_remote_write_batches_dropped_total"), 0);
+    }
+
+    @Test
+    public void testRejectedBatchesAreDropped() throws Exception {
+        receiver.status = 400;
+        CollectorRegistry registry = new CollectorRegistry();
+        RemoteWriter writer = new RemoteWriter(registry, config());
+        writer.start();
+        waitForSample(registry, "jmx_remote_write_batches_dropped_total", 1);
+        writer.stop();
+        assertEquals(0, writer.queued());
+        assertEquals(2.0, registry.getSampleValue("jmx_remote_write_batches_dropped_total"), 0);
+    }
+
+    private static void waitFor(List<byte[]> received, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, received.size());
+    }
+
+    private static void waitForSample(CollectorRegistry registry, String name, double value)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (registry.getSampleValue(name) < value && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(registry.getSampleValue(name) >= value);
+    }
+
+    private static List<Double> valuesOf(List<byte[]> requests, String name) {
+        List<Double> values = new ArrayList<Double>();
+        for (byte[] request : requests) {
+            List<Map<String, String>> labels = new ArrayList<Map<String, String>>();
+            List<double[]> samples = new ArrayList<double[]>();
+            decodeWriteRequest(request, labels, samples);
+            for (int i = 0; i < labels.size(); i++) {
+                if (name.equals(labels.get(i).get("__name__"))) {
+                    values.add(samples.get(i)[0]);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Decode a WriteRequest into the labels of each series and its sample as {value, timestamp}.
+     */
+    private static void decodeWriteRequest(byte[] request, List<Map<String, String>> labels,
+                                           List<double[]> samples) {
+        for (Object series : decode((byte[]) request).get(1)) {
+            Map<Integer, List<Object>> fields = decode((byte[]) series);
+            Map<String, String> seriesLabels = new LinkedHashMap<String, String>();
+            for (Object label : fields.get(1)) {
+                Map<Integer, List<Object>> pair = decode((byte[]) label);
+                seriesLabels.put(string(pair.get(1).get(0)), string(pair.get(2).get(0)));
+            }
+            labels.add(seriesLabels);
+            Map<Integer, List<Object>> sample = decode((byte[]) fields.get(2).get(0));
+            samples.add(new double[]{(Double) sample.get(1).get(0), (Long) sample.get(2).get(0)});
+        }
+    }
+
+    private static Map<Integer, List<Object>> decode(byte[] bytes) {
+        Map<Integer, List<Object>> fields = new LinkedHashMap<Integer, List<Object>>();
+        int[] pos = {0};
+        while (pos[0] < bytes.length) {
+            long tag = readVarint(bytes, pos);
+            int field = (int) (tag >>> 3);
+            Object value;
+            switch ((int) (tag & 7)) {
+                case 0:
+                    value = readVarint(bytes, pos);
+                    break;
+                case 1:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits |= (bytes[pos[0]++] & 0xFFL) << (8 * i);
+                    }
+                    value = Double.longBitsToDouble(bits);
+                    break;
+                case 2:
+                    int size = (int) readVarint(bytes, pos);
+                    value = Arrays.copyOfRange(bytes, pos[0], pos[0] + size);
+                    pos[0] += size;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected wire type");
+            }
+            if (!fields.containsKey(field)) {
+                fields.put(field, new ArrayList<Object>());
+            }
+            fields.get(field).add(value);
+        }
+        return fields;
+    }
+
+    private static long readVarint(byte[] bytes, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = bytes[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static String string(Object bytes) {
+        try {
+            return new String((byte[]) bytes, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A Snappy block decompressor, to check what the writer sends.
+     */
+    private static byte[] uncompress(byte[] in) {
+        int[] pos = {0};
+        int length = (int) readVarint(in, pos);
+        byte[] out = new byte[length];
+        int ip = pos[0];
+        int op = 0;
+        while (ip < in.length) {
+            int tag = in[ip++] & 0xFF;
+            switch (tag & 3) {
+                case 0: {
+                    int n = tag >>> 2;
+                    if (n >= 60) {
+                        int bytes = n - 59;
+                        n = 0;
+                        for (int i = 0; i < bytes; i++) {
+                            n |= (in[ip++] & 0xFF) << (8 * i);
+                        }
+                    }
+                    n++;
+                    System.arraycopy(in, ip, out, op, n);
+                    ip += n;
+                    op += n;
+                    break;
+                }
+                case 1: {
+                    int n = ((tag >>> 2) & 7) + 4;
+                    int offset = ((tag >>> 5) << 8) | (in[ip++] & 0xFF);
+                    op = copy(out, op, offset, n);
+                    break;
+                }
+                case 2: {
+                    int n = (tag >>> 2) + 1;
+                    int offset = (in[ip] & 0xFF) | (in[ip + 1] & 0xFF) << 8;
+                    ip += 2;
+                    op = copy(out, op, offset, n);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unexpected four byte offset copy");
+            }
+        }
+        assertEquals(length, op);
+        return out;
+    }
+
+    private static int copy(byte[] out, int op, int offset, int n) {
+        assertTrue(offset > 0 && offset <= op);
+        for (int i = 0; i < n; i++) {
+            out[op + i] = out[op - offset + i];
+        }
+        return op + n;
+    }
+}
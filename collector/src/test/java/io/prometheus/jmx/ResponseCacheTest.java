@@ -0,0 +1,207 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheTest {
+    private static class CountingCollector extends Collector {
+        final AtomicInteger collects = new AtomicInteger();
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            collects.incrementAndGet();
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            for (String name : Arrays.asList("first", "second")) {
+                mfs.add(new MetricFamilySamples(name, Type.GAUGE, "help", Collections.singletonList(
+                        new MetricFamilySamples.Sample(name, Collections.<String>emptyList(),
+                                Collections.<String>emptyList(), collects.get()))));
+            }
+            return mfs;
+        }
+    }
+
+    private static class FixedMaxAge implements ResponseCache.MaxAge {
+        long millis;
+
+        FixedMaxAge(long millis) {
+            this.millis = millis;
+        }
+
+        public long maxAgeMillis() {
+            return millis;
+        }
+    }
+
+    private CollectorRegistry registry;
+    private CountingCollector collector;
+
+    @Before
+    public void setUp() {
+        registry = new CollectorRegistry();
+        collector = new CountingCollector().register(registry);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        return readFully(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRepeatRequestsWithinMaxAgeShareTheBody() throws Exception {
+        ResponseCache cache = new ResponseCache(registry, new FixedMaxAge(60000));
+        Set<String> all = Collections.emptySet();
+
+        ResponseCache.Response first = cache.get(ExpositionFormat.TEXT_004, all, false);
+        ResponseCache.Response second = cache.get(ExpositionFormat.TEXT_004, all, false);
+        assertSame(first.body, second.body);
+        assertEquals(TextFormat.CONTENT_TYPE_004, first.contentType);
+        assertFalse(first.gzipped);
+        assertEquals(1, collector.collects.get());
+
+        ResponseCache.Response gzipped = cache.get(ExpositionFormat.TEXT_004, all, true);
+        assertTrue(gzipped.gzipped);
+        assertArrayEquals(first.body, gunzip(gzipped.body));
+        assertSame(gzipped.body, cache.get(ExpositionFormat.TEXT_004, all, true).body);
+        assertEquals(1, collector.collects.get());
+    }
+
+    @Test
+    public void testNameFiltersAreCachedSeparately() throws Exception {
+        ResponseCache cache = new ResponseCache(registry, new FixedMaxAge(60000));
+        String all = new String(cache.get(ExpositionFormat.TEXT_004, Collections.<String>emptySet(), false).body, "UTF-8");
+        String filtered = new String(cache.get(ExpositionFormat.TEXT_004,
+                new HashSet<String>(Arrays.asList("second")), false).body, "UTF-8");
+
+        assertTrue(all.contains("first 1.0"));
+        assertTrue(all.contains("second 1.0"));
+        assertFalse(filtered.contains("first"));
+        assertTrue(filtered.contains("second 2.0"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testNothingIsKeptWithoutMaxAge() throws Exception {
+        ResponseCache cache = new ResponseCache(registry, new FixedMaxAge(0));
+        Set<String> all = Collections.emptySet();
+
+        ResponseCache.Response first = cache.get(ExpositionFormat.TEXT_004, all, false);
+        ResponseCache.Response second = cache.get(ExpositionFormat.TEXT_004, all, false);
+        assertNotSame(first.body, second.body);
+        assertEquals(2, collector.collects.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testServerServesCachedResponses() throws Exception {
+        MetricsServer server = new MetricsHttpServer(new InetSocketAddress("localhost", 0),
+                new ResponseCache(registry, new FixedMaxAge(60000)), 1, true);
+        try {
+            URL url = new URL("http://localhost:" + server.getPort() + "/metrics?name[]=first");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(TextFormat.CONTENT_TYPE_004, connection.getHeaderField("Content-Type"));
+            assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+            String body = new String(readFully(new GZIPInputStream(connection.getInputStream())), "UTF-8");
+            assertTrue(body.contains("first 1.0"));
+            assertFalse(body.contains("second"));
+
+            connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/-/healthy").openConnection();
+            assertEquals(MetricsServer.HEALTHY_RESPONSE, new String(readFully(connection.getInputStream()), "UTF-8"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testServersAnswerInitialising() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            JmxCollector jmxCollector = new JmxCollector("---\nnioHttpServer: " + nio + "\n");
+            MetricsServer server = MetricsServer.start(new InetSocketAddress("localhost", 0), registry, jmxCollector,
+                    true, true);
+            try {
+                URL url = new URL("http://localhost:" + server.getPort() + "/metrics");
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                assertEquals(503, connection.getResponseCode());
+                assertEquals(MetricsServer.INITIALISING_RESPONSE,
+                        new String(readFully(connection.getErrorStream()), "UTF-8"));
+                assertEquals(0, collector.collects.get());
+
+                server.ready();
+                connection = (HttpURLConnection) url.openConnection();
+                assertEquals(200, connection.getResponseCode());
+                assertTrue(new String(readFully(connection.getInputStream()), "UTF-8").contains("first"));
+            } finally {
+                server.stop();
+            }
+            collector.collects.set(0);
+        }
+    }
+
+    @Test
+    public void testServerStartedBeforeConfigurationKeepsItsPort() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            MetricsServer server = MetricsServer.startInitialising(new InetSocketAddress("localhost", 0), registry,
+                    true);
+            try {
+                int port = server.getPort();
+                URL url = new URL("http://localhost:" + port + "/metrics");
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                assertEquals(503, connection.getResponseCode());
+
+                MetricsServer configured = server.configure(new JmxCollector("---\nnioHttpServer: " + nio + "\n"));
+                // Only a server with other settings than the defaults is started again.
+                assertEquals(nio, configured != server);
+                server = configured;
+                assertEquals(port, server.getPort());
+                connection = (HttpURLConnection) url.openConnection();
+                assertEquals(503, connection.getResponseCode());
+                assertEquals(0, collector.collects.get());
+
+                server.ready();
+                connection = (HttpURLConnection) url.openConnection();
+                assertEquals(200, connection.getResponseCode());
+                assertTrue(new String(readFully(connection.getInputStream()), "UTF-8").contains("first"));
+            } finally {
+                server.stop();
+            }
+            collector.collects.set(0);
+        }
+    }
+}
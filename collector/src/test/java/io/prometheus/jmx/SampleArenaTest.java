@@ -0,0 +1,155 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SampleArenaTest {
+    private static MatchedRule rule(String name, String label) {
+        return new MatchedRule(name, Type.GAUGE, "help", Collections.singletonList("l"),
+                Collections.singletonList(label), null, 1.0);
+    }
+
+    @Test
+    public void testUnchangedSamplesAreReused() {
+        SampleArena arena = new SampleArena();
+        MatchedRule a = rule("a", "x");
+        MatchedRule b1 = rule("b", "x");
+        MatchedRule b2 = rule("b", "y");
+
+        arena.startScrape();
+        arena.write(a, 1, Type.GAUGE, "help");
+        arena.write(b1, 2, Type.GAUGE, "help");
+        arena.write(b2, 3, Type.GAUGE, "help");
+        List<MetricFamilySamples> first = arena.flip();
+        assertEquals(2, first.size());
+        assertEquals(Arrays.asList(2.0, 3.0), values(first.get(1)));
+
+        arena.startScrape();
+        arena.write(a, 1, Type.GAUGE, "help");
+        arena.write(b1, 2, Type.GAUGE, "help");
+        arena.write(b2, 4, Type.GAUGE, "help");
+        List<MetricFamilySamples> second = arena.flip();
+        assertSame(first.get(0).samples.get(0), second.get(0).samples.get(0));
+        // Only the changed value gets a new sample.
+        assertSame(first.get(1).samples.get(0), second.get(1).samples.get(0));
+        assertEquals(Arrays.asList(2.0, 4.0), values(second.get(1)));
+        assertEquals(Arrays.asList(2.0, 3.0), values(first.get(1)));
+    }
+
+    @Test
+    public void testUnchangedFamiliesAreReused() {
+        SampleArena arena = new SampleArena();
+        MatchedRule a = rule("a", "x");
+        MatchedRule b = rule("b", "x");
+        arena.startScrape();
+        arena.write(a, 1, Type.GAUGE, "help");
+        arena.write(b, 1, Type.GAUGE, "help");
+        List<MetricFamilySamples> first = arena.flip();
+
+        arena.startScrape();
+        arena.write(a, 1, Type.GAUGE, "help");
+        arena.write(b, 1, Type.GAUGE, "help");
+        assertSame(first, arena.flip());
+
+        arena.startScrape();
+        arena.write(a, 1, Type.GAUGE, "help");
+        arena.write(b, 2, Type.GAUGE, "help");
+        List<MetricFamilySamples> third = arena.flip();
+        assertSame(first.get(0), third.get(0));
+        assertNotSame(first.get(1), third.get(1));
+        assertEquals(Arrays.asList(1.0), values(first.get(1)));
+        assertEquals(Arrays.asList(2.0), values(third.get(1)));
+
+        // Callers get copies from JmxCollector.collect() to modify.
+        try {
+            third.get(0).samples.clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testSeriesNotWrittenAreDropped() {
+        SampleArena arena = new SampleArena();
+        arena.startScrape();
+        for (int i = 0; i < 100; i++) {
+            arena.write(rule("a", "v" + i), i, Type.GAUGE, "help");
+        }
+        arena.write(rule("b", "x"), 1, Type.GAUGE, "help");
+        assertEquals(2, arena.flip().size());
+        assertEquals(101, arena.series());
+
+        arena.startScrape();
+        // Rules that aren't cached produce a new rule for the same series every scrape.
+        arena.write(rule("a", "v7"), 8, Type.GAUGE, "help");
+        List<MetricFamilySamples> mfs = arena.flip();
+        assertEquals(1, mfs.size());
+        assertEquals("a", mfs.get(0).name);
+        assertEquals(Arrays.asList(8.0), values(mfs.get(0)));
+        assertEquals(1, arena.series());
+
+        // Released slots are reused.
+        arena.startScrape();
+        arena.write(rule("c", "x"), 1, Type.COUNTER, "other help");
+        mfs = arena.flip();
+        assertEquals(1, mfs.size());
+        assertEquals(Type.COUNTER, mfs.get(0).type);
+        assertEquals("other help", mfs.get(0).help);
+    }
+
+    @Test
+    public void testCollectorWithArena() throws Exception {
+        JmxCollector jc = new JmxCollector(("---\nsampleArena: true\ncacheRules: true\nrules:\n"
+                + "- pattern: `java.lang<type=OperatingSystem><>AvailableProcessors`\n  name: processors\n"
+                + "- pattern: `java.lang<type=Runtime><>Uptime`\n  name: uptime\n").replace('`', '"'));
+        List<MetricFamilySamples> first = jc.collect();
+        Thread.sleep(5);
+        List<MetricFamilySamples> second = jc.collect();
+        assertSame(family(first, "processors").samples.get(0), family(second, "processors").samples.get(0));
+        assertTrue(family(second, "uptime").samples.get(0).value > family(first, "uptime").samples.get(0).value);
+        assertEquals(Runtime.getRuntime().availableProcessors(),
+                family(second, "processors").samples.get(0).value, .001);
+
+        // The registry removes the samples of other names from the families of the collector.
+        CollectorRegistry registry = new CollectorRegistry();
+        jc.register(registry);
+        for (int i = 0; i < 2; i++) {
+            List<MetricFamilySamples> filtered = Collections.list(
+                    registry.filteredMetricFamilySamples(Collections.singleton("jmx_scrape_duration_seconds")));
+            assertEquals(1, family(filtered, "jmx_scrape_duration_seconds").samples.size());
+            assertNull(family(filtered, "uptime"));
+        }
+        assertEquals(1, family(jc.collect(), "uptime").samples.size());
+    }
+
+    private static MetricFamilySamples family(List<MetricFamilySamples> mfs, String name) {
+        for (MetricFamilySamples family : mfs) {
+            if (family.name.equals(name)) {
+                return family;
+            }
+        }
+        return null;
+    }
+
+    private static List<Double> values(MetricFamilySamples mfs) {
+        Double[] values = new Double[mfs.samples.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = mfs.samples.get(i).value;
+        }
+        return Arrays.asList(values);
+    }
+}
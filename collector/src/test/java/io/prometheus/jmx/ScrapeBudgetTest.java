@@ -0,0 +1,68 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapeBudgetTest {
+    private static Slow bean;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        bean = new Slow();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(bean,
+                new ObjectName("io.prometheus.jmx.test:type=Budget"));
+    }
+
+    @Test
+    public void testBudget() {
+        ScrapeBudget budget = new ScrapeBudget(2, 60);
+        assertFalse(budget.isExhausted());
+        budget.add(1500000);
+        assertFalse(budget.isExhausted());
+        budget.add(500000);
+        assertTrue(budget.isExhausted());
+    }
+
+    @Test
+    public void testExhaustedBudgetServesPreviousScrape() throws Exception {
+        JmxCollector jc = new JmxCollector("---\nscrapeCpuBudgetMillis: 1\nscrapeCpuBudgetIntervalSeconds: 3600\n");
+        double exceeded = ScrapeBudget.exceeded.get();
+        List<MetricFamilySamples> previous = jc.collect();
+        // Scrapes go on until they used a millisecond of CPU time.
+        for (int i = 0; i < 10000 && ScrapeBudget.exceeded.get() == exceeded; i++) {
+            List<MetricFamilySamples> mfs = jc.collect();
+            if (ScrapeBudget.exceeded.get() > exceeded) {
+                assertEquals(previous, mfs);
+            } else {
+                assertNotSame(previous, mfs);
+            }
+            previous = mfs;
+        }
+        assertEquals(exceeded + 1, ScrapeBudget.exceeded.get(), .001);
+        assertEquals(previous, jc.collect());
+    }
+
+    @Test
+    public void testScrapeThread() throws Exception {
+        double cpu = CollectorRegistry.defaultRegistry.getSampleValue("jmx_scrape_cpu_seconds_total");
+        JmxCollector jc = new JmxCollector(("---\nrules:\n"
+                + "- pattern: `io.prometheus.jmx.test<type=Budget><>Value`\n  name: budget_value\n").replace('`', '"'))
+                .useScrapeThread();
+        assertEquals(1, jc.collect().size() - 2);
+        assertTrue(bean.lastReader.getName().startsWith("jmx-exporter-scrape-"));
+        assertTrue(bean.lastReader.isDaemon());
+        assertEquals(Thread.MIN_PRIORITY, bean.lastReader.getPriority());
+        assertTrue(CollectorRegistry.defaultRegistry.getSampleValue("jmx_scrape_cpu_seconds_total") >= cpu);
+    }
+}
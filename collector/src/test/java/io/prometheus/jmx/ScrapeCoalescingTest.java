@@ -0,0 +1,93 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class ScrapeCoalescingTest {
+    private static final String CONFIG = "---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Slow\"]\n";
+
+    private static Slow slow;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        slow = Slow.registerBean(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    @Test
+    public void testConcurrentCollectsShareOneScrape() throws Exception {
+        final JmxCollector jc = new JmxCollector(CONFIG);
+        slow.release = new CountDownLatch(1);
+        int readsBefore = slow.reads.get();
+        double coalescedBefore = JmxCollector.scrapesCoalesced.get();
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Callable<List<Collector.MetricFamilySamples>> collect = new Callable<List<Collector.MetricFamilySamples>>() {
+                public List<Collector.MetricFamilySamples> call() {
+                    return jc.collect();
+                }
+            };
+            Future<List<Collector.MetricFamilySamples>> first = executor.submit(collect);
+            // Wait for the first scrape to be in flight before starting the others.
+            while (slow.reads.get() == readsBefore) {
+                Thread.sleep(5);
+            }
+            Future<List<Collector.MetricFamilySamples>> second = executor.submit(collect);
+            Future<List<Collector.MetricFamilySamples>> third = executor.submit(collect);
+            while (JmxCollector.scrapesCoalesced.get() < coalescedBefore + 2) {
+                Thread.sleep(5);
+            }
+            slow.release.countDown();
+
+            assertEquals(first.get(), second.get());
+            assertEquals(first.get(), third.get());
+            // Each caller gets its own lists.
+            assertNotSame(first.get(), second.get());
+            assertNotSame(first.get().get(0).samples, second.get().get(0).samples);
+            assertEquals(readsBefore + 1, slow.reads.get());
+        } finally {
+            slow.release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSequentialCollectsScrapeByDefault() throws Exception {
+        JmxCollector jc = new JmxCollector(CONFIG);
+        slow.release = new CountDownLatch(0);
+        int readsBefore = slow.reads.get();
+        double coalescedBefore = JmxCollector.scrapesCoalesced.get();
+        jc.collect();
+        jc.collect();
+        assertEquals(readsBefore + 2, slow.reads.get());
+        assertEquals(coalescedBefore, JmxCollector.scrapesCoalesced.get(), .001);
+    }
+
+    @Test
+    public void testRecentResultIsReusedWithinWindow() throws Exception {
+        JmxCollector jc = new JmxCollector(CONFIG + "coalesceScrapesWithinMillis: 60000\n");
+        double coalescedBefore = JmxCollector.scrapesCoalesced.get();
+        List<Collector.MetricFamilySamples> first = jc.collect();
+        List<Collector.MetricFamilySamples> second = jc.collect();
+        assertEquals(first, second);
+        assertEquals(coalescedBefore + 1, JmxCollector.scrapesCoalesced.get(), .001);
+
+        // Callers filtering their result don't change the result of others.
+        for (Collector.MetricFamilySamples family : first) {
+            family.samples.clear();
+        }
+        assertEquals(second, jc.collect());
+    }
+}
@@ -0,0 +1,63 @@
+package io.prometheus.jmx;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+public class ScrapeEventsTest {
+
+    @Test
+    public void testDisabledEventsDoNothing() throws Exception {
+        Object event = ScrapeEvents.NONE.beginBean();
+        assertNull(event);
+        ScrapeEvents.NONE.endBean(event, new ObjectName("io.prometheus.jmx.test:type=Recorded"), 1);
+    }
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+        assumeTrue(ScrapeEvents.flightRecorder() != ScrapeEvents.NONE);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Slow(),
+                new ObjectName("io.prometheus.jmx.test:type=Recorded"));
+        JmxCollector jc = new JmxCollector("---\nwhitelistObjectNames: [\"io.prometheus.jmx.test:type=Recorded\"]\n"
+                + "flightRecorderEvents: true\ncacheRules: true\n");
+
+        Recording recording = new Recording();
+        recording.enable("prometheus.jmx.Scrape");
+        recording.enable("prometheus.jmx.Discovery");
+        recording.enable("prometheus.jmx.BeanFetch").withThreshold(java.time.Duration.ZERO);
+        recording.start();
+        jc.collect();
+        recording.stop();
+        File file = File.createTempFile("scrape", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            Map<String, RecordedEvent> events = new HashMap<String, RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                events.put(event.getEventType().getName(), event);
+            }
+            assertFalse(events.get("prometheus.jmx.Scrape").getBoolean("restricted"));
+            assertFalse(events.get("prometheus.jmx.Scrape").getBoolean("error"));
+            assertEquals(1, events.get("prometheus.jmx.Discovery").getInt("beans"));
+            assertEquals("io.prometheus.jmx.test:type=Recorded",
+                    events.get("prometheus.jmx.BeanFetch").getString("objectName"));
+            assertEquals(1, events.get("prometheus.jmx.BeanFetch").getInt("attributes"));
+            // A single miss is no burst.
+            assertFalse(events.containsKey("prometheus.jmx.RuleCacheMisses"));
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapePhasesTest {
+    private static final String[] SCRAPE_PHASES = {"discovery", "mbean_info", "attribute_read", "rule_matching"};
+
+    private static double value(String name, String phase) {
+        Double value = CollectorRegistry.defaultRegistry.getSampleValue(name, new String[]{"phase"},
+                new String[]{phase});
+        return value == null ? 0 : value;
+    }
+
+    private static Map<String, Double> values(String name) {
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (String phase : SCRAPE_PHASES) {
+            values.put(phase, value(name, phase));
+        }
+        return values;
+    }
+
+    @Test
+    public void testPhasesOfScrapes() throws Exception {
+        Map<String, Double> seconds = values("jmx_scrape_phase_seconds_total");
+        Map<String, Double> allocated = values("jmx_scrape_phase_allocated_bytes_total");
+        new JmxCollector("---\nscrapePhaseMetrics: true\n").collect();
+        for (String phase : SCRAPE_PHASES) {
+            assertTrue(phase, value("jmx_scrape_phase_seconds_total", phase) > seconds.get(phase));
+        }
+        if (ScrapePhases.threadAllocatedBytes() >= 0) {
+            assertTrue(value("jmx_scrape_phase_allocated_bytes_total", "rule_matching") > allocated.get("rule_matching"));
+        }
+
+        // Scrapes are not measured by default.
+        seconds = values("jmx_scrape_phase_seconds_total");
+        new JmxCollector("---\n").collect();
+        assertEquals(seconds, values("jmx_scrape_phase_seconds_total"));
+    }
+
+    @Test
+    public void testSerialisationIsMeasured() throws Exception {
+        double seconds = value("jmx_scrape_phase_seconds_total", "serialisation");
+        CollectorRegistry registry = new CollectorRegistry();
+        new JmxCollector("---\n").register(registry);
+        new ResponseCache(registry, new ResponseCache.MaxAge() {
+            public long maxAgeMillis() {
+                return 0;
+            }
+        }).get(ExpositionFormat.TEXT_004, Collections.<String>emptySet(), true);
+        assertTrue(value("jmx_scrape_phase_seconds_total", "serialisation") > seconds);
+    }
+
+    @Test
+    public void testPhaseChanges() throws Exception {
+        double discovery = value("jmx_scrape_phase_seconds_total", "discovery");
+        double reads = value("jmx_scrape_phase_seconds_total", "attribute_read");
+        ScrapePhases phases = new ScrapePhases();
+        phases.enter(ScrapePhases.Phase.DISCOVERY);
+        Thread.sleep(1);
+        phases.enter(ScrapePhases.Phase.DISCOVERY);
+        phases.end();
+        assertTrue(value("jmx_scrape_phase_seconds_total", "discovery") > discovery);
+        assertEquals(reads, value("jmx_scrape_phase_seconds_total", "attribute_read"), 0);
+    }
+}
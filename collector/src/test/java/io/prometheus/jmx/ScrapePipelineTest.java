@@ -0,0 +1,135 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScrapePipelineTest {
+
+    private static final MBeanAttributeInfo ATTRIBUTE =
+            new MBeanAttributeInfo("Value", "int", "", true, false, false);
+
+    @Test
+    public void testConsumesEveryAttributeOnCallingThread() throws Exception {
+        List<ObjectName> beans = beans(20);
+        final AtomicInteger buffered = new AtomicInteger();
+        final AtomicInteger maxBuffered = new AtomicInteger();
+        final Thread caller = Thread.currentThread();
+        final List<String> consumed = new ArrayList<String>();
+
+        new ScrapePipeline(3, 2, null).run(beans, new ScrapePipeline.Fetcher() {
+            public void fetch(ObjectName bean, ScrapePipeline.Sink sink) {
+                for (int i = 0; i < 5; i++) {
+                    int now = buffered.incrementAndGet();
+                    if (now > maxBuffered.get()) {
+                        maxBuffered.set(now);
+                    }
+                    sink.accept(bean, ATTRIBUTE, i);
+                }
+            }
+        }, new ScrapePipeline.Sink() {
+            public void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+                assertEquals(caller, Thread.currentThread());
+                buffered.decrementAndGet();
+                consumed.add(bean.getKeyProperty("name") + "/" + value);
+            }
+        });
+
+        assertEquals(100, consumed.size());
+        assertEquals(100, new HashSet<String>(consumed).size());
+        // The queue, one attribute waiting in each worker, and the one being consumed.
+        assertTrue(maxBuffered.get() <= 2 + 3 + 1);
+    }
+
+    @Test
+    public void testWorkerFailureIsThrown() throws Exception {
+        try {
+            new ScrapePipeline(2, 4, null).run(beans(3), new ScrapePipeline.Fetcher() {
+                public void fetch(ObjectName bean, ScrapePipeline.Sink sink) {
+                    throw new IllegalStateException("broken");
+                }
+            }, new ScrapePipeline.Sink() {
+                public void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testConsumerFailureStopsWorkers() throws Exception {
+        final AtomicInteger fetched = new AtomicInteger();
+        try {
+            new ScrapePipeline(1, 1, null).run(beans(100), new ScrapePipeline.Fetcher() {
+                public void fetch(ObjectName bean, ScrapePipeline.Sink sink) {
+                    fetched.incrementAndGet();
+                    sink.accept(bean, ATTRIBUTE, 1);
+                }
+            }, new ScrapePipeline.Sink() {
+                public void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+                    throw new IllegalStateException("broken");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        Thread.sleep(500);
+        assertTrue(fetched.get() < 100);
+    }
+
+    @Test
+    public void testNoBeans() throws Exception {
+        new ScrapePipeline(2, 4, null).run(Collections.<ObjectName>emptyList(), new ScrapePipeline.Fetcher() {
+            public void fetch(ObjectName bean, ScrapePipeline.Sink sink) {
+                fail();
+            }
+        }, new ScrapePipeline.Sink() {
+            public void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+                fail();
+            }
+        });
+    }
+
+    @Test
+    public void testWorkersAreChargedToTheBudget() throws Exception {
+        ScrapeBudget budget = new ScrapeBudget(20, 60);
+        double cpuSeconds = ScrapeBudget.cpuSeconds.get();
+        new ScrapePipeline(2, 4, budget).run(beans(2), new ScrapePipeline.Fetcher() {
+            public void fetch(ObjectName bean, ScrapePipeline.Sink sink) {
+                // Use CPU on the worker, rather than wait.
+                long start = ScrapeBudget.threadCpuNanos();
+                while (ScrapeBudget.threadCpuNanos() - start < 20000000L) {
+                    sink.hashCode();
+                }
+            }
+        }, new ScrapePipeline.Sink() {
+            public void accept(ObjectName bean, MBeanAttributeInfo attribute, Object value) {
+            }
+        });
+        // The calling thread only waited for the workers.
+        assertTrue(budget.isExhausted());
+        assertTrue(ScrapeBudget.cpuSeconds.get() - cpuSeconds >= 0.04);
+    }
+
+    private static List<ObjectName> beans(int count) throws Exception {
+        ObjectName[] beans = new ObjectName[count];
+        for (int i = 0; i < count; i++) {
+            beans[i] = new ObjectName("io.prometheus.jmx.test:type=Pipelined,name=" + i);
+        }
+        return Arrays.asList(beans);
+    }
+}
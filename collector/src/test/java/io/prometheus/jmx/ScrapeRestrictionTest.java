@@ -0,0 +1,154 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapeRestrictionTest {
+    private static final String CONFIG = "---\nrules:\n"
+            + "- pattern: `io.prometheus.jmx.test<type=Restricted><>Value`\n  name: restricted_value\n"
+            + "- pattern: `^io\\\\.prometheus\\\\.jmx\\\\.test<type=Other><>Value:`\n  name: other_value\n";
+
+    private static Slow restricted;
+    private static Slow other;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        restricted = new Slow();
+        mbs.registerMBean(restricted, new ObjectName("io.prometheus.jmx.test:type=Restricted"));
+        other = new Slow();
+        mbs.registerMBean(other, new ObjectName("io.prometheus.jmx.test:type=Other"));
+    }
+
+    @After
+    public void tearDown() {
+        JmxCollector.setRequestedNames(null);
+    }
+
+    @Test
+    public void testTargetOfPattern() throws Exception {
+        ScrapeRestriction.Target target = ScrapeRestriction.ofPattern(
+                "kafka.server<type=(.+), name=(.+)PerSec\\w*><>Count", false);
+        assertEquals(new ObjectName("*kafka?server:*"), target.objectName);
+        assertEquals("Count", target.attributePrefix);
+
+        target = ScrapeRestriction.ofPattern("^java\\.lang<type=Memory><HeapMemoryUsage>used", false);
+        assertEquals(new ObjectName("java.lang:type=Memory,*"), target.objectName);
+        assertEquals("HeapMemoryUsage", target.attributePrefix);
+        assertTrue(target.includes(new ObjectName("java.lang:type=Memory"), "HeapMemoryUsage"));
+        assertFalse(target.includes(new ObjectName("java.lang:type=Memory"), "NonHeapMemoryUsage"));
+        assertFalse(target.includes(new ObjectName("java.lang:type=Threading"), "HeapMemoryUsage"));
+
+        // Snake case attribute names differ from the bean's.
+        target = ScrapeRestriction.ofPattern("Catalina<type=GlobalRequestProcessor><>request_count", true);
+        assertEquals(new ObjectName("*Catalina:type=GlobalRequestProcessor,*"), target.objectName);
+        assertNull(target.attributePrefix);
+
+        // An optional last character is not required.
+        assertEquals("Coun", ScrapeRestriction.ofPattern("a<b=c><>Count?", false).attributePrefix);
+        // Properties that aren't literal or may continue are not required.
+        assertEquals(new ObjectName("*a:*"), ScrapeRestriction.ofPattern("a<b=c.*><>Count", false).objectName);
+        assertEquals(new ObjectName("*a:*"), ScrapeRestriction.ofPattern("a<b=c>?", false).objectName);
+    }
+
+    @Test
+    public void testPatternsWithoutLiteralsAreUnrestricted() {
+        assertSame(ScrapeRestriction.Target.ALL, ScrapeRestriction.ofPattern(null, false));
+        assertSame(ScrapeRestriction.Target.ALL, ScrapeRestriction.ofPattern(".*", false));
+        assertSame(ScrapeRestriction.Target.ALL, ScrapeRestriction.ofPattern("kafka<type=A><>Count|jvm<>", false));
+        assertSame(ScrapeRestriction.Target.ALL, ScrapeRestriction.ofPattern("(?i)kafka<type=A><>Count", false));
+        assertSame(ScrapeRestriction.Target.ALL, ScrapeRestriction.ofPattern("kafka?<type=A>[><]", false));
+    }
+
+    @Test
+    public void testDescribeLeavesOutRuleNames() throws Exception {
+        JmxCollector jc = new JmxCollector(CONFIG.replace('`', '"'));
+        Set<String> names = new HashSet<String>();
+        for (MetricFamilySamples mfs : jc.describe()) {
+            names.add(mfs.name);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("jmx_scrape_duration_seconds", "jmx_scrape_error",
+                "jmx_scrape_cached_beans")), names);
+
+        // A rule may be named like the metric of another collector.
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("restricted_value").help("help").register(registry);
+        jc.register(registry);
+    }
+
+    @Test
+    public void testRequestedNamesRestrictScrape() throws Exception {
+        JmxCollector jc = new JmxCollector(CONFIG.replace('`', '"'));
+        int reads = restricted.reads.get();
+        int otherReads = other.reads.get();
+
+        JmxCollector.setRequestedNames(Collections.singleton("other_value"));
+        assertEquals(42.0, value(jc.collect(), "other_value"), .001);
+        assertEquals(reads, restricted.reads.get());
+        assertEquals(otherReads + 1, other.reads.get());
+
+        JmxCollector.setRequestedNames(Collections.singleton("restricted_value"));
+        List<MetricFamilySamples> mfs = jc.collect();
+        assertEquals(42.0, value(mfs, "restricted_value"), .001);
+        assertNull(value(mfs, "other_value"));
+        assertEquals(reads + 1, restricted.reads.get());
+        assertEquals(otherReads + 1, other.reads.get());
+
+        // The scrape metrics alone don't need any bean.
+        JmxCollector.setRequestedNames(Collections.singleton("jmx_scrape_error"));
+        mfs = jc.collect();
+        assertEquals(0.0, value(mfs, "jmx_scrape_error"), .001);
+        assertEquals(2, mfs.size());
+        assertEquals(reads + 1, restricted.reads.get());
+
+        JmxCollector.setRequestedNames(null);
+        mfs = jc.collect();
+        assertEquals(42.0, value(mfs, "restricted_value"), .001);
+        assertEquals(42.0, value(mfs, "other_value"), .001);
+    }
+
+    @Test
+    public void testNamePrefixesOfReferences() throws Exception {
+        JmxCollector jc = new JmxCollector(("---\nlowercaseOutputName: true\nrules:\n"
+                + "- pattern: `io.prometheus.jmx.test<type=(Restricted)><>Value`\n  name: Test.$1_value\n").replace('`', '"'));
+        int reads = restricted.reads.get();
+        JmxCollector.setRequestedNames(Collections.singleton("other"));
+        assertNull(value(jc.collect(), "test_restricted_value"));
+        assertEquals(reads, restricted.reads.get());
+
+        JmxCollector.setRequestedNames(Collections.singleton("test_restricted_value"));
+        assertEquals(42.0, value(jc.collect(), "test_restricted_value"), .001);
+    }
+
+    private static Double value(List<MetricFamilySamples> mfs, String name) {
+        List<Double> values = new ArrayList<Double>();
+        for (MetricFamilySamples family : mfs) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.name.equals(name)) {
+                    values.add(sample.value);
+                }
+            }
+        }
+        return values.isEmpty() ? null : values.get(0);
+    }
+}
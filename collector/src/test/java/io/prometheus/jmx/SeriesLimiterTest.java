@@ -0,0 +1,57 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+
+public class SeriesLimiterTest {
+    private static final String CONFIG = "---\nrules:\n"
+            + "- pattern: `io.prometheus.jmx.test<type=Limited, name=(\\\\w+)><>Value`\n  name: limited_value\n"
+            + "  labels: {name: `$1`}\n  maxSeries: 1\n";
+
+    private static MBeanServer mbs;
+    private static Slow first;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        first = new Slow();
+        mbs.registerMBean(first, new ObjectName("io.prometheus.jmx.test:type=Limited,name=first"));
+    }
+
+    @Test
+    public void testNewBeansOfFullRulesAreNotRead() throws Exception {
+        JmxCollector jc = new JmxCollector(CONFIG.replace('`', '"'));
+        assertEquals(1, count(jc, "limited_value"));
+
+        Slow second = new Slow();
+        mbs.registerMBean(second, new ObjectName("io.prometheus.jmx.test:type=Limited,name=second"));
+        int reads = first.reads.get();
+        assertEquals(1, count(jc, "limited_value"));
+        assertEquals(reads + 1, first.reads.get());
+        assertEquals(0, second.reads.get());
+
+        // Without a limit, the new bean is read.
+        JmxCollector unlimited = new JmxCollector(CONFIG.replace("  maxSeries: 1\n", "").replace('`', '"'));
+        assertEquals(2, count(unlimited, "limited_value"));
+        assertEquals(1, second.reads.get());
+    }
+
+    private static int count(JmxCollector jc, String name) {
+        int count = 0;
+        for (MetricFamilySamples mfs : jc.collect()) {
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                if (sample.name.equals(name)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,38 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface SlowMBean {
+    public int getValue();
+}
+
+/**
+ * A bean whose attribute blocks until released, to hold a scrape in flight.
+ */
+class Slow implements SlowMBean {
+    final AtomicInteger reads = new AtomicInteger();
+    volatile Thread lastReader;
+    volatile CountDownLatch release = new CountDownLatch(0);
+
+    public static Slow registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("io.prometheus.jmx.test:type=Slow");
+        Slow mbean = new Slow();
+        mbs.registerMBean(mbean, mbeanName);
+        return mbean;
+    }
+
+    public int getValue() {
+        reads.incrementAndGet();
+        lastReader = Thread.currentThread();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 42;
+    }
+}
@@ -0,0 +1,103 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotFileTest {
+
+    private File path;
+
+    @Before
+    public void setUp() throws Exception {
+        path = File.createTempFile("snapshot", ".jmxs");
+        path.delete();
+    }
+
+    @After
+    public void tearDown() {
+        path.delete();
+    }
+
+    @Test
+    public void testReaderSeesLatestSnapshot() throws Exception {
+        SnapshotFile writer = SnapshotFile.create(path, 1024);
+        SnapshotFile reader = SnapshotFile.open(path);
+        assertNull(reader.read());
+
+        assertTrue(writer.write("first".getBytes("UTF-8"), 1000));
+        SnapshotFile.Snapshot snapshot = reader.read();
+        assertArrayEquals("first".getBytes("UTF-8"), snapshot.body);
+        assertEquals(1000, snapshot.timestampMillis);
+
+        assertTrue(writer.write("second, longer".getBytes("UTF-8"), 2000));
+        assertTrue(writer.write("third".getBytes("UTF-8"), 3000));
+        snapshot = reader.read();
+        assertArrayEquals("third".getBytes("UTF-8"), snapshot.body);
+        assertEquals(3000, snapshot.timestampMillis);
+
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void testTooLargeSnapshotIsNotWritten() throws Exception {
+        SnapshotFile writer = SnapshotFile.create(path, 4);
+        assertTrue(writer.write("four".getBytes("UTF-8"), 1000));
+        assertFalse(writer.write("five!".getBytes("UTF-8"), 2000));
+        assertArrayEquals("four".getBytes("UTF-8"), writer.read().body);
+        writer.close();
+    }
+
+    @Test
+    public void testRestartedWriterContinuesOrReplacesFile() throws Exception {
+        SnapshotFile writer = SnapshotFile.create(path, 1024);
+        writer.write("before".getBytes("UTF-8"), 1000);
+        writer.close();
+
+        // Same capacity: readers keep their mapping, and see the last snapshot until the next one.
+        SnapshotFile reader = SnapshotFile.open(path);
+        writer = SnapshotFile.create(path, 1024);
+        assertArrayEquals("before".getBytes("UTF-8"), reader.read().body);
+        writer.write("after".getBytes("UTF-8"), 2000);
+        assertArrayEquals("after".getBytes("UTF-8"), reader.read().body);
+        writer.close();
+
+        // Another capacity: the file is replaced, which readers notice by its length.
+        writer = SnapshotFile.create(path, 2048);
+        assertTrue(path.length() != reader.length());
+        reader.close();
+        reader = SnapshotFile.open(path);
+        assertNull(reader.read());
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void testWriterWritesRegistry() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("snapshot_test").help("help").register(registry).set(42);
+        Map<String, Object> yaml = Collections.<String, Object>singletonMap("file", path.getPath());
+        SnapshotWriter writer = new SnapshotWriter(registry, SnapshotWriter.Config.fromYaml(yaml));
+        writer.write();
+        writer.stop();
+
+        SnapshotFile reader = SnapshotFile.open(path);
+        String body = new String(reader.read().body, "UTF-8");
+        assertTrue(body, body.contains("snapshot_test 42.0\n"));
+        assertTrue(body, body.contains("jmx_snapshot_write_failures_total 0.0\n"));
+        reader.close();
+    }
+}
@@ -0,0 +1,150 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Serves the snapshots written by agents on the same host, so the JVMs don't have to listen on a port themselves.
+ * The snapshot file {@code <name>} in the directory is served on {@code /metrics/<name>}, and {@code /} lists them.
+ * A request is a copy from the page cache: it doesn't reach the JVM that wrote the snapshot. Snapshots that are
+ * missing or older than {@code maxAgeSeconds} are answered with a 503, as their JVM is likely not running, and so
+ * are files that can't be read as snapshots.
+ */
+public class SnapshotServer {
+    private static final String METRICS_PATH = "/metrics/";
+
+    private final File directory;
+    private final long maxAgeMillis;
+    private final ConcurrentMap<String, SnapshotFile> files = new ConcurrentHashMap<String, SnapshotFile>();
+
+    SnapshotServer(File directory, long maxAgeMillis) {
+        this.directory = directory;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SnapshotServer <[hostname:]port> <snapshot directory> [maxAgeSeconds]");
+            System.exit(1);
+        }
+
+        InetSocketAddress socket;
+        int colonIndex = args[0].lastIndexOf(':');
+
+        if (colonIndex < 0) {
+            int port = Integer.parseInt(args[0]);
+            socket = new InetSocketAddress(port);
+        } else {
+            int port = Integer.parseInt(args[0].substring(colonIndex + 1));
+            String host = args[0].substring(0, colonIndex);
+            socket = new InetSocketAddress(host, port);
+        }
+        long maxAgeSeconds = args.length > 2 ? Long.parseLong(args[2]) : 60;
+
+        new SnapshotServer(new File(args[1]), maxAgeSeconds * 1000).start(socket, false);
+    }
+
+    HttpServer start(InetSocketAddress socket, boolean daemon) throws IOException {
+        HttpServer server = HttpServer.create(socket, 3);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                SnapshotServer.this.handle(exchange);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(5,
+                MetricsServer.threadFactory("jmx-exporter-snapshot-http-", daemon)));
+        server.start();
+        return server;
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/")) {
+                String[] names = directory.list();
+                StringBuilder index = new StringBuilder();
+                if (names != null) {
+                    Arrays.sort(names);
+                    for (String name : names) {
+                        index.append(METRICS_PATH).append(name).append('\n');
+                    }
+                }
+                respond(exchange, 200, "text/plain; charset=utf-8", index.toString().getBytes("UTF-8"));
+                return;
+            }
+            String name = path.startsWith(METRICS_PATH) ? path.substring(METRICS_PATH.length()) : "";
+            if (name.isEmpty() || name.contains("/") || name.contains("..")) {
+                respond(exchange, 404, "text/plain; charset=utf-8", "Not found.".getBytes("UTF-8"));
+                return;
+            }
+            SnapshotFile.Snapshot snapshot;
+            try {
+                snapshot = read(name);
+            } catch (FileNotFoundException e) {
+                snapshot = null;
+            } catch (IOException e) {
+                respond(exchange, 503, "text/plain; charset=utf-8", ("Can't read snapshot: " + e.getMessage())
+                        .getBytes("UTF-8"));
+                return;
+            }
+            if (snapshot == null || System.currentTimeMillis() - snapshot.timestampMillis > maxAgeMillis) {
+                respond(exchange, 503, "text/plain; charset=utf-8", "No recent snapshot.".getBytes("UTF-8"));
+                return;
+            }
+            respond(exchange, 200, TextFormat.CONTENT_TYPE_004, snapshot.body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read the latest snapshot of a file, opening it again if the writer replaced it.
+     *
+     * @throws FileNotFoundException if there is no such file, as its JVM didn't write one yet.
+     */
+    private SnapshotFile.Snapshot read(String name) throws IOException {
+        File path = new File(directory, name);
+        if (!path.isFile()) {
+            SnapshotFile gone = files.remove(name);
+            if (gone != null) {
+                gone.close();
+            }
+            throw new FileNotFoundException(path.toString());
+        }
+        SnapshotFile file = files.get(name);
+        if (file == null || file.length() != path.length()) {
+            SnapshotFile opened = SnapshotFile.open(path);
+            SnapshotFile previous = file == null ? files.putIfAbsent(name, opened) : files.put(name, opened);
+            if (file == null && previous != null) {
+                // Another request opened it first.
+                opened.close();
+                opened = previous;
+            } else if (previous != null) {
+                previous.close();
+            }
+            file = opened;
+        }
+        return file.read();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.flush();
+    }
+}
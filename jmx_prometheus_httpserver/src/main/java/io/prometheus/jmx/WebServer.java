@@ -4,7 +4,6 @@ import java.io.File;
 import java.net.InetSocketAddress;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 
 public class WebServer {
 
@@ -27,7 +26,8 @@ public class WebServer {
      }
 
      new BuildInfoCollector().register();
-     new JmxCollector(new File(args[1])).register();
-     new HTTPServer(socket, CollectorRegistry.defaultRegistry);
+     JmxCollector collector = new JmxCollector(new File(args[1])).register();
+     MetricsServer.start(socket, CollectorRegistry.defaultRegistry, collector, false);
+     RemoteWriter.startIfConfigured(CollectorRegistry.defaultRegistry, collector);
    }
 }
@@ -0,0 +1,111 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotServerTest {
+    private static final String BODY = "# TYPE up gauge\nup 1.0\n";
+
+    private File directory;
+    private SnapshotFile writer;
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("snapshots", "");
+        directory.delete();
+        directory.mkdir();
+        writer = SnapshotFile.create(new File(directory, "app"), 1024);
+        server = new SnapshotServer(directory, 60000).start(new InetSocketAddress("localhost", 0), true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        writer.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testServesSnapshot() throws Exception {
+        writer.write(BODY.getBytes("UTF-8"), System.currentTimeMillis());
+        HttpURLConnection connection = get("/metrics/app");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(TextFormat.CONTENT_TYPE_004, connection.getContentType());
+        assertEquals(BODY, body(connection));
+
+        connection = get("/");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("/metrics/app\n", body(connection));
+    }
+
+    @Test
+    public void testMissingOrStaleSnapshotIsUnavailable() throws Exception {
+        // The file exists, but nothing was written yet.
+        assertEquals(503, get("/metrics/app").getResponseCode());
+        assertEquals(503, get("/metrics/other").getResponseCode());
+
+        writer.write(BODY.getBytes("UTF-8"), System.currentTimeMillis() - 61000);
+        assertEquals(503, get("/metrics/app").getResponseCode());
+    }
+
+    @Test
+    public void testUnreadableSnapshotIsUnavailable() throws Exception {
+        FileWriter other = new FileWriter(new File(directory, "other"));
+        other.write("not a snapshot");
+        other.close();
+        HttpURLConnection connection = get("/metrics/other");
+        assertEquals(503, connection.getResponseCode());
+        assertTrue(error(connection).startsWith("Can't read snapshot"));
+    }
+
+    @Test
+    public void testOtherPathsAreNotFound() throws Exception {
+        writer.write(BODY.getBytes("UTF-8"), System.currentTimeMillis());
+        assertEquals(404, get("/other").getResponseCode());
+        assertEquals(404, get("/metrics/").getResponseCode());
+        assertEquals(404, get("/metrics/app/more").getResponseCode());
+        assertEquals(404, get("/metrics/..app").getResponseCode());
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        return read(connection.getInputStream());
+    }
+
+    private static String error(HttpURLConnection connection) throws IOException {
+        return read(connection.getErrorStream());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            body.write(buffer, 0, read);
+        }
+        in.close();
+        return body.toString("UTF-8");
+    }
+}
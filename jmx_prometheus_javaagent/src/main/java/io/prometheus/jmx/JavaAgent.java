@@ -7,38 +7,103 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.hotspot.DefaultExports;
 
 public class JavaAgent {
 
-    static HTTPServer server;
+    static volatile MetricsServer server;
+    private static volatile long premainNanos;
+
+    private static final String USAGE =
+        "Usage: -javaagent:/path/to/JavaAgent.jar=[[host:]<port>:]<yaml configuration file> ";
 
     public static void agentmain(String agentArgument, Instrumentation instrumentation) throws Exception {
         premain(agentArgument, instrumentation);
     }
 
+    /**
+     * Start the agent on a background thread, so the application's startup isn't held up by it. Metrics requests
+     * are answered with a 503 until the first scrape is done, and a bad configuration only disables the agent.
+     */
     public static void premain(String agentArgument, Instrumentation instrumentation) throws Exception {
+        final long start = System.nanoTime();
         // Bind to all interfaces by default (this includes IPv6).
         String host = "0.0.0.0";
 
+        final Config config;
         try {
-            Config config = parseConfig(agentArgument, host);
+            config = parseConfig(agentArgument, host);
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                initialise(config, start);
+            }
+        }, "jmx-exporter-init");
+        thread.setDaemon(true);
+        // Taken before starting the thread, so it is set before the thread reads it.
+        premainNanos = System.nanoTime() - start;
+        thread.start();
+    }
+
+    static void initialise(Config config, long start) {
+        try {
+            // Bind the port before loading the configuration, so requests get a 503 instead of being refused.
+            if (config.socket != null) {
+                server = MetricsServer.startInitialising(config.socket, CollectorRegistry.defaultRegistry, true);
+            }
+            JmxCollector collector = new JmxCollector(new File(config.file)).useScrapeThread();
+            if (config.socket == null && collector.snapshotConfig() == null) {
+                throw new IllegalArgumentException("No port given, and no snapshot configured");
+            }
+            if (server != null) {
+                server = server.configure(collector);
+            }
 
             new BuildInfoCollector().register();
-            new JmxCollector(new File(config.file)).register();
             DefaultExports.initialize();
-            server = new HTTPServer(config.socket, CollectorRegistry.defaultRegistry, true);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("Usage: -javaagent:/path/to/JavaAgent.jar=[host:]<port>:<yaml configuration file> " + e.getMessage());
-            System.exit(1);
+            // Warm up the rule and MBean info caches before the first request, unless scrapes are still refused.
+            if (!collector.waitingForStartDelay()) {
+                collector.collect();
+            }
+            collector.register();
+            RemoteWriter.startIfConfigured(CollectorRegistry.defaultRegistry, collector);
+            SnapshotWriter.startIfConfigured(CollectorRegistry.defaultRegistry, collector);
+            if (collector.bulkExportMBean()) {
+                BulkExport.register();
+            }
+
+            Gauge.build().name("jmx_agent_premain_seconds")
+                .help("Time the agent's premain held up the start of the application, in seconds.")
+                .register().set(premainNanos / 1.0E9);
+            Gauge.build().name("jmx_agent_initialisation_seconds")
+                .help("Time from the start of the agent until it served metrics, in seconds.")
+                .register().set((System.nanoTime() - start) / 1.0E9);
+            if (server != null) {
+                server.ready();
+            }
+        } catch (Exception e) {
+            if (e instanceof IllegalArgumentException) {
+                System.err.println(USAGE + e.getMessage());
+            } else {
+                System.err.println("JMX exporter agent failed to start: " + e);
+            }
+            MetricsServer started = server;
+            if (started != null) {
+                started.stop();
+                server = null;
+            }
         }
     }
 
     /**
      * Parse the Java Agent configuration. The arguments are typically specified to the JVM as a javaagent as
-     * {@code -javaagent:/path/to/agent.jar=<CONFIG>}. This method parses the {@code <CONFIG>} portion.
+     * {@code -javaagent:/path/to/agent.jar=<CONFIG>}. This method parses the {@code <CONFIG>} portion. Without a
+     * port, the agent doesn't listen, and only exports what its configuration sets up, such as snapshots.
      * @param args provided agent args
      * @param ifc default bind interface
      * @return configuration to use for our application
@@ -51,6 +116,10 @@ public class JavaAgent {
 
         Matcher matcher = pattern.matcher(args);
         if (!matcher.matches()) {
+            // Just a config file, which may start with a Windows drive letter.
+            if (args.matches("^(?:[A-Za-z]:)?[^:]+$")) {
+                return new Config(null, -1, args, null);
+            }
             throw new IllegalArgumentException("Malformed arguments - " + args);
         }
 
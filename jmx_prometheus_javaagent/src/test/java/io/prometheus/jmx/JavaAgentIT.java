@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
@@ -69,7 +70,7 @@ public class JavaAgentIT {
             // Wait for application to start
             app.getInputStream().read();
 
-            InputStream stream = new URL("http://localhost:" + port + "/metrics").openStream();
+            InputStream stream = openWhenInitialised(new URL("http://localhost:" + port + "/metrics"));
             BufferedReader contents = new BufferedReader(new InputStreamReader(stream));
             boolean found = false;
             while (!found) {
@@ -103,6 +104,30 @@ public class JavaAgentIT {
         }
     }
 
+    /**
+     * The agent initialises in the background, and answers with a 503 until it is done. Its port is only bound once
+     * the JVM has started the agent's thread.
+     */
+    private static InputStream openWhenInitialised(URL url) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                if (connection.getResponseCode() == 200) {
+                    return connection.getInputStream();
+                }
+                connection.disconnect();
+            } catch (IOException e) {
+                if (attempt >= 100) {
+                    throw e;
+                }
+            }
+            if (attempt >= 100) {
+                throw new IOException("Agent did not initialise");
+            }
+            Thread.sleep(100);
+        }
+    }
+
     private String buildJavaPath(String javaHome) {
         if (!(javaHome == null || javaHome.isEmpty())) {
             return javaHome + DEFAULT_JAVA_HOME_PATH;
@@ -1,9 +1,32 @@
 package io.prometheus.jmx;
 
+import io.prometheus.client.CollectorRegistry;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
 public class TestJavaAgent {
+    private File configFile;
+
+    @After
+    public void tearDown() {
+        MetricsServer server = JavaAgent.server;
+        if (server != null) {
+            server.stop();
+            JavaAgent.server = null;
+        }
+        CollectorRegistry.defaultRegistry.clear();
+        if (configFile != null) {
+            configFile.delete();
+        }
+    }
+
     /**
      * Test that the agent string argument is parsed properly. We expect the agent argument in one of these forms...
      * <pre>
@@ -63,6 +86,21 @@ public class TestJavaAgent {
         Assert.assertEquals(8080, config.port);
     }
 
+    /**
+     * Without a port, the agent only writes what its configuration exports, such as snapshots.
+     */
+    @Test
+    public void testConfigFileOnly() {
+        JavaAgent.Config config = JavaAgent.parseConfig("config.yaml", "0.0.0.0");
+        Assert.assertEquals("config.yaml", config.file);
+        Assert.assertEquals(-1, config.port);
+        Assert.assertNull(config.socket);
+
+        config = JavaAgent.parseConfig("C:\\Windows\\Path\\config.yaml", "0.0.0.0");
+        Assert.assertEquals("C:\\Windows\\Path\\config.yaml", config.file);
+        Assert.assertNull(config.socket);
+    }
+
     /**
      * If someone is specifying an ipv6 address and a host name, this should be rejected.
      */
@@ -96,4 +134,25 @@ public class TestJavaAgent {
         Assert.assertEquals("C:\\Windows\\Path\\config.yaml", config.file);
         Assert.assertEquals(8080, config.port);
     }
+
+    /**
+     * Scrapes are refused during startDelaySeconds, which must not stop the agent from starting.
+     */
+    @Test
+    public void testInitialiseWithStartDelay() throws Exception {
+        configFile = writeConfig("---\nstartDelaySeconds: 30\n");
+        JavaAgent.initialise(JavaAgent.parseConfig("localhost:0:" + configFile.getPath(), "0.0.0.0"), System.nanoTime());
+        Assert.assertNotNull(JavaAgent.server);
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://localhost:" + JavaAgent.server.getPort() + "/-/healthy").openConnection();
+        Assert.assertEquals(200, connection.getResponseCode());
+    }
+
+    private static File writeConfig(String yaml) throws IOException {
+        File file = File.createTempFile("config", ".yaml");
+        FileWriter writer = new FileWriter(file);
+        writer.write(yaml);
+        writer.close();
+        return file;
+    }
 }